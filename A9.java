@@ -7,10 +7,35 @@
  * 
  */
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Represents a map of values. K represents
@@ -34,13 +59,225 @@ public abstract class FMap<K, V>
      * Creates an empty FMap<K,V>
      * 
      * @param c     Comparator<K>
-     * @return      <code>EmptyRBT<K,V></code>
+     * @return      <code>SortedFMap<K,V></code>
      *              the EmptyRBT FMap<K,V>
      */
-    public static <K, V> FMap<K, V> empty(Comparator<K> c) {
+    public static <K, V> SortedFMap<K, V> empty(Comparator<K> c) {
         return new EmptyRBT<K, V>(c);
     }
 
+    /**
+     * The most keys wide(Comparator) puts in a node
+     */
+    public static final int WIDE_WIDTH = BTree.WIDTH;
+
+    /**
+     * Creates an empty FMap<K,V> ordered by c and
+     * backed by a B-tree of nodes with up to
+     * WIDE_WIDTH keys, so a lookup in a large
+     * map reads a few wide nodes
+     * 
+     * The map iterates in the order of c, but it
+     * is not a SortedFMap<K,V>: there is no
+     * firstKey, floorKey, subMap or spliterator
+     * that reports SORTED
+     * 
+     * @param c     Comparator<K>
+     * @return      <code>FMap<K,V></code>
+     *              the empty BTree FMap<K,V>
+     */
+    public static <K, V> FMap<K, V> wide(Comparator<K> c) {
+        return FMap.wide(c, FMap.WIDE_WIDTH);
+    }
+
+    /**
+     * Creates an empty FMap<K,V> ordered by c and
+     * backed by a B-tree of nodes with up to
+     * width keys. Like wide(Comparator), it is
+     * not a SortedFMap<K,V>
+     * 
+     * @param c         Comparator<K>
+     * @param width     the most keys in a node
+     * @return          <code>FMap<K,V></code>
+     *                  the empty BTree FMap<K,V>
+     */
+    public static <K, V> FMap<K, V> wide(Comparator<K> c, int width) {
+        if (width < 2) {
+            throw new RuntimeException("wide: a node needs room" +
+                    " for at least two keys");
+        }
+        return new BTree<K, V>(BTreeNode.<K, V>emptyLeaf(), c, width);
+    }
+
+    /**
+     * Creates an empty FMap<K,V> ordered by c whose
+     * nodes are kept outside the heap, with the keys
+     * and values written by the given codecs
+     * 
+     * The map iterates in the order of c, but it
+     * is not a SortedFMap<K,V>: there is no
+     * firstKey, floorKey, subMap or spliterator
+     * that reports SORTED
+     * 
+     * @param c         Comparator<K>
+     * @param keys      the Codec<K> of the keys
+     * @param values    the Codec<V> of the values
+     * @return          <code>FMap<K,V></code>
+     *                  the empty OffHeapFMap FMap<K,V>
+     */
+    public static <K, V> FMap<K, V> offHeap(Comparator<K> c, Codec<K> keys,
+            Codec<V> values) {
+        return new OffHeapFMap<K, V>(new OffHeapStore(OffHeapStore.SEGMENT),
+                OffHeapStore.NIL, c, keys, values);
+    }
+
+    /**
+     * Creates an FMap<K,V> from entries whose keys
+     * are already in increasing order. The tree is
+     * built bottom up with one Node per entry, so
+     * it costs O(n) instead of n includes
+     * 
+     * @param c         Comparator<K>
+     * @param entries   the entries, in increasing
+     *                  order of their keys
+     * @return          <code>SortedFMap<K,V></code>
+     *                  the FMap<K,V> with the
+     *                  given entries
+     */
+    public static <K, V> SortedFMap<K, V> fromSorted(Comparator<K> c,
+            Iterable<? extends Map.Entry<K, V>> entries) {
+        List<? extends Map.Entry<K, V>> a;
+
+        if (entries instanceof List && entries instanceof RandomAccess) {
+            a = (List<? extends Map.Entry<K, V>>) entries;
+        } else {
+            ArrayList<Map.Entry<K, V>> copy = new ArrayList<Map.Entry<K, V>>();
+
+            for (Map.Entry<K, V> e : entries) {
+                copy.add(e);
+            }
+            a = copy;
+        }
+
+        for (int i = 1; i < a.size(); i++) {
+            if (c.compare(a.get(i - 1).getKey(), a.get(i).getKey()) >= 0) {
+                throw new RuntimeException("fromSorted: the keys" +
+                        " are not in increasing order");
+            }
+        }
+        return Node.build(a, new EmptyRBT<K, V>(c));
+    }
+
+    /**
+     * Creates an FMap<K,V> with the entries of a
+     * java.util.Map. The entries are sorted once and
+     * the tree is built bottom up, so it costs
+     * O(n log n) with one Node per entry
+     * 
+     * @param c     Comparator<K>
+     * @param m     the given Map<K,V>
+     * @return      <code>SortedFMap<K,V></code>
+     *              the FMap<K,V> with the
+     *              entries of m
+     */
+    public static <K, V> SortedFMap<K, V> from(final Comparator<K> c,
+            Map<K, V> m) {
+        if (m instanceof SortedMap &&
+                c.equals(((SortedMap<K, V>) m).comparator())) {
+            return FMap.fromSorted(c, m.entrySet());
+        }
+
+        ArrayList<Map.Entry<K, V>> a =
+                new ArrayList<Map.Entry<K, V>>(m.entrySet());
+        Collections.sort(a, (x, y) -> c.compare(x.getKey(), y.getKey()));
+
+        // keys that are equal by c but not by equals
+        // only keep the first one
+        int n = 0;
+        for (int i = 0; i < a.size(); i++) {
+            if (n == 0 || c.compare(a.get(n - 1).getKey(),
+                    a.get(i).getKey()) != 0) {
+                a.set(n++, a.get(i));
+            }
+        }
+        return FMap.fromSorted(c, a.subList(0, n));
+    }
+
+    /**
+     * Creates an empty FMap<K,V> backed by a
+     * hash array mapped trie
+     * 
+     * @return      <code>HAMT<K,V></code>
+     *              the empty HAMT FMap<K,V>
+     */
+    public static <K, V> FMap<K, V> hashed() {
+        return new HAMT<K, V>(TrieBranch.<K, V>emptyBranch());
+    }
+
+    /**
+     * The largest size adaptive() and adaptive(Comparator)
+     * keep in one flat array
+     */
+    public static final int ADAPTIVE_THRESHOLD = ArrayMap.THRESHOLD;
+
+    /**
+     * Creates an empty FMap<K,V> that keeps up to
+     * ADAPTIVE_THRESHOLD keys in one flat array and
+     * moves into a HAMT<K,V> when it gets bigger
+     * 
+     * @return      <code>FMap<K,V></code>
+     *              the empty FMap<K,V>
+     */
+    public static <K, V> FMap<K, V> adaptive() {
+        return FMap.adaptive(null, FMap.ADAPTIVE_THRESHOLD);
+    }
+
+    /**
+     * Creates an empty FMap<K,V> that keeps up to
+     * threshold keys in one flat array and moves
+     * into a HAMT<K,V> when it gets bigger
+     * 
+     * @param threshold     the largest flat size
+     * @return              <code>FMap<K,V></code>
+     *                      the empty FMap<K,V>
+     */
+    public static <K, V> FMap<K, V> adaptive(int threshold) {
+        return FMap.adaptive(null, threshold);
+    }
+
+    /**
+     * Creates an empty FMap<K,V> that keeps up to
+     * ADAPTIVE_THRESHOLD keys in one flat array, in
+     * the order of c, and moves into a tree ordered
+     * by c when it gets bigger
+     * 
+     * @param c     Comparator<K>
+     * @return      <code>FMap<K,V></code>
+     *              the empty FMap<K,V>
+     */
+    public static <K, V> FMap<K, V> adaptive(Comparator<K> c) {
+        return FMap.adaptive(c, FMap.ADAPTIVE_THRESHOLD);
+    }
+
+    /**
+     * Creates an empty FMap<K,V> that keeps up to
+     * threshold keys in one flat array and moves
+     * into a tree ordered by c when it gets bigger,
+     * or into a HAMT<K,V> if c is null
+     * 
+     * @param c             Comparator<K>, or null
+     * @param threshold     the largest flat size
+     * @return              <code>FMap<K,V></code>
+     *                      the empty FMap<K,V>
+     */
+    public static <K, V> FMap<K, V> adaptive(Comparator<K> c, int threshold) {
+        if (threshold < 0) {
+            throw new RuntimeException("adaptive: the threshold" +
+                    " cannot be negative");
+        }
+        return new ArrayMap<K, V>(new Object[0], c, threshold);
+    }
+
     /**
      * Creates a non-empty FMap<K,V>
      * 
@@ -51,6 +288,17 @@ public abstract class FMap<K, V>
      *              FMap<K,V>
      */
     public abstract FMap<K, V> include(K k, V v);
+
+    /**
+     * Creates an FMap<K,V> without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @return      <code>FMap<K,V></code>
+     *              the FMap<K,V> without k,
+     *              or this if k is not in it
+     */
+    public abstract FMap<K, V> without(K k);
     
     /**
      * Creates an iterator from this FMap<K,V>
@@ -124,6 +372,74 @@ public abstract class FMap<K, V>
      */
     public abstract V get(K k);
 
+    /**
+     * Creates an iterator over the keys and
+     * values of this FMap<K,V>, visiting each
+     * key only once
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public abstract Iterator<Map.Entry<K, V>> entries();
+
+    /**
+     * Calls f with every key of this FMap<K,V>
+     * and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public abstract void forEach(BiConsumer<? super K, ? super V> f);
+
+    /**
+     * Creates a Spliterator over the keys of
+     * this FMap<K,V> that knows its size
+     * 
+     * @return      <code>Spliterator<K></code>
+     *              the created Spliterator
+     */
+    public Spliterator<K> spliterator() {
+        return Spliterators.spliterator(this.iterator(), this.size(),
+                Spliterator.DISTINCT | Spliterator.IMMUTABLE |
+                Spliterator.NONNULL);
+    }
+
+    /**
+     * Creates a Spliterator over the keys and
+     * values of this FMap<K,V> that knows its size
+     * 
+     * @return      <code>Spliterator<Map.Entry<K,V>></code>
+     *              the created Spliterator
+     */
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return Spliterators.spliterator(this.entries(), this.size(),
+                Spliterator.DISTINCT | Spliterator.IMMUTABLE |
+                Spliterator.NONNULL);
+    }
+
+    /**
+     * Creates a sequential Stream of the keys of
+     * this FMap<K,V>, call parallel() on it to
+     * split the work across threads
+     * 
+     * @return      <code>Stream<K></code>
+     *              the created Stream
+     */
+    public Stream<K> keys() {
+        return StreamSupport.stream(this.spliterator(), false);
+    }
+
+    /**
+     * Creates a sequential Stream of the keys and
+     * values of this FMap<K,V>, call parallel() on
+     * it to split the work across threads
+     * 
+     * @return      <code>Stream<Map.Entry<K,V>></code>
+     *              the created Stream
+     */
+    public Stream<Map.Entry<K, V>> entryStream() {
+        return StreamSupport.stream(this.entrySpliterator(), false);
+    }
+
     /**
      * Overrides the toString method in the
      * java API. Creates a string from the FMap
@@ -142,6 +458,23 @@ public abstract class FMap<K, V>
      * @return      <code>int</code> the hashCode
      */
     public abstract int hashCode();
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the hash of one key and its value.
+     * The hashCode of an FMap<K,V> is the sum
+     * of these, as for a java.util.Map, so it
+     * can be kept up to date as keys are
+     * included and removed
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>int</code> the hash
+     */
+    protected static int entryHash(Object k, Object v) {
+        return k.hashCode() ^ v.hashCode();
+    }
     
     /**
      * Overrides the equals method. Checks if an
@@ -166,337 +499,9042 @@ public abstract class FMap<K, V>
      */
     public abstract FMap<K, V> accept(Visitor<K, V> visitor);
 
-}
-
-/**
- * Represents an FMap<K,V> as a list
- */
-abstract class AList<K,V> extends FMap<K, V>
-    implements Iterable<K> {
-    
     /**
-     * Creates an ArrayList from the
-     * FMap keys
+     * Does the same as accept, but may split the work
+     * across the threads of the common ForkJoinPool.
+     * The visitor can be called from several threads
+     * at once and in any order of the keys
      * 
-     * @return      <code>ArrayList<K></code>
-     *              the ArrayList<K> from
-     *              the keys
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>
      */
-    protected abstract ArrayList<K> makeArrayList();
-    
-}
+    public FMap<K, V> acceptParallel(Visitor<K, V> visitor) {
+        return this.accept(visitor);
+    }
 
-/**
- * Represents an empty AList<K,V>
- */
-class Empty<K, V> extends AList<K, V>{
 
     /**
-     * Creates an empty constructor
-     */
-    Empty() {}
-    
-    /**
-     * Creates a non-empty AList<K,V>
+     * Finds what changed from this FMap<K,V> to other:
+     * the keys only other has, the keys only this one
+     * has, and the keys whose value is different. This
+     * compares every key, the backends that share
+     * structure between versions skip the shared parts
      * 
-     * @param k     the key
-     * @param v     the value
-     * @return      <code>AList<K,V></code>
-     *              the newly created non-empty
-     *              AList<K,V>
+     * @param other     the newer FMap<K,V>
+     * @return          <code>FMapDiff<K,V></code>
+     *                  the changes from this to other
      */
-    public AList<K, V> include(K k, V v){
-        return new Include<K,V>(k, v, this);
+    public FMapDiff<K, V> diff(FMap<K, V> other) {
+        FMapDiff<K, V> d = new FMapDiff<K, V>();
+
+        if (other == this) {
+            return d;
+        }
+        this.forEach((k, v) -> {
+            if (!other.containsKey(k)) {
+                d.recordRemoved(k, v);
+            } else {
+                V w = other.get(k);
+
+                if (!v.equals(w)) {
+                    d.recordChanged(k, v, w);
+                }
+            }
+        });
+        other.forEach((k, v) -> {
+            if (!this.containsKey(k)) {
+                d.recordAdded(k, v);
+            }
+        });
+        return d;
     }
-    
+
     /**
-     * Creates an KeyIterator from this FMap<K,V>
+     * Creates a TransientFMap<K,V> that starts with
+     * the keys and values of this FMap<K,V>, for
+     * including many keys at once
      * 
-     * @return      <code>KeyIterator<K></code>
-     *              the created iterator
+     * @return      <code>TransientFMap<K,V></code>
+     *              the created TransientFMap<K,V>
      */
-    public Iterator<K> iterator(){
-        return new KeyIterator<K>(this.makeArrayList());
+    public TransientFMap<K, V> asTransient() {
+        return new TransientFMap<K, V>(this);
     }
-    
+
     /**
-     * Creates an iterator from this FMap<K,V>
+     * Counts the heap used by the structure of this
+     * FMap<K,V>, without the keys and values. A view,
+     * such as a subMap, counts the whole tree it is
+     * made from as shared, so its unique bytes are
+     * what the view itself costs
      * 
-     * @param c     the given Comparator<T>
-     * @return      <code>KeyIterator<K></code>
-     *              the created iterator, in
-     *              sorted order
+     * @return      <code>Footprint</code>
+     *              the Footprint of this FMap<K,V>
      */
-    public Iterator<K> iterator(Comparator<K> c){
-        return new KeyIterator<K>(this.makeArrayList());
+    public Footprint footprint() {
+        return new Footprint(this, null);
     }
-    
+
     /**
-     * Creates an ArrayList from the
-     * FMap keys
+     * Counts the heap used by the structure of this
+     * FMap<K,V>, without the keys and values, and
+     * how much of it is shared with reference, such
+     * as an older version this one was made from
      * 
-     * @return      <code>ArrayList<K></code>
-     *              the ArrayList<K> from
-     *              the keys
+     * @param reference     the FMap<K,V> to compare to
+     * @return              <code>Footprint</code>
+     *                      the Footprint of this FMap<K,V>
      */
-    protected ArrayList<K> makeArrayList(){
-        return new ArrayList<K>();
+    public Footprint footprint(FMap<?, ?> reference) {
+        return new Footprint(this, reference);
     }
 
     /**
-     * Helper for iterator
-     * 
-     * Adds the keys from this
-     * to the given ArrayList<K>
+     * Helper for footprint
      * 
-     * @param a     the given ArrayList<K> that
-     *              the keys get added to
-     *              by recursion
-     * @return      <code>ArrayList<K></code>
-     *              the ArrayList<K> with
-     *              the keys
-     */
-    protected ArrayList<K> addKeys(ArrayList<K> a) {
-        return a;
-    }
-    
-    /**
-     * Checks if the FMap<K,V> is empty
+     * Adds the objects this one is made of
+     * to the given Footprint
      * 
-     * @return      <code>true</code> if the
-     *              FMap is empty;
-     *              <code>false</code> otherwise.
+     * @param f     the Footprint being counted
      */
-    public boolean isEmpty() {
-        return true;
+    protected void parts(Footprint f) {
     }
 
     /**
-     * Gets the size of the FMap<K,V>
-     * 
-     * @return      <code>int</code> returns
-     *              a natural number representing
-     *              the size
+     * Represents how the keys or values of an OffHeapFMap<K,V>
+     * are turned into bytes and back. A codec must give back
+     * an equal object from the bytes it wrote
      */
-    public int size() {
-        return 0;
-    }
+    public interface Codec<T> {
 
-    /**
-     * Checks if the FMap<K,V> contains the key k
-     * 
-     * @param k     the K being checked
-     * @return      <code>true</code> if k is
-     *              in the FMap;
-     *              <code>false</code> otherwise.
-     */
-    public boolean containsKey(K k) {
-        return false;
+        /**
+         * Stores Integers as four bytes
+         */
+        Codec<Integer> INTEGER = new Codec<Integer>() {
+            public byte[] encode(Integer x) {
+                return ByteBuffer.allocate(4).putInt(x).array();
+            }
+
+            public Integer decode(ByteBuffer b, int offset, int length) {
+                return b.getInt(offset);
+            }
+        };
+
+        /**
+         * Stores Longs as eight bytes
+         */
+        Codec<Long> LONG = new Codec<Long>() {
+            public byte[] encode(Long x) {
+                return ByteBuffer.allocate(8).putLong(x).array();
+            }
+
+            public Long decode(ByteBuffer b, int offset, int length) {
+                return b.getLong(offset);
+            }
+        };
+
+        /**
+         * Stores Strings as UTF-8
+         */
+        Codec<String> STRING = new Codec<String>() {
+            public byte[] encode(String x) {
+                return x.getBytes(StandardCharsets.UTF_8);
+            }
+
+            public String decode(ByteBuffer b, int offset, int length) {
+                byte[] a = new byte[length];
+                ByteBuffer d = b.duplicate();
+
+                d.position(offset);
+                d.get(a);
+                return new String(a, StandardCharsets.UTF_8);
+            }
+        };
+
+        /**
+         * Turns x into bytes
+         * 
+         * @param x     the given object
+         * @return      <code>byte[]</code> the bytes
+         */
+        byte[] encode(T x);
+
+        /**
+         * Reads back an object from the bytes at
+         * the given offset of b, without moving
+         * the position of b
+         * 
+         * @param b         the buffer
+         * @param offset    the first byte
+         * @param length    the number of bytes
+         * @return          <code>T</code> the object
+         */
+        T decode(ByteBuffer b, int offset, int length);
     }
-    
+
     /**
-     * Gets the value v of the key k
-     * 
-     * @param k     the given key
-     * @return      <code>V</code> the value that
-     *              the key gets
+     * Represents an FMap<K,V> whose keys are kept in the
+     * order of a Comparator<K>, which can be navigated
+     * by key and viewed in ranges
      */
-    public V get(K k){
-        throw new RuntimeException
+    public abstract static class SortedFMap<K, V> extends FMap<K, V> {
+
+        /**
+         * Creates a SortedFMap<K,V> with the key k
+         * mapped to the value v
+         * 
+         * @param k     the key
+         * @param v     the value
+         * @return      <code>SortedFMap<K,V></code>
+         *              the newly created non-empty
+         *              SortedFMap<K,V>
+         */
+        public abstract SortedFMap<K, V> include(K k, V v);
+
+        /**
+         * Creates a SortedFMap<K,V> without the key k
+         * 
+         * @param k     the key
+         * @return      <code>SortedFMap<K,V></code>
+         *              the SortedFMap<K,V> without k,
+         *              or this if k is not in it
+         */
+        public abstract SortedFMap<K, V> without(K k);
+
+        /**
+         * Gets the Comparator<K> the keys are kept in
+         * 
+         * @return      <code>Comparator<K></code>
+         *              the Comparator<K> of the keys
+         */
+        public abstract Comparator<K> comparator();
+
+        /**
+         * Helper for the navigation methods
+         * 
+         * Finds the node of the largest key that is
+         * less than k, or equal to it if inclusive
+         * 
+         * @param k             the given key
+         * @param inclusive     true if k itself counts
+         * @return              <code>RBTree<K,V></code>
+         *                      the node, or null if
+         *                      there is none
+         */
+        abstract RBTree<K, V> lowerNode(K k, boolean inclusive);
+
+        /**
+         * Helper for the navigation methods
+         * 
+         * Finds the node of the smallest key that is
+         * greater than k, or equal to it if inclusive
+         * 
+         * @param k             the given key
+         * @param inclusive     true if k itself counts
+         * @return              <code>RBTree<K,V></code>
+         *                      the node, or null if
+         *                      there is none
+         */
+        abstract RBTree<K, V> higherNode(K k, boolean inclusive);
+
+        /**
+         * Helper for the navigation methods
+         * 
+         * Finds the node of the smallest key
+         * 
+         * @return      <code>RBTree<K,V></code>
+         *              the node, or null if the
+         *              SortedFMap<K,V> is empty
+         */
+        abstract RBTree<K, V> firstNode();
+
+        /**
+         * Helper for the navigation methods
+         * 
+         * Finds the node of the largest key
+         * 
+         * @return      <code>RBTree<K,V></code>
+         *              the node, or null if the
+         *              SortedFMap<K,V> is empty
+         */
+        abstract RBTree<K, V> lastNode();
+
+        /**
+         * Helper for rank and countInRange
+         * 
+         * Counts the keys less than k, or less
+         * than or equal to it if inclusive
+         * 
+         * @param k             the given key
+         * @param inclusive     true if k itself counts
+         * @return              <code>int</code> the count
+         */
+        abstract int countBelow(K k, boolean inclusive);
+
+        /**
+         * Helper for select
+         * 
+         * Finds the node of the key with i keys
+         * before it
+         * 
+         * @param i     the index, at least 0 and
+         *              less than the size
+         * @return      <code>RBTree<K,V></code>
+         *              the node
+         */
+        abstract RBTree<K, V> nodeAt(int i);
+
+        /**
+         * Helper for union, intersect and difference
+         * 
+         * Gets the keys and values of this
+         * SortedFMap<K,V> as one tree
+         * 
+         * @return      <code>RBTree<K,V></code>
+         *              the tree
+         */
+        abstract RBTree<K, V> tree();
+
+        /**
+         * Helper for subMap, headMap and tailMap
+         * 
+         * Creates a view of the keys between lo and hi,
+         * a null bound leaves that side open
+         * 
+         * @param lo            the lower bound, or null
+         * @param loInclusive   true if lo itself is in the view
+         * @param hi            the upper bound, or null
+         * @param hiInclusive   true if hi itself is in the view
+         * @return              <code>SortedFMap<K,V></code>
+         *                      the view
+         */
+        protected abstract SortedFMap<K, V> range(K lo, boolean loInclusive,
+                K hi, boolean hiInclusive);
+
+        /**
+         * Gets the smallest key
+         * 
+         * @return      <code>K</code> the smallest key,
+         *              if the SortedFMap<K,V> is empty
+         *              it throws an exception
+         */
+        public K firstKey() {
+            RBTree<K, V> t = this.firstNode();
+
+            if (t == null) {
+                throw new RuntimeException("firstKey: the FMap is empty");
+            }
+            return t.getKey();
+        }
+
+        /**
+         * Gets the largest key
+         * 
+         * @return      <code>K</code> the largest key,
+         *              if the SortedFMap<K,V> is empty
+         *              it throws an exception
+         */
+        public K lastKey() {
+            RBTree<K, V> t = this.lastNode();
+
+            if (t == null) {
+                throw new RuntimeException("lastKey: the FMap is empty");
+            }
+            return t.getKey();
+        }
+
+        /**
+         * Gets the largest key less than or equal to k
+         * 
+         * @param k     the given key
+         * @return      <code>K</code> the key, or null
+         *              if there is none
+         */
+        public K floorKey(K k) {
+            return SortedFMap.keyOf(this.lowerNode(k, true));
+        }
+
+        /**
+         * Gets the smallest key greater than or equal to k
+         * 
+         * @param k     the given key
+         * @return      <code>K</code> the key, or null
+         *              if there is none
+         */
+        public K ceilingKey(K k) {
+            return SortedFMap.keyOf(this.higherNode(k, true));
+        }
+
+        /**
+         * Gets the smallest key strictly greater than k
+         * 
+         * @param k     the given key
+         * @return      <code>K</code> the key, or null
+         *              if there is none
+         */
+        public K higherKey(K k) {
+            return SortedFMap.keyOf(this.higherNode(k, false));
+        }
+
+        /**
+         * Gets the largest key strictly less than k
+         * 
+         * @param k     the given key
+         * @return      <code>K</code> the key, or null
+         *              if there is none
+         */
+        public K lowerKey(K k) {
+            return SortedFMap.keyOf(this.lowerNode(k, false));
+        }
+
+        /**
+         * Creates a view of the keys from lo to hi.
+         * The view is not copied, it finds its keys
+         * in this SortedFMap<K,V> as it is used
+         * 
+         * @param lo            the lower bound
+         * @param loInclusive   true if lo itself is in the view
+         * @param hi            the upper bound
+         * @param hiInclusive   true if hi itself is in the view
+         * @return              <code>SortedFMap<K,V></code>
+         *                      the view
+         */
+        public SortedFMap<K, V> subMap(K lo, boolean loInclusive,
+                K hi, boolean hiInclusive) {
+            if (lo == null || hi == null) {
+                throw new RuntimeException("subMap: the bounds cannot be null");
+            } else if (this.comparator().compare(lo, hi) > 0) {
+                throw new RuntimeException("subMap: lo is greater than hi");
+            }
+            return this.range(lo, loInclusive, hi, hiInclusive);
+        }
+
+        /**
+         * Creates a view of the keys from lo, inclusive,
+         * to hi, exclusive
+         * 
+         * @param lo    the lower bound
+         * @param hi    the upper bound
+         * @return      <code>SortedFMap<K,V></code>
+         *              the view
+         */
+        public SortedFMap<K, V> subMap(K lo, K hi) {
+            return this.subMap(lo, true, hi, false);
+        }
+
+        /**
+         * Creates a view of the keys less than hi,
+         * or equal to it if inclusive
+         * 
+         * @param hi            the upper bound
+         * @param inclusive     true if hi itself is in the view
+         * @return              <code>SortedFMap<K,V></code>
+         *                      the view
+         */
+        public SortedFMap<K, V> headMap(K hi, boolean inclusive) {
+            if (hi == null) {
+                throw new RuntimeException("headMap: the bound cannot be null");
+            }
+            return this.range(null, false, hi, inclusive);
+        }
+
+        /**
+         * Creates a view of the keys less than hi
+         * 
+         * @param hi    the upper bound
+         * @return      <code>SortedFMap<K,V></code>
+         *              the view
+         */
+        public SortedFMap<K, V> headMap(K hi) {
+            return this.headMap(hi, false);
+        }
+
+        /**
+         * Creates a view of the keys greater than lo,
+         * or equal to it if inclusive
+         * 
+         * @param lo            the lower bound
+         * @param inclusive     true if lo itself is in the view
+         * @return              <code>SortedFMap<K,V></code>
+         *                      the view
+         */
+        public SortedFMap<K, V> tailMap(K lo, boolean inclusive) {
+            if (lo == null) {
+                throw new RuntimeException("tailMap: the bound cannot be null");
+            }
+            return this.range(lo, inclusive, null, false);
+        }
+
+        /**
+         * Creates a view of the keys greater than
+         * or equal to lo
+         * 
+         * @param lo    the lower bound
+         * @return      <code>SortedFMap<K,V></code>
+         *              the view
+         */
+        public SortedFMap<K, V> tailMap(K lo) {
+            return this.tailMap(lo, true);
+        }
+
+        /**
+         * Gets the rank of k, which is the number
+         * of keys less than k
+         * 
+         * @param k     the given key
+         * @return      <code>int</code> the rank, the
+         *              index k has or would have in
+         *              the order of the keys
+         */
+        public int rank(K k) {
+            return this.countBelow(k, false);
+        }
+
+        /**
+         * Gets the key with i keys less than it
+         * 
+         * @param i     the index, counting from 0
+         * @return      <code>K</code> the i-th key, if
+         *              there is no such key it throws
+         *              an exception
+         */
+        public K select(int i) {
+            if (i < 0 || i >= this.size()) {
+                throw new RuntimeException("select: the index " + i +
+                        " is out of range");
+            }
+            return this.nodeAt(i).getKey();
+        }
+
+        /**
+         * Counts the keys from lo, inclusive,
+         * to hi, exclusive
+         * 
+         * @param lo    the lower bound
+         * @param hi    the upper bound
+         * @return      <code>int</code> the count
+         */
+        public int countInRange(K lo, K hi) {
+            return this.countInRange(lo, true, hi, false);
+        }
+
+        /**
+         * Counts the keys from lo to hi
+         * 
+         * @param lo            the lower bound
+         * @param loInclusive   true if lo itself counts
+         * @param hi            the upper bound
+         * @param hiInclusive   true if hi itself counts
+         * @return              <code>int</code> the count
+         */
+        public int countInRange(K lo, boolean loInclusive,
+                K hi, boolean hiInclusive) {
+            int n = this.countBelow(hi, hiInclusive) -
+                    this.countBelow(lo, !loInclusive);
+
+            return Math.max(n, 0);
+        }
+
+        /**
+         * Creates a SortedFMap<K,V> with the keys of
+         * this one and of other. The trees are split and
+         * joined instead of including the keys one at a
+         * time, and large ones are split across the threads
+         * of the common ForkJoinPool. So merge can be called
+         * from several threads at once and in any order of
+         * the keys
+         * 
+         * @param other     the given FMap<K,V>
+         * @param merge     gives the value of a key that
+         *                  is in both, from its value here
+         *                  and its value in other
+         * @return          <code>SortedFMap<K,V></code>
+         *                  the union
+         */
+        public SortedFMap<K, V> union(FMap<K, V> other,
+                BiFunction<? super V, ? super V, ? extends V> merge) {
+            return SetTask.run(SetTask.UNION, this.tree(), this.treeOf(other),
+                    merge, this.comparator());
+        }
+
+        /**
+         * Creates a SortedFMap<K,V> with the keys that
+         * are both in this one and in other. Large trees
+         * are split across the threads of the common
+         * ForkJoinPool, so merge can be called from
+         * several threads at once and in any order
+         * of the keys
+         * 
+         * @param other     the given FMap<K,V>
+         * @param merge     gives the value of a key from
+         *                  its value here and its value
+         *                  in other
+         * @return          <code>SortedFMap<K,V></code>
+         *                  the intersection
+         */
+        public SortedFMap<K, V> intersect(FMap<K, V> other,
+                BiFunction<? super V, ? super V, ? extends V> merge) {
+            return SetTask.run(SetTask.INTERSECT, this.tree(), this.treeOf(other),
+                    merge, this.comparator());
+        }
+
+        /**
+         * Creates a SortedFMap<K,V> with the keys that
+         * are both in this one and in other, and their
+         * values here
+         * 
+         * @param other     the given FMap<K,V>
+         * @return          <code>SortedFMap<K,V></code>
+         *                  the intersection
+         */
+        public SortedFMap<K, V> intersect(FMap<K, V> other) {
+            return this.intersect(other, (v, w) -> v);
+        }
+
+        /**
+         * Creates a SortedFMap<K,V> with the keys of
+         * this one that are not in other
+         * 
+         * @param other     the given FMap<K,V>
+         * @return          <code>SortedFMap<K,V></code>
+         *                  the difference
+         */
+        public SortedFMap<K, V> difference(FMap<K, V> other) {
+            return SetTask.run(SetTask.DIFFERENCE, this.tree(),
+                    this.treeOf(other), null, this.comparator());
+        }
+
+
+        /**
+         * Finds what changed from this SortedFMap<K,V> to
+         * other. If other is ordered the same way, both
+         * trees are walked side by side in key order and
+         * the subtrees they share are stepped over, so the
+         * cost follows the size of the change, not of the
+         * map. The changes are listed in key order
+         * 
+         * @param other     the newer FMap<K,V>
+         * @return          <code>FMapDiff<K,V></code>
+         *                  the changes from this to other
+         */
+        public FMapDiff<K, V> diff(FMap<K, V> other) {
+            Comparator<K> c = this.comparator();
+
+            if (other instanceof SortedFMap) {
+                SortedFMap<K, V> o = (SortedFMap<K, V>) other;
+
+                if (c == o.comparator() || c.equals(o.comparator())) {
+                    FMapDiff<K, V> d = new FMapDiff<K, V>();
+
+                    TreeCursor.diff(this.tree(), o.tree(), c, d);
+                    return d;
+                }
+            }
+            return super.diff(other);
+        }
+
+        /**
+         * Helper for union, intersect and difference
+         * 
+         * Gets other as a tree ordered like this one,
+         * building one if it is not
+         * 
+         * @param other     the given FMap<K,V>
+         * @return          <code>RBTree<K,V></code>
+         *                  the tree of other
+         */
+        RBTree<K, V> treeOf(FMap<K, V> other) {
+            Comparator<K> c = this.comparator();
+
+            if (other instanceof SortedFMap) {
+                SortedFMap<K, V> o = (SortedFMap<K, V>) other;
+
+                if (c == o.comparator() || c.equals(o.comparator())) {
+                    return o.tree();
+                }
+            }
+
+            TransientFMap<K, V> t = FMap.<K, V>empty(c).asTransient();
+            other.forEach((k, v) -> t.put(k, v));
+            return (RBTree<K, V>) t.persistent();
+        }
+
+        /**
+         * Helper for the navigation methods
+         * 
+         * @param t     the given node, or null
+         * @return      <code>K</code> the key of t,
+         *              or null if t is null
+         */
+        static <K, V> K keyOf(RBTree<K, V> t) {
+            return t == null ? null : t.getKey();
+        }
+    }
+
+    /**
+     * Represents a batch of includes into an FMap<K,V>.
+     * Keys are put one after another and persistent()
+     * gives back the FMap<K,V> with all of them. After
+     * that the TransientFMap<K,V> cannot be used again
+     */
+    public static class TransientFMap<K, V> {
+
+        FMap<K, V> map; // the keys and values put so far
+        boolean done; // true once persistent has been called
+
+        /**
+         * Constructor for TransientFMap<K,V>
+         * 
+         * @param map   the FMap<K,V> to start with
+         */
+        TransientFMap(FMap<K, V> map) {
+            this.map = map;
+        }
+
+        /**
+         * Checks that persistent has not been
+         * called yet
+         */
+        void ensureEditable() {
+            if (done) {
+                throw new RuntimeException("The transient was already" +
+                        " made persistent");
+            }
+        }
+
+        /**
+         * Maps the key k to the value v
+         * 
+         * @param k     the key
+         * @param v     the value
+         * @return      <code>TransientFMap<K,V></code>
+         *              this TransientFMap<K,V>
+         */
+        public TransientFMap<K, V> put(K k, V v) {
+            this.ensureEditable();
+            map = map.include(k, v);
+            return this;
+        }
+
+        /**
+         * Ends the batch
+         * 
+         * @return      <code>FMap<K,V></code>
+         *              the FMap<K,V> with every
+         *              key that was put
+         */
+        public FMap<K, V> persistent() {
+            this.ensureEditable();
+            done = true;
+            return map;
+        }
+    }
+
+    /**
+     * Represents the changes from one FMap<K,V> to another:
+     * the entries that were added, the entries that were
+     * removed, and the keys whose value changed
+     */
+    public static class FMapDiff<K, V> {
+
+        ArrayList<Map.Entry<K, V>> added; // the keys only the newer map has
+        ArrayList<Map.Entry<K, V>> removed; // the keys only the older map has
+        ArrayList<Map.Entry<K, V>> changed; // the new values of changed keys
+        ArrayList<Map.Entry<K, V>> changedFrom; // the old values, in the same order
+
+        /**
+         * Constructor for the class FMapDiff
+         */
+        FMapDiff() {
+            this.added = new ArrayList<Map.Entry<K, V>>();
+            this.removed = new ArrayList<Map.Entry<K, V>>();
+            this.changed = new ArrayList<Map.Entry<K, V>>();
+            this.changedFrom = new ArrayList<Map.Entry<K, V>>();
+        }
+
+        /**
+         * Helper for diff
+         * 
+         * Records a key only the newer map has
+         * 
+         * @param k     the key
+         * @param v     its value in the newer map
+         */
+        void recordAdded(K k, V v) {
+            added.add(new AbstractMap.SimpleImmutableEntry<K, V>(k, v));
+        }
+
+        /**
+         * Helper for diff
+         * 
+         * Records a key only the older map has
+         * 
+         * @param k     the key
+         * @param v     its value in the older map
+         */
+        void recordRemoved(K k, V v) {
+            removed.add(new AbstractMap.SimpleImmutableEntry<K, V>(k, v));
+        }
+
+        /**
+         * Helper for diff
+         * 
+         * Records a key whose value changed
+         * 
+         * @param k         the key
+         * @param before    its value in the older map
+         * @param after     its value in the newer map
+         */
+        void recordChanged(K k, V before, V after) {
+            changed.add(new AbstractMap.SimpleImmutableEntry<K, V>(k, after));
+            changedFrom.add(new AbstractMap.SimpleImmutableEntry<K, V>(k, before));
+        }
+
+        /**
+         * Gets the entries of the keys that
+         * only the newer map has
+         * 
+         * @return      <code>List<Map.Entry<K,V>></code>
+         *              the added entries
+         */
+        public List<Map.Entry<K, V>> added() {
+            return Collections.unmodifiableList(added);
+        }
+
+        /**
+         * Gets the entries of the keys that
+         * only the older map has
+         * 
+         * @return      <code>List<Map.Entry<K,V>></code>
+         *              the removed entries
+         */
+        public List<Map.Entry<K, V>> removed() {
+            return Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * Gets the keys in both maps whose value
+         * changed, with their new values
+         * 
+         * @return      <code>List<Map.Entry<K,V>></code>
+         *              the changed entries
+         */
+        public List<Map.Entry<K, V>> changed() {
+            return Collections.unmodifiableList(changed);
+        }
+
+        /**
+         * Gets the keys in both maps whose value
+         * changed, with their old values, in the
+         * same order as changed
+         * 
+         * @return      <code>List<Map.Entry<K,V>></code>
+         *              the entries before the change
+         */
+        public List<Map.Entry<K, V>> changedFrom() {
+            return Collections.unmodifiableList(changedFrom);
+        }
+
+        /**
+         * Gets the number of keys that were
+         * added, removed or changed
+         * 
+         * @return      <code>int</code> the size
+         */
+        public int size() {
+            return added.size() + removed.size() + changed.size();
+        }
+
+        /**
+         * Checks if the two maps hold the
+         * same keys and values
+         * 
+         * @return      <code>true</code> if nothing
+         *              changed;
+         *              <code>false</code> otherwise.
+         */
+        public boolean isEmpty() {
+            return this.size() == 0;
+        }
+
+        /**
+         * Overrides the toString method in the
+         * java API. Creates a string from the FMapDiff
+         * 
+         * @return      <code>String</code>
+         *              returns the string
+         */
+        public String toString() {
+            return "{..." + added.size() + " added, " + removed.size() +
+                    " removed, " + changed.size() + " changed...}";
+        }
+    }
+
+    /**
+     * Represents the heap used by the structure of an FMap<K,V>:
+     * its nodes, list cells and arrays, but not its keys and
+     * values. Objects reachable from a reference FMap<K,V> are
+     * counted as shared, so the bytes a version of a map owns
+     * on its own are the total minus the shared bytes. With
+     * no reference, the tree behind a view, such as a subMap,
+     * is counted as shared instead, since the view does not
+     * own it, and the figures per key leave it out
+     * 
+     * The sizes are estimates for a 64-bit HotSpot JVM, with
+     * compressed references if the heap is below 32 GB
+     */
+    public static class Footprint {
+
+        static final boolean COMPRESSED = // true if references are 4 bytes
+                !"32".equals(System.getProperty("sun.arch.data.model")) &&
+                Runtime.getRuntime().maxMemory() < (32L << 30);
+        static final int REFERENCE = COMPRESSED ? 4 : 8; // the size of a reference
+        static final int HEADER = COMPRESSED ? 12 : 16; // the size of an object header
+
+        /**
+         * The shallow sizes of the classes seen so far
+         */
+        static final ClassValue<Long> SIZES = new ClassValue<Long>() {
+            protected Long computeValue(Class<?> c) {
+                long size = HEADER;
+
+                for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+                    for (java.lang.reflect.Field f : k.getDeclaredFields()) {
+                        if (!java.lang.reflect.Modifier.isStatic(f.getModifiers())) {
+                            size += Footprint.sizeOf(f.getType());
+                        }
+                    }
+                }
+                return Footprint.align(size);
+            }
+        };
+
+        int entries; // the number of keys
+        long nodes; // the objects counted, without the arrays
+        long arrays; // the arrays counted
+        long bytes; // the bytes of all the objects
+        long sharedNodes; // the objects also in the reference
+        long sharedBytes; // the bytes of the shared objects
+        long viewedNodes; // the objects of the maps behind views
+        long viewedBytes; // the bytes of the maps behind views
+
+        Set<Object> seen; // the objects counted so far
+        ArrayList<Object> stack; // the objects left to count
+        ArrayList<FMap<?, ?>> backing; // the maps behind the views counted
+
+        /**
+         * Constructor for the class Footprint
+         * 
+         * @param map           the counted FMap
+         * @param reference     the FMap to compare to,
+         *                      or null if there is none
+         */
+        Footprint(FMap<?, ?> map, FMap<?, ?> reference) {
+            Set<Object> shared = Collections.<Object>emptySet();
+
+            backing = new ArrayList<FMap<?, ?>>();
+
+            if (reference != null) {
+                this.walk(reference);
+                shared = seen;
+            }
+
+            nodes = 0;
+            arrays = 0;
+            bytes = 0;
+            this.walk(map);
+            entries = map.size();
+
+            Set<Object> counted = seen;
+            Set<Object> viewed = Collections.<Object>emptySet();
+
+            if (!backing.isEmpty()) {
+                // the maps behind the views are walked like
+                // a reference, then the counts are put back
+                // since their objects are counted already
+                long n = nodes;
+                long a = arrays;
+                long b = bytes;
+
+                viewed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+                for (int i = 0; i < backing.size(); i++) {
+                    this.walk(backing.get(i));
+                    viewed.addAll(seen);
+                }
+                nodes = n;
+                arrays = a;
+                bytes = b;
+            }
+
+            for (Object o : counted) {
+                if (reference == null ? viewed.contains(o) : shared.contains(o)) {
+                    if (!o.getClass().isArray()) {
+                        sharedNodes++;
+                    }
+                    sharedBytes += Footprint.shallowSize(o);
+                }
+                if (viewed.contains(o)) {
+                    if (!o.getClass().isArray()) {
+                        viewedNodes++;
+                    }
+                    viewedBytes += Footprint.shallowSize(o);
+                }
+            }
+            seen = null;
+            stack = null;
+            backing = null;
+        }
+
+        /**
+         * Helper for the constructor
+         * 
+         * Counts every object the map is made of once,
+         * using a stack instead of recursion so deep
+         * lists do not overflow the call stack
+         * 
+         * @param map   the given FMap
+         */
+        void walk(FMap<?, ?> map) {
+            seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            stack = new ArrayList<Object>();
+            this.add(map);
+
+            while (!stack.isEmpty()) {
+                Object o = stack.remove(stack.size() - 1);
+
+                bytes += Footprint.shallowSize(o);
+
+                if (o instanceof FMap) {
+                    nodes++;
+                    ((FMap<?, ?>) o).parts(this);
+                } else if (o instanceof TrieNode) {
+                    nodes++;
+                    ((TrieNode<?, ?>) o).parts(this);
+                } else if (o instanceof BTreeNode) {
+                    nodes++;
+                    ((BTreeNode<?, ?>) o).parts(this);
+                } else {
+                    arrays++;
+
+                    // the array of an ArrayMap, or the keys
+                    // and values of a BTreeNode, hold keys
+                    // and values, which are not part of
+                    // the structure
+                    for (Object e : (Object[]) o) {
+                        if (e instanceof TrieNode || e instanceof BTreeNode) {
+                            this.add(e);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds a part of the map to be counted,
+         * unless it has been already
+         * 
+         * @param o     the part, or null
+         */
+        void add(Object o) {
+            if (o != null && seen.add(o)) {
+                stack.add(o);
+            }
+        }
+
+        /**
+         * Marks a map that a view is made from, so
+         * its objects are not charged to the view
+         * 
+         * @param map   the map behind the view
+         */
+        void share(FMap<?, ?> map) {
+            backing.add(map);
+        }
+
+        /**
+         * Gets the bytes used by the structure of the map
+         * 
+         * @return      <code>long</code> the bytes
+         */
+        public long totalBytes() {
+            return bytes;
+        }
+
+        /**
+         * Gets the bytes used by the structure of the
+         * map that the reference map uses as well
+         * 
+         * @return      <code>long</code> the shared bytes
+         */
+        public long sharedBytes() {
+            return sharedBytes;
+        }
+
+        /**
+         * Gets the bytes used by the structure of the
+         * map that the reference map does not use
+         * 
+         * @return      <code>long</code> the bytes only
+         *              this map uses
+         */
+        public long uniqueBytes() {
+            return bytes - sharedBytes;
+        }
+
+        /**
+         * Gets the number of nodes, list cells and
+         * other objects of the map, without arrays
+         * 
+         * @return      <code>long</code> the nodes
+         */
+        public long nodes() {
+            return nodes;
+        }
+
+        /**
+         * Gets the number of nodes the reference map
+         * uses as well
+         * 
+         * @return      <code>long</code> the shared nodes
+         */
+        public long sharedNodes() {
+            return sharedNodes;
+        }
+
+        /**
+         * Gets the number of nodes per key, not
+         * counting the tree behind a view
+         * 
+         * @return      <code>double</code> the nodes
+         *              per key, 0 for an empty map
+         */
+        public double nodesPerEntry() {
+            return entries == 0 ? 0 : (double) (nodes - viewedNodes) / entries;
+        }
+
+        /**
+         * Gets the bytes the structure of the map
+         * uses per key, on top of the keys and values,
+         * not counting the tree behind a view
+         * 
+         * @return      <code>double</code> the bytes
+         *              per key, 0 for an empty map
+         */
+        public double overheadPerEntry() {
+            return entries == 0 ? 0 : (double) (bytes - viewedBytes) / entries;
+        }
+
+        /**
+         * Overrides the toString method
+         * 
+         * @return      <code>String</code>
+         *              the counts of this Footprint
+         */
+        public String toString() {
+            return String.format("%d entries, %d nodes, %d arrays, %d bytes " +
+                    "(%d shared, %d unique), %.2f nodes/entry, " +
+                    "%.1f bytes/entry", entries, nodes, arrays, bytes,
+                    sharedBytes, this.uniqueBytes(), this.nodesPerEntry(),
+                    this.overheadPerEntry());
+        }
+
+        /**
+         * Estimates the size of an object on its own,
+         * without the objects it refers to
+         * 
+         * @param o     the given object
+         * @return      <code>long</code> the bytes
+         */
+        static long shallowSize(Object o) {
+            Class<?> c = o.getClass();
+
+            if (c.isArray()) {
+                long element = Footprint.sizeOf(c.getComponentType());
+                long base = HEADER + 4;
+
+                if (element == 8) {
+                    base = Footprint.align(base);
+                }
+                return Footprint.align(base +
+                        element * java.lang.reflect.Array.getLength(o));
+            }
+            return SIZES.get(c);
+        }
+
+        /**
+         * Gets the size of a field or array element
+         * 
+         * @param type      the type of the field
+         * @return          <code>long</code> the bytes
+         */
+        static long sizeOf(Class<?> type) {
+            if (type == long.class || type == double.class) {
+                return 8;
+            } else if (type == int.class || type == float.class) {
+                return 4;
+            } else if (type == short.class || type == char.class) {
+                return 2;
+            } else if (type == byte.class || type == boolean.class) {
+                return 1;
+            } else {
+                return REFERENCE;
+            }
+        }
+
+        /**
+         * Rounds a size up to the 8 byte alignment
+         * of objects
+         * 
+         * @param size      the given size
+         * @return          <code>long</code> the
+         *                  aligned size
+         */
+        static long align(long size) {
+            return (size + 7) & ~7L;
+        }
+    }
+}
+
+/**
+ * Represents an FMap<K,V> as a list
+ */
+abstract class AList<K,V> extends FMap<K, V>
+    implements Iterable<K> {
+    
+    /**
+     * Creates an ArrayList from the
+     * FMap keys
+     * 
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> from
+     *              the keys
+     */
+    protected abstract ArrayList<K> makeArrayList();
+
+    /**
+     * Creates a non-empty AList<K,V>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>AList<K,V></code>
+     *              the newly created non-empty
+     *              AList<K,V>
+     */
+    public abstract AList<K, V> include(K k, V v);
+
+    /**
+     * Creates an FMap<K,V> without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @return      <code>AList<K,V></code>
+     *              the AList<K,V> without k,
+     *              or this if k is not in it
+     */
+    public abstract AList<K, V> without(K k);
+
+    /**
+     * Helper for include
+     * 
+     * Creates a new AList<K,V> where the key k,
+     * which must already be in this AList<K,V>,
+     * gets the value v
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>AList<K,V></code>
+     *              the AList<K,V> with the
+     *              new value
+     */
+    protected abstract AList<K, V> replace(K k, V v);
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    protected abstract int hashSum();
+    
+
+    /**
+     * Finds what changed from this AList<K,V> to other.
+     * Versions of a list share the cells at its end, so
+     * both lists are lined up by size and walked until
+     * they reach the same cell, and only the cells in
+     * front of it are compared
+     * 
+     * @param other     the newer FMap<K,V>
+     * @return          <code>FMapDiff<K,V></code>
+     *                  the changes from this to other
+     */
+    public FMap.FMapDiff<K, V> diff(FMap<K, V> other) {
+        if (!(other instanceof AList)) {
+            return super.diff(other);
+        }
+        AList<K, V> a = this;
+        AList<K, V> b = (AList<K, V>) other;
+
+        while (a.size() > b.size()) {
+            a = ((Include<K, V>) a).m0;
+        }
+        while (b.size() > a.size()) {
+            b = ((Include<K, V>) b).m0;
+        }
+        while (a != b && !a.isEmpty()) {
+            a = ((Include<K, V>) a).m0;
+            b = ((Include<K, V>) b).m0;
+        }
+
+        // a and b are now the end both lists share, so
+        // a key can only be in front of it once per list
+        LinkedHashMap<K, V> before = new LinkedHashMap<K, V>();
+        FMap.FMapDiff<K, V> d = new FMap.FMapDiff<K, V>();
+
+        for (AList<K, V> t = this; t != a; t = ((Include<K, V>) t).m0) {
+            Include<K, V> cell = (Include<K, V>) t;
+
+            before.put(cell.k0, cell.v0);
+        }
+        for (AList<K, V> t = (AList<K, V>) other; t != b;
+                t = ((Include<K, V>) t).m0) {
+            Include<K, V> cell = (Include<K, V>) t;
+
+            if (!before.containsKey(cell.k0)) {
+                d.recordAdded(cell.k0, cell.v0);
+            } else {
+                V v = before.remove(cell.k0);
+
+                if (!v.equals(cell.v0)) {
+                    d.recordChanged(cell.k0, v, cell.v0);
+                }
+            }
+        }
+        for (Map.Entry<K, V> e : before.entrySet()) {
+            d.recordRemoved(e.getKey(), e.getValue());
+        }
+        return d;
+    }
+
+}
+
+/**
+ * Represents an empty AList<K,V>
+ */
+class Empty<K, V> extends AList<K, V>{
+
+    /**
+     * Creates an empty constructor
+     */
+    Empty() {}
+    
+    /**
+     * Creates a non-empty AList<K,V>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>AList<K,V></code>
+     *              the newly created non-empty
+     *              AList<K,V>
+     */
+    public AList<K, V> include(K k, V v){
+        return new Include<K,V>(k, v, this);
+    }
+
+    /**
+     * Creates an FMap<K,V> without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @return      <code>AList<K,V></code>
+     *              the AList<K,V> without k,
+     *              or this if k is not in it
+     */
+    public AList<K, V> without(K k) {
+        return this;
+    }
+
+    /**
+     * Helper for include
+     * 
+     * Creates a new AList<K,V> where the key k,
+     * which must already be in this AList<K,V>,
+     * gets the value v
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>AList<K,V></code>
+     *              the AList<K,V> with the
+     *              new value
+     */
+    protected AList<K, V> replace(K k, V v) {
+        throw new RuntimeException
+        ("The key value does not exist - LIST");
+    }
+    
+    /**
+     * Creates an KeyIterator from this FMap<K,V>
+     * 
+     * @return      <code>KeyIterator<K></code>
+     *              the created iterator
+     */
+    public Iterator<K> iterator(){
+        return new KeyIterator<K>(this.makeArrayList());
+    }
+    
+    /**
+     * Creates an iterator from this FMap<K,V>
+     * 
+     * @param c     the given Comparator<T>
+     * @return      <code>KeyIterator<K></code>
+     *              the created iterator, in
+     *              sorted order
+     */
+    public Iterator<K> iterator(Comparator<K> c){
+        return new KeyIterator<K>(this.makeArrayList());
+    }
+    
+    /**
+     * Creates an ArrayList from the
+     * FMap keys
+     * 
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> from
+     *              the keys
+     */
+    protected ArrayList<K> makeArrayList(){
+        return new ArrayList<K>();
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys from this
+     * to the given ArrayList<K>
+     * 
+     * @param a     the given ArrayList<K> that
+     *              the keys get added to
+     *              by recursion
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> with
+     *              the keys
+     */
+    protected ArrayList<K> addKeys(ArrayList<K> a) {
+        return a;
+    }
+    
+    /**
+     * Checks if the FMap<K,V> is empty
+     * 
+     * @return      <code>true</code> if the
+     *              FMap is empty;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return true;
+    }
+
+    /**
+     * Gets the size of the FMap<K,V>
+     * 
+     * @return      <code>int</code> returns
+     *              a natural number representing
+     *              the size
+     */
+    public int size() {
+        return 0;
+    }
+
+    /**
+     * Checks if the FMap<K,V> contains the key k
+     * 
+     * @param k     the K being checked
+     * @return      <code>true</code> if k is
+     *              in the FMap;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(K k) {
+        return false;
+    }
+    
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(K k){
+        throw new RuntimeException
         ("The key value does not exist - LIST");
     }
-    
+
+    /**
+     * Creates an iterator over the keys and
+     * values of this FMap<K,V>, visiting each
+     * key only once
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public Iterator<Map.Entry<K, V>> entries() {
+        return Collections.<Map.Entry<K, V>>emptyIterator();
+    }
+
+    /**
+     * Calls f with every key of this FMap<K,V>
+     * and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        return;
+    }
+    
+    /**
+     * Overrides the hashCode method
+     * 
+     * @return      <code>int</code> the hashCode
+     */
+    public int hashCode() {
+        return 0;
+    }
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    protected int hashSum() {
+        return 0;
+    }
+    
+    /**
+     * Overrides the equals method. Checks if an
+     * object is equal to this FMap
+     * 
+     * @param o     the given set object
+     * @return      <code>true</code> the two objects
+     *              are the same;
+     *              <code>false</code> otherwise.
+     */
+    public boolean equals(Object o) {
+        if (o instanceof FMap) {
+            @SuppressWarnings("unchecked")
+            FMap<K,V> q = (FMap<K,V>) o;
+            return q.isEmpty();
+        } else {
+            return false;
+        }
+    }
+    
+    /**
+     * Visits a class without modifying it, uses
+     * double dispatch to do something new without
+     * making changes
+     * 
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>
+     */
+    public FMap<K, V> accept(Visitor<K, V> visitor) {
+
+        FMap<K, V> m2 = FMap.empty();
+        
+        return m2;
+        
+    }
+}
+
+/**
+ * Represents a non-empty FMap
+ */
+class Include<K, V> extends AList<K,V>{
+
+    K k0; // the given key
+    V v0; // the given value
+    AList<K, V> m0; // the rest of the FMap
+    int size; // the size
+    int sum; // the sum of the hashes
+
+    /**
+     * Constructor for the concrete class include.
+     * The key k0 must not be in m0, so every key
+     * of the list appears exactly once
+     * 
+     * @param k0    the given key
+     * @param v0    the given value
+     * @param m0    the rest of the FMap
+     */
+    Include(K k0, V v0, AList<K, V> m0) {
+        this.k0 = k0;
+        this.v0 = v0;
+        this.m0 = m0;
+        this.size = m0.size() + 1;
+        this.sum = m0.hashSum() + FMap.entryHash(k0, v0);
+    }
+    
+    /**
+     * Creates a non-empty AList<K,V>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>AList<K,V></code>
+     *              the newly created non-empty
+     *              AList<K,V>
+     */
+    public AList<K, V> include(K k, V v) {
+        Include<K, V> cell = this.cellOf(k);
+
+        if (cell == null) {
+            return new Include<K, V>(k, v, this);
+        } else {
+            return this.copyUpTo(cell, new Include<K, V>(k, v, cell.m0));
+        }
+    }
+
+    /**
+     * Helper for include
+     * 
+     * Creates a new AList<K,V> where the key k,
+     * which must already be in this AList<K,V>,
+     * gets the value v
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>AList<K,V></code>
+     *              the AList<K,V> with the
+     *              new value
+     */
+    protected AList<K, V> replace(K k, V v) {
+        Include<K, V> cell = this.cellOf(k);
+
+        if (cell == null) {
+            throw new RuntimeException
+            ("The key value does not exist - LIST");
+        }
+        return this.copyUpTo(cell, new Include<K, V>(k, v, cell.m0));
+    }
+
+    /**
+     * Helper for include, replace, without, get
+     * and containsKey
+     * 
+     * Finds the cell of the key k with a loop,
+     * so a long list cannot run out of stack
+     * 
+     * @param k     the given key
+     * @return      <code>Include<K,V></code>
+     *              the cell with the key, or
+     *              null if there is none
+     */
+    Include<K, V> cellOf(K k) {
+        AList<K, V> m = this;
+
+        while (m instanceof Include) {
+            Include<K, V> i = (Include<K, V>) m;
+
+            if (k.equals(i.k0)) {
+                return i;
+            }
+            m = i.m0;
+        }
+        return null;
+    }
+
+    /**
+     * Helper for include, replace and without
+     * 
+     * Copies the cells in front of the given cell
+     * onto rest, keeping their order. The cells are
+     * gathered first and linked up from the back,
+     * so no recursion is needed
+     * 
+     * @param cell  a cell of this list
+     * @param rest  what takes the place of cell
+     * @return      <code>AList<K,V></code>
+     *              the new list
+     */
+    AList<K, V> copyUpTo(Include<K, V> cell, AList<K, V> rest) {
+        ArrayList<Include<K, V>> front =
+                new ArrayList<Include<K, V>>(size - cell.size);
+
+        for (AList<K, V> m = this; m != cell; m = ((Include<K, V>) m).m0) {
+            front.add((Include<K, V>) m);
+        }
+        for (int j = front.size() - 1; j >= 0; j--) {
+            Include<K, V> i = front.get(j);
+
+            rest = new Include<K, V>(i.k0, i.v0, rest);
+        }
+        return rest;
+    }
+
+    /**
+     * Creates an FMap<K,V> without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @return      <code>AList<K,V></code>
+     *              the AList<K,V> without k,
+     *              or this if k is not in it
+     */
+    public AList<K, V> without(K k) {
+        Include<K, V> cell = this.cellOf(k);
+
+        if (cell == null) {
+            return this;
+        }
+        return this.copyUpTo(cell, cell.m0);
+    }
+
+    /**
+     * Creates an KeyIterator from this FMap<K,V>
+     * 
+     * @return      <code>KeyIterator<K></code>
+     *              the created iterator
+     */
+    public Iterator<K> iterator() {
+        ArrayList<K> a = this.makeArrayList();
+
+        return new KeyIterator<K>(a);
+    }
+
+    /**
+     * Creates an iterator from this FMap<K,V>
+     * 
+     * @param c     the given Comparator<T>
+     * @return      <code>KeyIterator<K></code>
+     *              the created iterator, in
+     *              sorted order
+     */
+    public Iterator<K> iterator(Comparator<K> c) {
+        ArrayList<K> a = this.makeArrayList();
+        Collections.sort(a, c);
+
+        return new KeyIterator<K>(a);
+    }
+
+    /**
+     * Creates an ArrayList from the
+     * FMap keys
+     * 
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> from
+     *              the keys
+     */
+    protected ArrayList<K> makeArrayList() {
+        ArrayList<K> a = new ArrayList<K>(this.size);
+
+        return this.addKeys(a);
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys from this
+     * to the given ArrayList<K>
+     * 
+     * @param a     the given ArrayList<K> that
+     *              the keys get added to
+     *              by recursion
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> with
+     *              the keys
+     */
+    protected ArrayList<K> addKeys(ArrayList<K> a) {
+        // The rest of the list goes first, so the
+        // keys come out in the order they were added
+        int start = a.size();
+        AList<K, V> m = this;
+
+        while (m instanceof Include) {
+            Include<K, V> i = (Include<K, V>) m;
+
+            a.add(i.k0);
+            m = i.m0;
+        }
+        Collections.reverse(a.subList(start, a.size()));
+        return a;
+    }
+    
+    /**
+     * Checks if the FMap<K,V> is empty
+     * 
+     * @return      <code>true</code> if the
+     *              FMap is empty;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return false;
+    }
+
+    /**
+     * Gets the size of the FMap<K,V>
+     * 
+     * @return      <code>int</code> returns
+     *              a natural number representing
+     *              the size
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Checks if the FMap<K,V> contains the key k
+     * 
+     * @param k     the K being checked
+     * @return      <code>true</code> if k is
+     *              in the FMap;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(K k) {
+        return this.cellOf(k) != null;
+    }
+
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(K k) {
+        Include<K, V> cell = this.cellOf(k);
+
+        if (cell == null) {
+            throw new RuntimeException
+            ("The key value does not exist - LIST");
+        }
+        return cell.v0;
+    }
+
+    /**
+     * Creates an iterator over the keys and
+     * values of this FMap<K,V>, visiting each
+     * key only once
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public Iterator<Map.Entry<K, V>> entries() {
+        ArrayList<Map.Entry<K, V>> a = new ArrayList<Map.Entry<K, V>>();
+        FMap<K, V> m = this;
+
+        while (m instanceof Include) {
+            Include<K, V> i = (Include<K, V>) m;
+            a.add(new AbstractMap.SimpleImmutableEntry<K, V>(i.k0, i.v0));
+            m = i.m0;
+        }
+        return Collections.unmodifiableList(a).iterator();
+    }
+
+    /**
+     * Calls f with every key of this FMap<K,V>
+     * and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        FMap<K, V> m = this;
+
+        while (m instanceof Include) {
+            Include<K, V> i = (Include<K, V>) m;
+            f.accept(i.k0, i.v0);
+            m = i.m0;
+        }
+    }
+
+    /**
+     * Overrides the hashCode method
+     * 
+     * @return      <code>int</code> the hashCode
+     */
+    public int hashCode() {
+        return sum;
+    }
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    protected int hashSum() {
+        return sum;
+    }
+    
+    /**
+     * Overrides the equals method. Checks if an
+     * object is equal to this FMap
+     * 
+     * @param o     the given set object
+     * @return      <code>true</code> the two objects
+     *              are the same;
+     *              <code>false</code> otherwise.
+     */
+    public boolean equals(Object o) {
+        if (o instanceof FMap) {
+            @SuppressWarnings("unchecked")
+            FMap<K, V> q = (FMap<K, V>) o;
+
+            if (q.size() == this.size()) {
+                Iterator<Map.Entry<K, V>> i = this.entries();
+
+                while (i.hasNext()) {
+                    Map.Entry<K, V> e = i.next();
+
+                    if (!q.containsKey(e.getKey())) {
+                        return false;
+                    } else {
+                        if (!q.get(e.getKey()).equals(e.getValue())) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            } else {
+                return false;
+            }
+        } else {
+            return false;
+        }
+    }
+    
+    /**
+     * Visits a class without modifying it, uses
+     * double dispatch to do something new without
+     * making changes
+     * 
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>
+     */
+    public FMap<K, V> accept(Visitor<K, V> visitor) {
+
+        // Visits the cells in order, then links the
+        // new cells up from the end of the list, so
+        // the list keeps its order and no key is
+        // looked up again
+        ArrayList<K> keys = new ArrayList<K>(size);
+        ArrayList<V> values = new ArrayList<V>(size);
+        AList<K, V> m = this;
+
+        while (m instanceof Include) {
+            Include<K, V> i = (Include<K, V>) m;
+
+            keys.add(i.k0);
+            values.add(visitor.visit(i.k0, i.v0));
+            m = i.m0;
+        }
+
+        for (int j = keys.size() - 1; j >= 0; j--) {
+            m = new Include<K, V>(keys.get(j), values.get(j), m);
+        }
+        return m;
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    protected void parts(FMap.Footprint f) {
+        f.add(m0);
+    }
+}
+
+/**
+ * Represents a small FMap<K,V> as one array of its keys
+ * and values, k0, v0, k1, v1, ..., which is scanned
+ * from the start. Including a key past the threshold
+ * moves the map into a HAMT<K,V>, or a tree if it has
+ * a Comparator<K>, so only small maps stay flat
+ */
+class ArrayMap<K, V> extends FMap<K, V> {
+
+    static final int THRESHOLD = 8; // the default largest size
+
+    Object[] entries; // the keys and values, in the order of
+                      // the comparator if there is one
+    Comparator<K> comparator; // the order of the keys, or null
+    int threshold; // the largest size before moving
+    int sum; // the sum of the hashes
+
+    /**
+     * Constructor for ArrayMap<K,V>
+     * 
+     * @param entries       the keys and values
+     * @param comparator    the order of the keys, or null
+     * @param threshold     the largest size before moving
+     */
+    ArrayMap(Object[] entries, Comparator<K> comparator, int threshold) {
+        this.entries = entries;
+        this.comparator = comparator;
+        this.threshold = threshold;
+        this.sum = 0;
+
+        for (int i = 0; i < entries.length; i += 2) {
+            this.sum += FMap.entryHash(entries[i], entries[i + 1]);
+        }
+    }
+
+    /**
+     * Gets the key at the given position
+     * 
+     * @param i     the position
+     * @return      <code>K</code> the key
+     */
+    @SuppressWarnings("unchecked")
+    K keyAt(int i) {
+        return (K) entries[2 * i];
+    }
+
+    /**
+     * Gets the value at the given position
+     * 
+     * @param i     the position
+     * @return      <code>V</code> the value
+     */
+    @SuppressWarnings("unchecked")
+    V valueAt(int i) {
+        return (V) entries[2 * i + 1];
+    }
+
+    /**
+     * Finds the position of the key k. With a
+     * Comparator<K> the scan stops at the first
+     * key that is not smaller, one comparison
+     * per key, and otherwise it uses equals
+     * after checking for the same object
+     * 
+     * @param k     the given key
+     * @return      <code>int</code> the position of k,
+     *              or -(p + 1) if k is not in the map
+     *              and would go at position p
+     */
+    int indexOf(K k) {
+        int n = entries.length / 2;
+
+        if (comparator == null) {
+            for (int i = 0; i < n; i++) {
+                Object e = entries[2 * i];
+
+                if (k == e || k.equals(e)) {
+                    return i;
+                }
+            }
+            return -(n + 1);
+        }
+
+        for (int i = 0; i < n; i++) {
+            int r = comparator.compare(k, this.keyAt(i));
+
+            if (r == 0) {
+                return i;
+            } else if (r < 0) {
+                return -(i + 1);
+            }
+        }
+        return -(n + 1);
+    }
+
+    /**
+     * Creates an FMap<K,V> with the key k mapped to
+     * the value v. Past the threshold it is a HAMT<K,V>,
+     * or a tree if there is a Comparator<K>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>FMap<K,V></code>
+     *              the newly created non-empty
+     *              FMap<K,V>
+     */
+    public FMap<K, V> include(K k, V v) {
+        int i = this.indexOf(k);
+
+        if (i >= 0) {
+            Object[] a = entries.clone();
+
+            a[2 * i] = k;
+            a[2 * i + 1] = v;
+            return new ArrayMap<K, V>(a, comparator, threshold);
+        }
+        i = -(i + 1);
+
+        Object[] a = new Object[entries.length + 2];
+
+        System.arraycopy(entries, 0, a, 0, 2 * i);
+        a[2 * i] = k;
+        a[2 * i + 1] = v;
+        System.arraycopy(entries, 2 * i, a, 2 * i + 2,
+                entries.length - 2 * i);
+
+        if (a.length / 2 <= threshold) {
+            return new ArrayMap<K, V>(a, comparator, threshold);
+        }
+        return ArrayMap.promote(a, comparator);
+    }
+
+    /**
+     * Helper for include
+     * 
+     * Moves the keys and values into a tree, built
+     * bottom up since they are already in order, or
+     * into a HAMT<K,V> if there is no Comparator<K>
+     * 
+     * @param a             the keys and values
+     * @param comparator    the order of the keys, or null
+     * @return              <code>FMap<K,V></code>
+     *                      the new FMap<K,V>
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> FMap<K, V> promote(Object[] a, Comparator<K> comparator) {
+        if (comparator != null) {
+            ArrayList<Map.Entry<K, V>> sorted =
+                    new ArrayList<Map.Entry<K, V>>(a.length / 2);
+
+            for (int i = 0; i < a.length; i += 2) {
+                sorted.add(new AbstractMap.SimpleImmutableEntry<K, V>(
+                        (K) a[i], (V) a[i + 1]));
+            }
+            return FMap.fromSorted(comparator, sorted);
+        }
+
+        FMap.TransientFMap<K, V> t = FMap.<K, V>hashed().asTransient();
+
+        for (int i = 0; i < a.length; i += 2) {
+            t.put((K) a[i], (V) a[i + 1]);
+        }
+        return t.persistent();
+    }
+
+    /**
+     * Creates an FMap<K,V> without the key k
+     * 
+     * @param k     the key
+     * @return      <code>FMap<K,V></code>
+     *              the FMap<K,V> without k,
+     *              or this if k is not in it
+     */
+    public FMap<K, V> without(K k) {
+        int i = this.indexOf(k);
+
+        if (i < 0) {
+            return this;
+        }
+        Object[] a = new Object[entries.length - 2];
+
+        System.arraycopy(entries, 0, a, 0, 2 * i);
+        System.arraycopy(entries, 2 * i + 2, a, 2 * i,
+                entries.length - 2 * i - 2);
+        return new ArrayMap<K, V>(a, comparator, threshold);
+    }
+
+    /**
+     * Creates an iterator over the keys, in the
+     * order of the Comparator<K> if there is one
+     * and in the order they were added otherwise
+     * 
+     * @return      <code>Iterator<K></code>
+     *              the created iterator
+     */
+    public Iterator<K> iterator() {
+        return new KeyIterator<K>(this.addKeys(new ArrayList<K>()));
+    }
+
+    /**
+     * Creates an iterator from this FMap<K,V>
+     * 
+     * @param c     the given Comparator<T>
+     * @return      <code>Iterator<K></code>
+     *              the created iterator, in
+     *              sorted order
+     */
+    public Iterator<K> iterator(Comparator<K> c) {
+        ArrayList<K> a = this.addKeys(new ArrayList<K>());
+
+        if (c != comparator && !c.equals(comparator)) {
+            Collections.sort(a, c);
+        }
+        return new KeyIterator<K>(a);
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys from this
+     * to the given ArrayList<K>
+     * 
+     * @param a     the given ArrayList<K>
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> with
+     *              the keys
+     */
+    protected ArrayList<K> addKeys(ArrayList<K> a) {
+        for (int i = 0; i < entries.length / 2; i++) {
+            a.add(this.keyAt(i));
+        }
+        return a;
+    }
+
+    /**
+     * Checks if the FMap<K,V> is empty
+     * 
+     * @return      <code>true</code> if the
+     *              FMap is empty;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /**
+     * Gets the size of the FMap<K,V>
+     * 
+     * @return      <code>int</code> returns
+     *              a natural number representing
+     *              the size
+     */
+    public int size() {
+        return entries.length / 2;
+    }
+
+    /**
+     * Checks if the FMap<K,V> contains the key k
+     * 
+     * @param k     the K being checked
+     * @return      <code>true</code> if k is
+     *              in the FMap;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(K k) {
+        return this.indexOf(k) >= 0;
+    }
+
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(K k) {
+        int i = this.indexOf(k);
+
+        if (i < 0) {
+            throw new RuntimeException
+            ("The key value does not exist - ARRAY");
+        }
+        return this.valueAt(i);
+    }
+
+    /**
+     * Creates an iterator over the keys and
+     * values of this FMap<K,V>, in the same
+     * order as iterator
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public Iterator<Map.Entry<K, V>> entries() {
+        ArrayList<Map.Entry<K, V>> a =
+                new ArrayList<Map.Entry<K, V>>(this.size());
+
+        for (int i = 0; i < this.size(); i++) {
+            a.add(new AbstractMap.SimpleImmutableEntry<K, V>(
+                    this.keyAt(i), this.valueAt(i)));
+        }
+        return Collections.unmodifiableList(a).iterator();
+    }
+
+    /**
+     * Calls f with every key of this FMap<K,V>
+     * and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        for (int i = 0; i < this.size(); i++) {
+            f.accept(this.keyAt(i), this.valueAt(i));
+        }
+    }
+
+    /**
+     * Overrides the hashCode method
+     * 
+     * @return      <code>int</code> the hashCode
+     */
+    public int hashCode() {
+        return sum;
+    }
+
+    /**
+     * Overrides the equals method. Checks if an
+     * object is equal to this FMap
+     * 
+     * @param o     the given set object
+     * @return      <code>true</code> the two objects
+     *              are the same;
+     *              <code>false</code> otherwise.
+     */
+    public boolean equals(Object o) {
+        if (o instanceof FMap) {
+            @SuppressWarnings("unchecked")
+            FMap<K, V> q = (FMap<K, V>) o;
+
+            if (q.size() != this.size()) {
+                return false;
+            }
+            for (int i = 0; i < this.size(); i++) {
+                K k = this.keyAt(i);
+
+                if (!q.containsKey(k) || !q.get(k).equals(this.valueAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Visits a class without modifying it, uses
+     * double dispatch to do something new without
+     * making changes
+     * 
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>, an
+     *                  ArrayMap<K,V> with the same
+     *                  keys in the same order
+     */
+    public FMap<K, V> accept(Visitor<K, V> visitor) {
+        Object[] a = entries.clone();
+
+        for (int i = 0; i < this.size(); i++) {
+            a[2 * i + 1] = visitor.visit(this.keyAt(i), this.valueAt(i));
+        }
+        return new ArrayMap<K, V>(a, comparator, threshold);
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    protected void parts(FMap.Footprint f) {
+        f.add(entries);
+    }
+}
+
+
+/**
+ * Represents an FMap<K,V> as a red and black tree
+ */
+abstract class RBTree<K,V> extends FMap.SortedFMap<K,V>
+    implements Iterable<K> {
+    
+    boolean red; // true if the node is red, false if it is black
+    
+    /**
+     * Constructor for RBTree<K,V>
+     * 
+     * @param red       true if the node is red
+     */
+    public RBTree(boolean red) {
+        this.red = red;
+    }
+
+    /**
+     * Creates a TransientRBT<K,V> that starts with
+     * the keys and values of this RBTree<K,V>, for
+     * including many keys at once
+     * 
+     * @return      <code>TransientRBT<K,V></code>
+     *              the created TransientRBT<K,V>
+     */
+    public FMap.TransientFMap<K, V> asTransient() {
+        return new TransientRBT<K, V>(this);
+    }
+
+    /**
+     * Helper for the navigation methods
+     * 
+     * Finds the node of the largest key that is
+     * less than k, or equal to it if inclusive
+     * 
+     * @param k             the given key
+     * @param inclusive     true if k itself counts
+     * @return              <code>RBTree<K,V></code>
+     *                      the node, or null if
+     *                      there is none
+     */
+    RBTree<K, V> lowerNode(K k, boolean inclusive) {
+        Comparator<K> c = this.comparator();
+        RBTree<K, V> t = this;
+        RBTree<K, V> found = null;
+
+        while (!t.isEmpty()) {
+            int r = c.compare(k, t.getKey());
+
+            if (r > 0 || (r == 0 && inclusive)) {
+                found = t;
+                t = t.getRight();
+            } else {
+                t = t.getLeft();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Helper for the navigation methods
+     * 
+     * Finds the node of the smallest key that is
+     * greater than k, or equal to it if inclusive
+     * 
+     * @param k             the given key
+     * @param inclusive     true if k itself counts
+     * @return              <code>RBTree<K,V></code>
+     *                      the node, or null if
+     *                      there is none
+     */
+    RBTree<K, V> higherNode(K k, boolean inclusive) {
+        Comparator<K> c = this.comparator();
+        RBTree<K, V> t = this;
+        RBTree<K, V> found = null;
+
+        while (!t.isEmpty()) {
+            int r = c.compare(k, t.getKey());
+
+            if (r < 0 || (r == 0 && inclusive)) {
+                found = t;
+                t = t.getLeft();
+            } else {
+                t = t.getRight();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Helper for the navigation methods
+     * 
+     * Finds the node of the smallest key
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the node, or null if the
+     *              RBTree<K,V> is empty
+     */
+    RBTree<K, V> firstNode() {
+        if (this.isEmpty()) {
+            return null;
+        }
+        RBTree<K, V> t = this;
+
+        while (!t.getLeft().isEmpty()) {
+            t = t.getLeft();
+        }
+        return t;
+    }
+
+    /**
+     * Helper for the navigation methods
+     * 
+     * Finds the node of the largest key
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the node, or null if the
+     *              RBTree<K,V> is empty
+     */
+    RBTree<K, V> lastNode() {
+        if (this.isEmpty()) {
+            return null;
+        }
+        RBTree<K, V> t = this;
+
+        while (!t.getRight().isEmpty()) {
+            t = t.getRight();
+        }
+        return t;
+    }
+
+    /**
+     * Helper for subMap, headMap and tailMap
+     * 
+     * Creates a view of the keys between lo and hi,
+     * a null bound leaves that side open
+     * 
+     * @param lo            the lower bound, or null
+     * @param loInclusive   true if lo itself is in the view
+     * @param hi            the upper bound, or null
+     * @param hiInclusive   true if hi itself is in the view
+     * @return              <code>SortedFMap<K,V></code>
+     *                      the view
+     */
+    protected FMap.SortedFMap<K, V> range(K lo, boolean loInclusive,
+            K hi, boolean hiInclusive) {
+        return new SubMap<K, V>(this, lo, loInclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Helper for rank and countInRange
+     * 
+     * Counts the keys less than k, or less
+     * than or equal to it if inclusive, by
+     * adding up the sizes of the left subtrees
+     * passed on the way down
+     * 
+     * @param k             the given key
+     * @param inclusive     true if k itself counts
+     * @return              <code>int</code> the count
+     */
+    int countBelow(K k, boolean inclusive) {
+        Comparator<K> c = this.comparator();
+        RBTree<K, V> t = this;
+        int n = 0;
+
+        while (!t.isEmpty()) {
+            int r = c.compare(k, t.getKey());
+
+            if (r < 0 || (r == 0 && !inclusive)) {
+                t = t.getLeft();
+            } else {
+                n += t.getLeft().size() + 1;
+                t = t.getRight();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Helper for select
+     * 
+     * Finds the node of the key with i keys
+     * before it, using the sizes of the
+     * left subtrees
+     * 
+     * @param i     the index, at least 0 and
+     *              less than the size
+     * @return      <code>RBTree<K,V></code>
+     *              the node
+     */
+    RBTree<K, V> nodeAt(int i) {
+        RBTree<K, V> t = this;
+
+        while (true) {
+            int left = t.getLeft().size();
+
+            if (i < left) {
+                t = t.getLeft();
+            } else if (i == left) {
+                return t;
+            } else {
+                i -= left + 1;
+                t = t.getRight();
+            }
+        }
+    }
+
+    /**
+     * Helper for union, intersect and difference
+     * 
+     * Gets the keys and values of this
+     * SortedFMap<K,V> as one tree
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              this RBTree<K,V>
+     */
+    RBTree<K, V> tree() {
+        return this;
+    }
+
+    /**
+     * Creates a non-empty RBTree<K,V>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>RBTree<K,V></code>
+     *              the newly created non-empty
+     *              RBTree<K,V>
+     */
+    public abstract RBTree<K,V> include(K k, V v);
+
+    /**
+     * Creates an FMap<K,V> without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @return      <code>RBTree<K,V></code>
+     *              the RBTree<K,V> without k,
+     *              or this if k is not in it
+     */
+    public abstract RBTree<K,V> without(K k);
+
+    /**
+     * Gets the Comparator<K> of the tree. Only
+     * the root and the EmptyRBT<K,V> keep it
+     * 
+     * @return      <code>Comparator<K></code>
+     *              the Comparator<K> of the tree
+     */
+    public abstract Comparator<K> comparator();
+
+    /**
+     * Helper for include
+     * 
+     * Adds the key and value below this
+     * RBTree<K,V>, ordered by c
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>RBTree<K,V></code>
+     *              the newly created non-empty
+     *              RBTree<K,V>
+     */
+    protected abstract RBTree<K,V> ins(K k, V v, Comparator<K> c);
+
+    /**
+     * Helper for get and containsKey
+     * 
+     * Finds the node with the key k below
+     * this RBTree<K,V>, ordered by c
+     * 
+     * @param k     the key
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>RBTree<K,V></code>
+     *              the node with the key, or
+     *              an EmptyRBT<K,V> if there
+     *              is none
+     */
+    protected abstract RBTree<K,V> find(K k, Comparator<K> c);
+
+    /**
+     * Helper for accept
+     * 
+     * Creates a tree of the same shape and colors
+     * with each value replaced by what the visitor
+     * returns for it
+     * 
+     * @param visitor   the visitor
+     * @return          <code>RBTree<K,V></code>
+     *                  the new RBTree<K,V>
+     */
+    protected abstract RBTree<K,V> mapValues(Visitor<K, V> visitor);
+    
+    /**
+     * Helper for iterator
+     * 
+     * Traverses through the RBTree<K,V> and
+     * adds the keys to the ArrayList<K> a
+     * 
+     * @param a     the given ArrayList<K>
+     */
+    protected abstract void traverse(ArrayList<K> a);
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the left of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the left
+     */
+    protected abstract RBTree<K,V> getLeft();
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the right of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the right
+     */
+    protected abstract RBTree<K,V> getRight();
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the key of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the key
+     */
+    protected abstract K getKey();
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the value of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the value
+     */
+    protected abstract V getValue();
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    protected abstract int hashSum();
+
+    /**
+     * Helper for join
+     * 
+     * Gets the number of black Nodes on every
+     * path from this one down to an EmptyRBT,
+     * counting this one
+     * 
+     * @return      <code>int</code> the black height
+     */
+    abstract int blackHeight();
+    
+}
+
+/**
+ * Represents an empty RBTree<K,V>
+ */
+class EmptyRBT<K, V> extends RBTree<K, V> {
+
+    Comparator<K> comparator; // the given Comparator<K>
+    
+    /**
+     * Constructor for EmptyRBT
+     */
+    EmptyRBT() {
+        super(false);
+    }
+    
+    /**
+     * Constructor for EmptyRBT
+     * 
+     * @param comparator     the given Comparator<K>
+     */
+    EmptyRBT(Comparator<K> comparator) {
+        super(false);
+        this.comparator = comparator;
+    }
+    
+    /**
+     * Creates a non-empty RBTree<K,V>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>RBTree<K,V></code>
+     *              the newly created non-empty
+     *              RBTree<K,V>
+     */
+    public RBTree<K, V> include(K k, V v){
+        return new RootNode<K,V>(k, v,
+                this, this,
+                true,
+                comparator);
+    }
+
+    /**
+     * Creates an FMap<K,V> without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @return      <code>RBTree<K,V></code>
+     *              the RBTree<K,V> without k,
+     *              or this if k is not in it
+     */
+    public RBTree<K, V> without(K k) {
+        return this;
+    }
+
+    /**
+     * Gets the Comparator<K> of the tree. Only
+     * the root and the EmptyRBT<K,V> keep it
+     * 
+     * @return      <code>Comparator<K></code>
+     *              the Comparator<K> of the tree
+     */
+    public Comparator<K> comparator() {
+        return comparator;
+    }
+
+    /**
+     * Helper for include
+     * 
+     * Adds the key and value below this
+     * RBTree<K,V>, ordered by c
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>RBTree<K,V></code>
+     *              the newly created non-empty
+     *              RBTree<K,V>
+     */
+    protected RBTree<K, V> ins(K k, V v, Comparator<K> c) {
+        return new Node<K,V>(k, v, this, this, true);
+    }
+
+    /**
+     * Helper for get and containsKey
+     * 
+     * Finds the node with the key k below
+     * this RBTree<K,V>, ordered by c
+     * 
+     * @param k     the key
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>RBTree<K,V></code>
+     *              the node with the key, or
+     *              an EmptyRBT<K,V> if there
+     *              is none
+     */
+    protected RBTree<K, V> find(K k, Comparator<K> c) {
+        return this;
+    }
+
+    /**
+     * Helper for accept
+     * 
+     * Creates a tree of the same shape and colors
+     * with each value replaced by what the visitor
+     * returns for it
+     * 
+     * @param visitor   the visitor
+     * @return          <code>RBTree<K,V></code>
+     *                  the new RBTree<K,V>
+     */
+    protected RBTree<K, V> mapValues(Visitor<K, V> visitor) {
+        return this;
+    }
+    
+    /**
+     * Creates an KeyIterator from this FMap<K,V>
+     * 
+     * @return      <code>KeyIterator<K></code>
+     *              the created iterator
+     */
+    public Iterator<K> iterator(){
+        ArrayList<K> a = new ArrayList<K>();
+        return new KeyIterator<K>(a);
+    }
+    
+    /**
+     * Creates an iterator from this FMap<K,V>
+     * 
+     * @param c     the given Comparator<T>
+     * @return      <code>KeyIterator<K></code>
+     *              the created iterator, in
+     *              sorted order
+     */
+    public Iterator<K> iterator(Comparator<K> c){
+        ArrayList<K> a = new ArrayList<K>();
+        return new KeyIterator<K>(a);
+    }
+    
+    /**
+     * Helper for iterator
+     * 
+     * Traverses through the RBTree<K,V> and
+     * adds the keys to the ArrayList<K> a
+     * 
+     * @param a     the given ArrayList<K>
+     */
+    protected void traverse(ArrayList<K> a) {
+        return;
+    }
+    
+    /**
+     * Checks if the FMap<K,V> is empty
+     * 
+     * @return      <code>true</code> if the
+     *              FMap is empty;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return true;
+    }
+
+    /**
+     * Gets the size of the FMap<K,V>
+     * 
+     * @return      <code>int</code> returns
+     *              a natural number representing
+     *              the size
+     */
+    public int size() {
+        return 0;
+    }
+
+    /**
+     * Checks if the FMap<K,V> contains the key k
+     * 
+     * @param k     the K being checked
+     * @return      <code>true</code> if k is
+     *              in the FMap;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(K k) {
+        return false;
+    }
+    
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(K k){
+        throw new RuntimeException
+        ("The key value does not exist-RBT");
+    }
+
+    /**
+     * Creates an iterator over the keys and
+     * values of this FMap<K,V>, visiting each
+     * key only once
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public Iterator<Map.Entry<K, V>> entries() {
+        return Collections.<Map.Entry<K, V>>emptyIterator();
+    }
+
+    /**
+     * Creates an empty Spliterator over the keys,
+     * sorted by the Comparator<K> like the one
+     * of a non-empty tree
+     * 
+     * @return      <code>Spliterator<K></code>
+     *              the created Spliterator
+     */
+    public Spliterator<K> spliterator() {
+        return new TreeSpliterator<K, V, K>(this, 0, 0,
+                t -> t.getKey(), this.comparator());
+    }
+
+    /**
+     * Creates an empty Spliterator over the keys
+     * and values, sorted by key like the one of
+     * a non-empty tree
+     * 
+     * @return      <code>Spliterator<Map.Entry<K,V>></code>
+     *              the created Spliterator
+     */
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return new TreeSpliterator<K, V, Map.Entry<K, V>>(this, 0, 0,
+                t -> new AbstractMap.SimpleImmutableEntry<K, V>(
+                        t.getKey(), t.getValue()),
+                Map.Entry.comparingByKey(this.comparator()));
+    }
+
+    /**
+     * Calls f with every key of this FMap<K,V>
+     * and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        return;
+    }
+    
+    /**
+     * Overrides the hashCode method
+     * 
+     * @return      <code>int</code> the hashCode
+     */
+    public int hashCode() {
+        return 0;
+    }
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    protected int hashSum() {
+        return 0;
+    }
+
+    /**
+     * Helper for join
+     * 
+     * Gets the number of black Nodes on every
+     * path from this one down to an EmptyRBT,
+     * counting this one
+     * 
+     * @return      <code>int</code> the black height
+     */
+    int blackHeight() {
+        return 0;
+    }
+
+    /**
+     * Overrides the equals method. Checks if an
+     * object is equal to this FMap
+     * 
+     * @param o     the given set object
+     * @return      <code>true</code> the two objects
+     *              are the same;
+     *              <code>false</code> otherwise.
+     */
+    public boolean equals(Object o) {
+        if (o instanceof FMap) {
+            @SuppressWarnings("unchecked")
+            FMap<K,V> q = (FMap<K,V>) o;
+            return q.isEmpty();
+        } else {
+            return false;
+        }
+    }
+    
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys from this
+     * to the given ArrayList<K>
+     * 
+     * @param a     the given ArrayList<K> that
+     *              the keys get added to
+     *              by recursion
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> with
+     *              the keys
+     */
+    protected ArrayList<K> addKeys(ArrayList<K> a) {
+        throw new RuntimeException("addKeys: Unsupported" +
+          	"for EmptyRBT");
+    }
+    
+    /**
+     * Visits a class without modifying it, uses
+     * double dispatch to do something new without
+     * making changes
+     * 
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>
+     */
+    public FMap<K, V> accept(Visitor<K, V> visitor) {
+
+        FMap<K, V> m2 = FMap.empty(comparator);
+
+        return m2;
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the left of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the left
+     */
+    protected RBTree<K,V> getLeft() {
+        throw new RuntimeException("getLeft: Unsupported" +
+        		"for emptyRBT");
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the right of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the right
+     */
+    protected RBTree<K,V> getRight() {
+        throw new RuntimeException("getRight: Unsupported" +
+        		"for emptyRBT");
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the key of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the key
+     */
+    protected K getKey() {
+        throw new RuntimeException("getKey: Unsupported" +
+        		"for emptyRBT");
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the value of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the value
+     */
+    protected V getValue() {
+        throw new RuntimeException("getValue: Unsupported" +
+        		"for emptyRBT");
+    }
+    
+}
+
+/**
+ * Represents a non-empty RBTree<K>
+ */
+class Node<K, V> extends RBTree<K, V> {
+
+    K k0; // the given key
+    V v0; // the given value
+    RBTree<K, V> left; // the left node
+    RBTree<K, V> right; // the right node
+    int size; // the size
+    int sum; // the sum of the hashes
+    byte blackHeight; // the black Nodes on a path down, counting this one
+
+    /**
+     * The constructor for the
+     * concrete class Node
+     * 
+     * @param k0        the given key
+     * @param v0        the given value
+     * @param left      the left node
+     * @param right     the right node
+     * @param red       true if the node is red
+     */
+    Node(K k0, V v0, RBTree<K, V> left, RBTree<K, V> right,
+            boolean red) {
+        super(red);
+        this.k0 = k0;
+        this.v0 = v0;
+        this.left = left;
+        this.right = right;
+        this.initSize();
+        this.initSum();
+        this.initBlackHeight();
+    }
+    
+    /**
+     * Initializes the size of the node
+     */
+    void initSize(){
+        size = 1 + left.size()
+                 + right.size();
+    }
+
+    /**
+     * Initializes the sum of the hashes
+     * from the sums of the children, so
+     * it costs the same for any size
+     */
+    void initSum() {
+        sum = left.hashSum() + right.hashSum()
+                + FMap.entryHash(k0, v0);
+    }
+
+    /**
+     * Initializes the black height from the left
+     * child, which is the same as the right one's.
+     * It fits in the padding of the Node, so it
+     * does not make it any bigger
+     */
+    void initBlackHeight() {
+        blackHeight = (byte) (left.blackHeight() + (red ? 0 : 1));
+    }
+
+    /**
+     * Helper for fromSorted
+     * 
+     * Builds a red-black tree from entries in
+     * increasing order. Every level is black except
+     * the last one, which may not be full and is
+     * red, so no path has more black nodes than
+     * another
+     * 
+     * @param a     the entries, in increasing order
+     * @param leaf  the EmptyRBT<K,V> of the tree
+     * @return      <code>RBTree<K,V></code>
+     *              the tree with the entries
+     */
+    static <K, V> RBTree<K, V> build(List<? extends Map.Entry<K, V>> a,
+            EmptyRBT<K, V> leaf) {
+        int redLevel = 31 - Integer.numberOfLeadingZeros(a.size() + 1);
+
+        return Node.build(a, 0, a.size() - 1, 0, redLevel, leaf);
+    }
+
+    /**
+     * Helper for build
+     * 
+     * Builds the subtree of the entries from
+     * lo to hi, taking the middle one as its
+     * root
+     * 
+     * @param a         the entries, in increasing order
+     * @param lo        the first entry of the subtree
+     * @param hi        the last entry of the subtree
+     * @param level     the depth of the subtree
+     * @param redLevel  the depth of the red nodes
+     * @param leaf      the EmptyRBT<K,V> of the tree
+     * @return          <code>RBTree<K,V></code>
+     *                  the subtree with the entries
+     */
+    static <K, V> RBTree<K, V> build(List<? extends Map.Entry<K, V>> a,
+            int lo, int hi, int level, int redLevel, EmptyRBT<K, V> leaf) {
+        if (lo > hi) {
+            return leaf;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        RBTree<K, V> l = Node.build(a, lo, mid - 1, level + 1, redLevel, leaf);
+        RBTree<K, V> r = Node.build(a, mid + 1, hi, level + 1, redLevel, leaf);
+        Map.Entry<K, V> e = a.get(mid);
+
+        if (level == 0) {
+            return new RootNode<K, V>(e.getKey(), e.getValue(), l, r,
+                    level == redLevel, leaf.comparator);
+        } else {
+            return new Node<K, V>(e.getKey(), e.getValue(), l, r,
+                    level == redLevel);
+        }
+    }
+
+    /**
+     * Gets t as the root of a tree
+     * 
+     * @param t     the given RBTree<K,V>
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>RBTree<K,V></code>
+     *              t if it is empty or already
+     *              a RootNode<K,V>, a RootNode<K,V>
+     *              copy of it otherwise
+     */
+    static <K, V> RBTree<K, V> asRoot(RBTree<K, V> t, Comparator<K> c) {
+        if (t.isEmpty() || t instanceof RootNode) {
+            return t;
+        } else {
+            return new RootNode<K, V>(t.getKey(), t.getValue(),
+                    t.getLeft(), t.getRight(), t.red, c);
+        }
+    }
+
+    /**
+     * Helper for union, intersect and difference
+     * 
+     * Gets t without the RootNode<K,V> at its top,
+     * so it can become a subtree of another tree
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              t, or a plain Node<K,V> copy
+     *              if it is a RootNode<K,V>
+     */
+    static <K, V> RBTree<K, V> plain(RBTree<K, V> t) {
+        if (t instanceof RootNode) {
+            return new Node<K, V>(t.getKey(), t.getValue(),
+                    t.getLeft(), t.getRight(), t.red);
+        } else {
+            return t;
+        }
+    }
+
+    /**
+     * Helper for join
+     * 
+     * Gets t colored black
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              t if it is already black,
+     *              a black copy otherwise
+     */
+    static <K, V> RBTree<K, V> asBlack(RBTree<K, V> t) {
+        if (t.red) {
+            return new Node<K, V>(t.getKey(), t.getValue(),
+                    t.getLeft(), t.getRight(), false);
+        } else {
+            return t;
+        }
+    }
+
+    /**
+     * Joins two trees and a key between them into
+     * one tree. Every key of l must be less than k
+     * and every key of r greater. The shorter tree
+     * is hung at the height where it fits on the
+     * side of the taller one, so it costs only the
+     * difference of their black heights
+     * 
+     * @param l     the RBTree<K,V> of the smaller keys
+     * @param k     the key
+     * @param v     the value
+     * @param r     the RBTree<K,V> of the greater keys
+     * @return      <code>RBTree<K,V></code>
+     *              the joined tree
+     */
+    static <K, V> RBTree<K, V> join(RBTree<K, V> l, K k, V v,
+            RBTree<K, V> r) {
+        l = Node.asBlack(l);
+        r = Node.asBlack(r);
+
+        if (l.blackHeight() > r.blackHeight()) {
+            return Node.joinRight(l, k, v, r);
+        } else if (l.blackHeight() < r.blackHeight()) {
+            return Node.joinLeft(l, k, v, r);
+        } else {
+            return new Node<K, V>(k, v, l, r, true);
+        }
+    }
+
+    /**
+     * Helper for join
+     * 
+     * Goes down the right side of l to the black
+     * subtree as high as r, puts k and r there, and
+     * rotates red nodes that end up in a row
+     * 
+     * @param l     the taller RBTree<K,V>
+     * @param k     the key
+     * @param v     the value
+     * @param r     the black RBTree<K,V> of the
+     *              greater keys
+     * @return      <code>RBTree<K,V></code>
+     *              the joined tree
+     */
+    static <K, V> RBTree<K, V> joinRight(RBTree<K, V> l, K k, V v,
+            RBTree<K, V> r) {
+        if (!l.red && l.blackHeight() == r.blackHeight()) {
+            return new Node<K, V>(k, v, l, r, true);
+        }
+        RBTree<K, V> t = Node.joinRight(l.getRight(), k, v, r);
+
+        if (!l.red && t.red && t.getRight().red) {
+            RBTree<K, V> tr = t.getRight();
+
+            return new Node<K, V>(t.getKey(), t.getValue(),
+                    new Node<K, V>(l.getKey(), l.getValue(),
+                            l.getLeft(), t.getLeft(), false),
+                    new Node<K, V>(tr.getKey(), tr.getValue(),
+                            tr.getLeft(), tr.getRight(), false),
+                    true);
+        }
+        return new Node<K, V>(l.getKey(), l.getValue(),
+                l.getLeft(), t, l.red);
+    }
+
+    /**
+     * Helper for join
+     * 
+     * Goes down the left side of r to the black
+     * subtree as high as l, puts k and l there, and
+     * rotates red nodes that end up in a row
+     * 
+     * @param l     the black RBTree<K,V> of the
+     *              smaller keys
+     * @param k     the key
+     * @param v     the value
+     * @param r     the taller RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the joined tree
+     */
+    static <K, V> RBTree<K, V> joinLeft(RBTree<K, V> l, K k, V v,
+            RBTree<K, V> r) {
+        if (!r.red && r.blackHeight() == l.blackHeight()) {
+            return new Node<K, V>(k, v, l, r, true);
+        }
+        RBTree<K, V> t = Node.joinLeft(l, k, v, r.getLeft());
+
+        if (!r.red && t.red && t.getLeft().red) {
+            RBTree<K, V> tl = t.getLeft();
+
+            return new Node<K, V>(t.getKey(), t.getValue(),
+                    new Node<K, V>(tl.getKey(), tl.getValue(),
+                            tl.getLeft(), tl.getRight(), false),
+                    new Node<K, V>(r.getKey(), r.getValue(),
+                            t.getRight(), r.getRight(), false),
+                    true);
+        }
+        return new Node<K, V>(r.getKey(), r.getValue(),
+                t, r.getRight(), r.red);
+    }
+
+    /**
+     * Joins two trees into one. Every key of l
+     * must be less than every key of r
+     * 
+     * @param l     the RBTree<K,V> of the smaller keys
+     * @param r     the RBTree<K,V> of the greater keys
+     * @return      <code>RBTree<K,V></code>
+     *              the joined tree
+     */
+    static <K, V> RBTree<K, V> join2(RBTree<K, V> l, RBTree<K, V> r) {
+        if (l.isEmpty()) {
+            return r;
+        } else if (r.isEmpty()) {
+            return l;
+        }
+        Split<K, V> s = Node.splitLast(l);
+
+        return Node.join(s.left, s.node.getKey(), s.node.getValue(), r);
+    }
+
+    /**
+     * Helper for join2
+     * 
+     * Takes the largest key out of the non-empty t
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>Split<K,V></code>
+     *              the node of the largest key and
+     *              the tree of the other keys on
+     *              its left
+     */
+    static <K, V> Split<K, V> splitLast(RBTree<K, V> t) {
+        if (t.getRight().isEmpty()) {
+            return new Split<K, V>(t.getLeft(), t, null);
+        }
+        Split<K, V> s = Node.splitLast(t.getRight());
+
+        s.left = Node.join(t.getLeft(), t.getKey(), t.getValue(), s.left);
+        return s;
+    }
+
+    /**
+     * Splits t into the keys less than k, the node
+     * of k if there is one, and the keys greater
+     * than k, joining the subtrees passed on the
+     * way down back together
+     * 
+     * @param t     the given RBTree<K,V>
+     * @param k     the key
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>Split<K,V></code>
+     *              the two trees and the node
+     */
+    static <K, V> Split<K, V> split(RBTree<K, V> t, K k, Comparator<K> c) {
+        if (t.isEmpty()) {
+            return new Split<K, V>(t, null, t);
+        }
+        int r = c.compare(k, t.getKey());
+
+        if (r == 0) {
+            return new Split<K, V>(t.getLeft(), t, t.getRight());
+        } else if (r < 0) {
+            Split<K, V> s = Node.split(t.getLeft(), k, c);
+
+            s.right = Node.join(s.right, t.getKey(), t.getValue(),
+                    t.getRight());
+            return s;
+        } else {
+            Split<K, V> s = Node.split(t.getRight(), k, c);
+
+            s.left = Node.join(t.getLeft(), t.getKey(), t.getValue(),
+                    s.left);
+            return s;
+        }
+    }
+
+    /**
+     * Helper for difference
+     * 
+     * Finds an EmptyRBT<K,V> of the tree t
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the leftmost EmptyRBT<K,V>
+     */
+    static <K, V> RBTree<K, V> leaf(RBTree<K, V> t) {
+        while (!t.isEmpty()) {
+            t = t.getLeft();
+        }
+        return t;
+    }
+
+    /**
+     * Gets the Comparator<K> of the tree. Only
+     * the root and the EmptyRBT<K,V> keep it
+     * 
+     * @return      <code>Comparator<K></code>
+     *              the Comparator<K> of the tree
+     */
+    public Comparator<K> comparator() {
+        throw new RuntimeException("comparator: Unsupported " +
+                "below the root");
+    }
+
+    /**
+     * Helper for include
+     * 
+     * Creates a Node<K,V> in the place of this
+     * one, so the root stays a RootNode<K,V>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param l     the left RBTree<K,V>
+     * @param r     the right RBTree<K,V>
+     * @param red   true if the node is red
+     * @return      <code>Node<K,V></code>
+     *              the new Node<K,V>
+     */
+    protected Node<K, V> copy(K k, V v, RBTree<K, V> l, RBTree<K, V> r,
+            boolean red) {
+        return new Node<K, V>(k, v, l, r, red);
+    }
+
+    /**
+     * Creates a non-empty FMap<K,V>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>RBTree<K,V></code>
+     *              the newly created non-empty
+     *              RBTree<K,V>
+     */
+    public RBTree<K, V> include(K k, V v) {
+        return this.ins(k, v, this.comparator());
+    }
+
+    /**
+     * Helper for include
+     * 
+     * Adds the key and value below this
+     * RBTree<K,V>, ordered by c
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>RBTree<K,V></code>
+     *              the newly created non-empty
+     *              RBTree<K,V>
+     */
+    protected RBTree<K, V> ins(K k, V v, Comparator<K> c) {
+
+        // Adds the key and value then
+        // balances the tree if needed
+        // by recursively working its
+        // way up
+        
+        // Makes sure two reds are never
+        // connected
+        
+        int r = c.compare(k, k0);
+
+        if (r == 0) {
+            return this.copy(k, v,
+                    this.left,
+                    this.right,
+                    this.red);
+        } else if (r < 0) {
+            return this.balance(
+                    this.copy(k0, v0,
+                    this.left.ins(k, v, c),
+                    this.right,
+                    this.red));
+        } else {
+            return this.balance(
+                    this.copy(k0, v0,
+                    this.left,
+                    this.right.ins(k, v, c),
+                    this.red));
+        }
+        
+    }
+
+    /**
+     * Creates an RBTree<K,V> without the key k,
+     * sharing everything that does not change.
+     * Uses the deletion of Kahrs, which copies only
+     * the path to k and keeps the tree balanced
+     * 
+     * @param k     the key
+     * @return      <code>RBTree<K,V></code>
+     *              the RBTree<K,V> without k,
+     *              or this if k is not in it
+     */
+    public RBTree<K, V> without(K k) {
+        if (!this.containsKey(k)) {
+            return this;
+        }
+
+        // the root may be red with a red child,
+        // which the deletion does not expect
+        Comparator<K> c = this.comparator();
+        RBTree<K, V> t = this.del(this.blacken(this), k, c);
+
+        if (t.isEmpty()) {
+            return t;
+        } else {
+            return new RootNode<K, V>(t.getKey(), t.getValue(),
+                    t.getLeft(), t.getRight(), false, c);
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Removes the key k, which must be in t. If
+     * t is black the result has one black node
+     * less on every path
+     * 
+     * @param t     the given RBTree<K,V>
+     * @param k     the key
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>RBTree<K,V></code>
+     *              t without k
+     */
+    protected RBTree<K, V> del(RBTree<K, V> t, K k, Comparator<K> c) {
+        int r = c.compare(k, t.getKey());
+
+        if (r == 0) {
+            return this.fuse(t.getLeft(), t.getRight());
+        } else if (r < 0) {
+            if (this.isBlack(t.getLeft())) {
+                return this.balanceLeft(this.del(t.getLeft(), k, c),
+                        t.getKey(), t.getValue(), t.getRight());
+            } else {
+                return this.make(this.del(t.getLeft(), k, c),
+                        t.getKey(), t.getValue(), t.getRight(), true);
+            }
+        } else {
+            if (this.isBlack(t.getRight())) {
+                return this.balanceRight(t.getLeft(),
+                        t.getKey(), t.getValue(), this.del(t.getRight(), k, c));
+            } else {
+                return this.make(t.getLeft(),
+                        t.getKey(), t.getValue(), this.del(t.getRight(), k, c), true);
+            }
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Joins the two children of a removed node
+     * into one RBTree<K,V>
+     * 
+     * @param l     the left RBTree<K,V>
+     * @param r     the right RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the keys of l then the keys of r
+     */
+    protected RBTree<K, V> fuse(RBTree<K, V> l, RBTree<K, V> r) {
+        if (l.isEmpty()) {
+            return r;
+        } else if (r.isEmpty()) {
+            return l;
+        } else if (this.isRed(l) && this.isRed(r)) {
+            RBTree<K, V> m = this.fuse(l.getRight(), r.getLeft());
+
+            if (this.isRed(m)) {
+                return this.make(
+                        this.make(l.getLeft(), l.getKey(), l.getValue(),
+                                m.getLeft(), true),
+                        m.getKey(), m.getValue(),
+                        this.make(m.getRight(), r.getKey(), r.getValue(),
+                                r.getRight(), true),
+                        true);
+            } else {
+                return this.make(l.getLeft(), l.getKey(), l.getValue(),
+                        this.make(m, r.getKey(), r.getValue(),
+                                r.getRight(), true),
+                        true);
+            }
+        } else if (this.isBlack(l) && this.isBlack(r)) {
+            RBTree<K, V> m = this.fuse(l.getRight(), r.getLeft());
+
+            if (this.isRed(m)) {
+                return this.make(
+                        this.make(l.getLeft(), l.getKey(), l.getValue(),
+                                m.getLeft(), false),
+                        m.getKey(), m.getValue(),
+                        this.make(m.getRight(), r.getKey(), r.getValue(),
+                                r.getRight(), false),
+                        true);
+            } else {
+                return this.balanceLeft(l.getLeft(), l.getKey(), l.getValue(),
+                        this.make(m, r.getKey(), r.getValue(),
+                                r.getRight(), false));
+            }
+        } else if (this.isRed(r)) {
+            return this.make(this.fuse(l, r.getLeft()),
+                    r.getKey(), r.getValue(), r.getRight(), true);
+        } else {
+            return this.make(l.getLeft(), l.getKey(), l.getValue(),
+                    this.fuse(l.getRight(), r), true);
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Rebuilds a node whose left side has one
+     * black node less than its right side
+     * 
+     * @param l     the left RBTree<K,V>
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the rebuilt RBTree<K,V>
+     */
+    protected RBTree<K, V> balanceLeft(RBTree<K, V> l, K k, V v,
+            RBTree<K, V> r) {
+        if (this.isRed(l)) {
+            return this.make(this.blacken(l), k, v, r, true);
+        } else if (this.isBlack(r)) {
+            return this.rebalance(l, k, v, this.redden(r));
+        } else {
+            // r is red and its left child is black
+            RBTree<K, V> rl = r.getLeft();
+
+            return this.make(
+                    this.make(l, k, v, rl.getLeft(), false),
+                    rl.getKey(), rl.getValue(),
+                    this.rebalance(rl.getRight(), r.getKey(), r.getValue(),
+                            this.redden(r.getRight())),
+                    true);
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Rebuilds a node whose right side has one
+     * black node less than its left side
+     * 
+     * @param l     the left RBTree<K,V>
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the rebuilt RBTree<K,V>
+     */
+    protected RBTree<K, V> balanceRight(RBTree<K, V> l, K k, V v,
+            RBTree<K, V> r) {
+        if (this.isRed(r)) {
+            return this.make(l, k, v, this.blacken(r), true);
+        } else if (this.isBlack(l)) {
+            return this.rebalance(this.redden(l), k, v, r);
+        } else {
+            // l is red and its right child is black
+            RBTree<K, V> lr = l.getRight();
+
+            return this.make(
+                    this.rebalance(this.redden(l.getLeft()),
+                            l.getKey(), l.getValue(), lr.getLeft()),
+                    lr.getKey(), lr.getValue(),
+                    this.make(lr.getRight(), k, v, r, false),
+                    true);
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Creates a black node from l, k, v and r,
+     * unless two red nodes would be connected,
+     * in which case the nodes are rearranged
+     * into a red node with two black children
+     * 
+     * @param l     the left RBTree<K,V>
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the balanced RBTree<K,V>
+     */
+    protected RBTree<K, V> rebalance(RBTree<K, V> l, K k, V v,
+            RBTree<K, V> r) {
+        if (this.isRed(l) && this.isRed(r)) {
+            return this.make(this.blacken(l), k, v, this.blacken(r), true);
+        } else if (this.isRed(l) && this.isRed(l.getLeft())) {
+            return this.make(this.blacken(l.getLeft()),
+                    l.getKey(), l.getValue(),
+                    this.make(l.getRight(), k, v, r, false), true);
+        } else if (this.isRed(l) && this.isRed(l.getRight())) {
+            RBTree<K, V> lr = l.getRight();
+
+            return this.make(
+                    this.make(l.getLeft(), l.getKey(), l.getValue(),
+                            lr.getLeft(), false),
+                    lr.getKey(), lr.getValue(),
+                    this.make(lr.getRight(), k, v, r, false), true);
+        } else if (this.isRed(r) && this.isRed(r.getRight())) {
+            return this.make(this.make(l, k, v, r.getLeft(), false),
+                    r.getKey(), r.getValue(),
+                    this.blacken(r.getRight()), true);
+        } else if (this.isRed(r) && this.isRed(r.getLeft())) {
+            RBTree<K, V> rl = r.getLeft();
+
+            return this.make(this.make(l, k, v, rl.getLeft(), false),
+                    rl.getKey(), rl.getValue(),
+                    this.make(rl.getRight(), r.getKey(), r.getValue(),
+                            r.getRight(), false), true);
+        } else {
+            return this.make(l, k, v, r, false);
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Creates a new Node<K,V> of this tree
+     * 
+     * @param l     the left RBTree<K,V>
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right RBTree<K,V>
+     * @param red   true if the node is red
+     * @return      <code>RBTree<K,V></code>
+     *              the new Node<K,V>
+     */
+    protected RBTree<K, V> make(RBTree<K, V> l, K k, V v,
+            RBTree<K, V> r, boolean red) {
+        return new Node<K, V>(k, v, l, r, red);
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Gets t colored black
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              t if it is already black,
+     *              a black copy otherwise
+     */
+    protected RBTree<K, V> blacken(RBTree<K, V> t) {
+        if (this.isRed(t)) {
+            return this.make(t.getLeft(), t.getKey(), t.getValue(),
+                    t.getRight(), false);
+        } else {
+            return t;
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Gets a red copy of the black Node<K,V> t
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the red copy
+     */
+    protected RBTree<K, V> redden(RBTree<K, V> t) {
+        if (!this.isBlack(t)) {
+            throw new RuntimeException("redden: the tree" +
+                    " is not balanced");
+        }
+        return this.make(t.getLeft(), t.getKey(), t.getValue(),
+                t.getRight(), true);
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Checks if t is a red Node<K,V>
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>true</code> if t is red;
+     *              <code>false</code> otherwise.
+     */
+    protected boolean isRed(RBTree<K, V> t) {
+        return t.red;
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Checks if t is a black Node<K,V>, which
+     * an EmptyRBT<K,V> is not
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>true</code> if t is a
+     *              black Node<K,V>;
+     *              <code>false</code> otherwise.
+     */
+    protected boolean isBlack(RBTree<K, V> t) {
+        return !t.isEmpty() && !t.red;
+    }
+
+    /**
+     * Creates a TreeIterator from this FMap<K,V>
+     * 
+     * @return      <code>TreeIterator<K,V></code>
+     *              the created iterator, which
+     *              walks the tree lazily
+     */
+    public Iterator<K> iterator() {
+        return new TreeIterator<K, V>(this);
+    }
+
+    /**
+     * Creates an iterator from this FMap<K,V>
+     * 
+     * @param c     the given Comparator<T>
+     * @return      <code>KeyIterator<K></code>
+     *              the created iterator, in
+     *              sorted order
+     */
+    public Iterator<K> iterator(Comparator<K> c) {
+        Comparator<K> comparator = this.comparator();
+
+        // The tree is already sorted by its own
+        // comparator, so that order and its reverse
+        // can be walked without sorting
+        if (c == comparator || c.equals(comparator)) {
+            return new TreeIterator<K, V>(this);
+        } else if (comparator != null &&
+                c.equals(comparator.reversed())) {
+            return new TreeIterator<K, V>(this, true);
+        }
+
+        ArrayList<K> a = new ArrayList<K>();
+        this.traverse(a);
+        Collections.sort(a, c);
+        
+        return new KeyIterator<K>(a);
+
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Traverses through the RBTree<K,V> and
+     * adds the keys to the ArrayList<K> a
+     * 
+     * @param a     the given ArrayList<K>
+     */
+    protected void traverse(ArrayList<K> a) {
+        left.traverse(a);
+        a.add(k0);
+        right.traverse(a);
+        
+    }
+    
+    /**
+     * Checks if the FMap<K,V> is empty
+     * 
+     * @return      <code>true</code> if the
+     *              FMap is empty;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return false;
+    }
+
+    /**
+     * Gets the size of the FMap<K,V>
+     * 
+     * @return      <code>int</code> returns
+     *              a natural number representing
+     *              the size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the FMap<K,V> contains the key k
+     * 
+     * @param k     the K being checked
+     * @return      <code>true</code> if k is
+     *              in the FMap;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(K k) {
+        return !this.find(k, this.comparator()).isEmpty();
+    }
+
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(K k) {
+        RBTree<K, V> t = this.find(k, this.comparator());
+
+        if (t.isEmpty()) {
+            throw new RuntimeException
+            ("The key value does not exist-RBT");
+        }
+        return t.getValue();
+    }
+
+    /**
+     * Helper for get and containsKey
+     * 
+     * Finds the node with the key k below
+     * this RBTree<K,V>, ordered by c. A key c
+     * compares as equal is the same key, so
+     * each level takes a single comparison.
+     * It loops down the tree instead of
+     * recursing, so the JIT compiles the
+     * whole lookup as one loop
+     * 
+     * @param k     the key
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>RBTree<K,V></code>
+     *              the node with the key, or
+     *              an EmptyRBT<K,V> if there
+     *              is none
+     */
+    protected RBTree<K, V> find(K k, Comparator<K> c) {
+        RBTree<K, V> t = this;
+
+        while (t instanceof Node) {
+            Node<K, V> n = (Node<K, V>) t;
+            int r = c.compare(k, n.k0);
+
+            if (r == 0) {
+                return n;
+            }
+            t = r < 0 ? n.left : n.right;
+        }
+        return t;
+    }
+
+    /**
+     * Creates a TreeEntryIterator from this
+     * FMap<K,V>, in the order of the tree
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public Iterator<Map.Entry<K, V>> entries() {
+        return new TreeEntryIterator<K, V>(this);
+    }
+
+    /**
+     * Creates a Spliterator over the keys of this
+     * FMap<K,V>, in the order of the tree, that
+     * splits at the boundaries of subtrees
+     * 
+     * @return      <code>Spliterator<K></code>
+     *              the created Spliterator
+     */
+    public Spliterator<K> spliterator() {
+        return new TreeSpliterator<K, V, K>(this, 0, this.size(),
+                t -> t.getKey(), this.comparator());
+    }
+
+    /**
+     * Creates a Spliterator over the keys and values
+     * of this FMap<K,V>, in the order of the tree,
+     * that splits at the boundaries of subtrees
+     * 
+     * @return      <code>Spliterator<Map.Entry<K,V>></code>
+     *              the created Spliterator
+     */
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return new TreeSpliterator<K, V, Map.Entry<K, V>>(this, 0,
+                this.size(),
+                t -> new AbstractMap.SimpleImmutableEntry<K, V>(
+                        t.getKey(), t.getValue()),
+                Map.Entry.comparingByKey(this.comparator()));
+    }
+
+    /**
+     * Calls f with every key of this FMap<K,V>
+     * and the value of that key, in the order
+     * of the tree
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        left.forEach(f);
+        f.accept(k0, v0);
+        right.forEach(f);
+    }
+    
+    /**
+     * Overrides the hashCode method
+     * 
+     * @return      <code>int</code> the hashCode
+     */
+    public int hashCode() {
+        return sum;
+    }
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    protected int hashSum() {
+        return sum;
+    }
+
+    /**
+     * Helper for join
+     * 
+     * Gets the number of black Nodes on every
+     * path from this one down to an EmptyRBT,
+     * counting this one
+     * 
+     * @return      <code>int</code> the black height
+     */
+    int blackHeight() {
+        return blackHeight;
+    }
+
+    /**
+     * Overrides the equals method. Checks if an
+     * object is equal to this FMap
+     * 
+     * @param o     the given set object
+     * @return      <code>true</code> the two objects
+     *              are the same;
+     *              <code>false</code> otherwise.
+     */
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (o instanceof FMap) {
+            @SuppressWarnings("unchecked")
+            FMap<K, V> q = (FMap<K, V>) o;
+
+            // Both hashCodes are cached, so this
+            // check costs nothing and turns away
+            // most maps of the same size
+            if (q.size() != this.size() ||
+                    q.hashCode() != this.hashCode()) {
+                return false;
+            } else if (q instanceof Node && this.comparator() != null &&
+                    this.comparator().equals(((Node<K, V>) q).comparator())) {
+                return TreeCursor.sameEntries(this, (Node<K, V>) q);
+            } else {
+                Iterator<Map.Entry<K, V>> i = this.entries();
+
+                while (i.hasNext()) {
+                    Map.Entry<K, V> e = i.next();
+
+                    if (!q.containsKey(e.getKey())) {
+                        return false;
+                    } else {
+                        if (!q.get(e.getKey()).equals(e.getValue())) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys from this
+     * to the given ArrayList<K>
+     * 
+     * @param a     the given ArrayList<K> that
+     *              the keys get added to
+     *              by recursion
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> with
+     *              the keys
+     */
+    protected ArrayList<K> addKeys(ArrayList<K> a) {
+        throw new RuntimeException("addKeys: Unsupported" +
+        		"for Node");
+    }
+    
+    /**
+     * Visits a class without modifying it, uses
+     * double dispatch to do something new without
+     * making changes
+     * 
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>
+     */
+    public FMap<K, V> accept(Visitor<K, V> visitor) {
+
+        // The keys do not change, so the tree keeps
+        // its shape and colors instead of being
+        // built again one include at a time
+        return this.mapValues(visitor);
+    }
+
+    /**
+     * Does the same as accept, but splits the left
+     * and right subtrees of large trees across the
+     * threads of the common ForkJoinPool. The visitor
+     * can be called from several threads at once and
+     * in any order of the keys
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>
+     */
+    public FMap<K, V> acceptParallel(Visitor<K, V> visitor) {
+        return ForkJoinPool.commonPool().invoke(
+                new AcceptTask<K, V>(this, visitor));
+    }
+
+    /**
+     * Helper for accept
+     * 
+     * Creates a tree of the same shape and colors
+     * with each value replaced by what the visitor
+     * returns for it
+     * 
+     * @param visitor   the visitor
+     * @return          <code>RBTree<K,V></code>
+     *                  the new RBTree<K,V>
+     */
+    protected RBTree<K, V> mapValues(Visitor<K, V> visitor) {
+        RBTree<K, V> l = this.left.mapValues(visitor);
+        V v = visitor.visit(k0, v0);
+        RBTree<K, V> r = this.right.mapValues(visitor);
+
+        return this.copy(k0, v, l, r, this.red);
+    }
+    
+    /**
+     * Helper for include
+     * 
+     * Balances the given RBTree<K,V>
+     * 
+     * @param RBT   the given RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              balances the RBT<K,V> to make
+     *              sure two red nodes are not
+     *              connected
+     */
+    protected RBTree<K,V> balance(Node<K,V> RBT) {
+        if(this.getLeft().isEmpty() &&
+                this.getRight().isEmpty()){
+            return RBT;
+        } else if (RBT.getLeft().red &&
+                // Short circuits if the first is incorrect, 
+                // if it is empty the color is black
+                RBT.getLeft().getLeft().red){
+            return RBT.LL();
+        } else if (RBT.getRight().red &&
+                RBT.getRight().getRight().red){
+            return RBT.RR();
+        } else if (RBT.getLeft().red &&
+                RBT.getLeft().getRight().red){
+            return RBT.LR();
+        } else if (RBT.getRight().red &&
+                RBT.getRight().getLeft().red){
+            return RBT.RL();
+        } else {
+            // Doesn't need to be balanced
+            return RBT;
+        }
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the left of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the left
+     */
+    protected RBTree<K,V> getLeft() {
+        return this.left;
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the right of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the right
+     */
+    protected RBTree<K,V> getRight() {
+        return this.right;
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the key of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the key
+     */
+    protected K getKey() {
+        return this.k0;
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Gets the value of the RBTree<K,V>
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the value
+     */
+    protected V getValue() {
+        return this.v0;
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Creates a new RBTree<K,V> were
+     * two red nodes are not connected.
+     * In this case, the direction left,
+     * left connects two red nodes
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the fixed RBTree<K,V>
+     */
+    protected RBTree<K,V> LL() {
+        RBTree<K,V> x = this.getLeft().getLeft();
+        RBTree<K,V> y = this.getLeft();
+        RBTree<K,V> z = this;
+        
+        RBTree<K,V> a = this.getLeft().getLeft().getLeft();
+        RBTree<K,V> b = this.getLeft().getLeft().getRight();
+        RBTree<K,V> c = this.getLeft().getRight();
+        RBTree<K, V> d = this.getRight();
+
+        return this.formBalanced(x, y, z, a, b, c, d);
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Creates a new RBTree<K,V> were
+     * two red nodes are not connected.
+     * In this case, the direction right,
+     * right connects two red nodes
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the fixed RBTree<K,V>
+     */
+    protected RBTree<K,V> RR() {
+        RBTree<K,V> x = this;
+        RBTree<K,V> y = this.getRight();
+        RBTree<K,V> z = this.getRight().getRight();
+        
+        RBTree<K,V> a = this.getLeft();
+        RBTree<K,V> b = this.getRight().getLeft();
+        RBTree<K,V> c = this.getRight().getRight().getLeft();
+        RBTree<K,V> d = this.getRight().getRight().getRight();
+
+        return this.formBalanced(x, y, z, a, b, c, d);
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Creates a new RBTree<K,V> were
+     * two red nodes are not connected.
+     * In this case, the direction left,
+     * right connects two red nodes
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the fixed RBTree<K,V>
+     */
+    protected RBTree<K,V> LR() {
+        RBTree<K,V> x = this.getLeft();
+        RBTree<K,V> y = this.getLeft().getRight();
+        RBTree<K,V> z = this;
+        
+        RBTree<K,V> a = this.getLeft().getLeft();
+        RBTree<K,V> b = this.getLeft().getRight().getLeft();
+        RBTree<K,V> c = this.getLeft().getRight().getRight();
+        RBTree<K,V> d = this.getRight();
+
+        return this.formBalanced(x, y, z, a, b, c, d);
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Creates a new RBTree<K,V> were
+     * two red nodes are not connected.
+     * In this case, the direction right,
+     * left connects two red nodes
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the fixed RBTree<K,V>
+     */
+    protected RBTree<K,V> RL() {
+        RBTree<K,V> x = this;
+        RBTree<K,V> y = this.getRight().getLeft();
+        RBTree<K,V> z = this.getRight();
+        
+        RBTree<K,V> a = this.getLeft();
+        RBTree<K,V> b = this.getRight().getLeft().getLeft();
+        RBTree<K,V> c = this.getRight().getLeft().getRight();
+        RBTree<K,V> d = this.getRight().getRight();
+        
+        return this.formBalanced(x, y, z, a, b, c, d);
+    }
+    
+    /**
+     * Helper for balance
+     * 
+     * Creates a balanced tree where
+     * two red nodes are not next to
+     * each other
+     * 
+     * @param x     x RBTree<K,V>
+     * @param y     y RBTree<K,V>
+     * @param z     z RBTree<K,V>
+     * @param a     a RBTree<K,V>
+     * @param b     b RBTree<K,V>
+     * @param c     c RBTree<K,V>
+     * @param d     d RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the fixed RBTree<K,V>
+     */
+    protected RBTree<K,V> formBalanced(
+            RBTree<K,V> x, RBTree<K,V> y,
+            RBTree<K,V> z, RBTree<K,V> a,
+            RBTree<K,V> b, RBTree<K,V> c,
+            RBTree<K,V> d) {
+        
+        RBTree<K, V> l = new Node<K, V>(
+                x.getKey(), 
+                x.getValue(), 
+                a, 
+                b,
+                false);
+        RBTree<K, V> r = new Node<K, V>(
+                z.getKey(), 
+                z.getValue(), 
+                c, 
+                d,
+                false);
+        
+        // the top takes the place of this node,
+        // so it is a RootNode<K,V> at the root
+        return this.copy(
+                y.getKey(), 
+                y.getValue(), 
+                l, 
+                r,
+                true);
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    protected void parts(FMap.Footprint f) {
+        f.add(left);
+        f.add(right);
+    }
+
+}
+
+/**
+ * Represents the Node<K,V> at the root of an RBTree<K,V>.
+ * Only the root keeps the Comparator<K>, the Nodes
+ * below it get it passed down from here
+ */
+class RootNode<K, V> extends Node<K, V> {
+
+    Comparator<K> comparator; // the given comparator
+
+    /**
+     * The constructor for the
+     * concrete class RootNode
+     * 
+     * @param k0            the given key
+     * @param v0            the given value
+     * @param left          the left node
+     * @param right         the right node
+     * @param red           true if the node is red
+     * @param comparator    the given comparator
+     */
+    RootNode(K k0, V v0, RBTree<K, V> left, RBTree<K, V> right,
+            boolean red, Comparator<K> comparator) {
+        super(k0, v0, left, right, red);
+        this.comparator = comparator;
+    }
+
+    /**
+     * Gets the Comparator<K> of the tree. Only
+     * the root and the EmptyRBT<K,V> keep it
+     * 
+     * @return      <code>Comparator<K></code>
+     *              the Comparator<K> of the tree
+     */
+    public Comparator<K> comparator() {
+        return comparator;
+    }
+
+    /**
+     * Helper for include
+     * 
+     * Creates a Node<K,V> in the place of this
+     * one, so the root stays a RootNode<K,V>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param l     the left RBTree<K,V>
+     * @param r     the right RBTree<K,V>
+     * @param red   true if the node is red
+     * @return      <code>Node<K,V></code>
+     *              the new RootNode<K,V>
+     */
+    protected Node<K, V> copy(K k, V v, RBTree<K, V> l, RBTree<K, V> r,
+            boolean red) {
+        return new RootNode<K, V>(k, v, l, r, red, comparator);
+    }
+
+}
+
+/**
+ * Represents the work of acceptParallel on one subtree.
+ * Subtrees above the threshold fork their left half
+ * and map the right half on the current thread
+ */
+class AcceptTask<K, V> extends RecursiveTask<RBTree<K, V>> {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int THRESHOLD = 1 << 12; // the largest subtree mapped serially
+
+    Node<K, V> node; // the root of the subtree
+    Visitor<K, V> visitor; // the visitor
+
+    /**
+     * Constructor for the class AcceptTask
+     * 
+     * @param node      the root of the subtree
+     * @param visitor   the visitor
+     */
+    AcceptTask(Node<K, V> node, Visitor<K, V> visitor) {
+        this.node = node;
+        this.visitor = visitor;
+    }
+
+    /**
+     * Maps the values of the subtree
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the new subtree
+     */
+    protected RBTree<K, V> compute() {
+        if (node.size() <= THRESHOLD) {
+            return node.mapValues(visitor);
+        }
+
+        // Both children of a subtree this large
+        // are Nodes, since the tree is balanced
+        AcceptTask<K, V> left =
+                new AcceptTask<K, V>((Node<K, V>) node.left, visitor);
+        left.fork();
+
+        RBTree<K, V> r =
+                new AcceptTask<K, V>((Node<K, V>) node.right, visitor).compute();
+        V v = visitor.visit(node.k0, node.v0);
+
+        return node.copy(node.k0, v, left.join(), r, node.red);
+    }
+}
+
+/**
+ * Represents a view of the keys of an RBTree<K,V> between
+ * two bounds. Nothing is copied, every operation finds
+ * its keys in the tree, and including or removing keys
+ * creates a view of the new tree with the same bounds
+ */
+class SubMap<K, V> extends FMap.SortedFMap<K, V> {
+
+    RBTree<K, V> tree; // the whole tree
+    K lo; // the lower bound, or null if there is none
+    boolean loInclusive; // true if lo itself is in the view
+    K hi; // the upper bound, or null if there is none
+    boolean hiInclusive; // true if hi itself is in the view
+    int hash; // the hash code, once it is counted
+    boolean hashed; // true once the hash code is counted
+
+    /**
+     * Constructor for the class SubMap
+     * 
+     * @param tree          the whole tree
+     * @param lo            the lower bound, or null
+     * @param loInclusive   true if lo itself is in the view
+     * @param hi            the upper bound, or null
+     * @param hiInclusive   true if hi itself is in the view
+     */
+    SubMap(RBTree<K, V> tree, K lo, boolean loInclusive,
+            K hi, boolean hiInclusive) {
+        this.tree = tree;
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+    }
+
+    /**
+     * Checks if k is below the lower bound
+     * 
+     * @param k     the given key
+     * @return      <code>true</code> if k is too low;
+     *              <code>false</code> otherwise.
+     */
+    boolean tooLow(K k) {
+        if (lo == null) {
+            return false;
+        }
+        int r = tree.comparator().compare(k, lo);
+
+        return r < 0 || (r == 0 && !loInclusive);
+    }
+
+    /**
+     * Checks if k is above the upper bound
+     * 
+     * @param k     the given key
+     * @return      <code>true</code> if k is too high;
+     *              <code>false</code> otherwise.
+     */
+    boolean tooHigh(K k) {
+        if (hi == null) {
+            return false;
+        }
+        int r = tree.comparator().compare(k, hi);
+
+        return r > 0 || (r == 0 && !hiInclusive);
+    }
+
+    /**
+     * Checks if k is between the bounds
+     * 
+     * @param k     the given key
+     * @return      <code>true</code> if k is in range;
+     *              <code>false</code> otherwise.
+     */
+    boolean inRange(K k) {
+        return !this.tooLow(k) && !this.tooHigh(k);
+    }
+
+    /**
+     * Creates a view of the tree with the key k
+     * mapped to the value v
+     * 
+     * @param k     the key, which must be in range
+     * @param v     the value
+     * @return      <code>SubMap<K,V></code>
+     *              the view of the new tree
+     */
+    public SubMap<K, V> include(K k, V v) {
+        if (!this.inRange(k)) {
+            throw new RuntimeException("include: the key is out of range");
+        }
+        return new SubMap<K, V>(tree.include(k, v),
+                lo, loInclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Creates a view of the tree without the key k
+     * 
+     * @param k     the key
+     * @return      <code>SubMap<K,V></code>
+     *              the view of the new tree, or
+     *              this if k is not in the view
+     */
+    public SubMap<K, V> without(K k) {
+        if (!this.containsKey(k)) {
+            return this;
+        }
+        return new SubMap<K, V>(tree.without(k),
+                lo, loInclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Gets the Comparator<K> the keys are kept in
+     * 
+     * @return      <code>Comparator<K></code>
+     *              the Comparator<K> of the tree
+     */
+    public Comparator<K> comparator() {
+        return tree.comparator();
+    }
+
+    /**
+     * Helper for the navigation methods
+     * 
+     * Finds the node of the largest key in the view
+     * that is less than k, or equal to it if inclusive
+     * 
+     * @param k             the given key
+     * @param inclusive     true if k itself counts
+     * @return              <code>RBTree<K,V></code>
+     *                      the node, or null if
+     *                      there is none
+     */
+    RBTree<K, V> lowerNode(K k, boolean inclusive) {
+        RBTree<K, V> t;
+
+        if (this.tooHigh(k)) {
+            t = this.lastNode();
+        } else {
+            t = tree.lowerNode(k, inclusive);
+        }
+        return t == null || this.tooLow(t.getKey()) ? null : t;
+    }
+
+    /**
+     * Helper for the navigation methods
+     * 
+     * Finds the node of the smallest key in the view
+     * that is greater than k, or equal to it if inclusive
+     * 
+     * @param k             the given key
+     * @param inclusive     true if k itself counts
+     * @return              <code>RBTree<K,V></code>
+     *                      the node, or null if
+     *                      there is none
+     */
+    RBTree<K, V> higherNode(K k, boolean inclusive) {
+        RBTree<K, V> t;
+
+        if (this.tooLow(k)) {
+            t = this.firstNode();
+        } else {
+            t = tree.higherNode(k, inclusive);
+        }
+        return t == null || this.tooHigh(t.getKey()) ? null : t;
+    }
+
+    /**
+     * Helper for the navigation methods
+     * 
+     * Finds the node of the smallest key in the view
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the node, or null if the
+     *              view is empty
+     */
+    RBTree<K, V> firstNode() {
+        RBTree<K, V> t = lo == null ? tree.firstNode() :
+            tree.higherNode(lo, loInclusive);
+
+        return t == null || this.tooHigh(t.getKey()) ? null : t;
+    }
+
+    /**
+     * Helper for the navigation methods
+     * 
+     * Finds the node of the largest key in the view
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the node, or null if the
+     *              view is empty
+     */
+    RBTree<K, V> lastNode() {
+        RBTree<K, V> t = hi == null ? tree.lastNode() :
+            tree.lowerNode(hi, hiInclusive);
+
+        return t == null || this.tooLow(t.getKey()) ? null : t;
+    }
+
+    /**
+     * Helper for subMap, headMap and tailMap
+     * 
+     * Creates a view of the keys of this view
+     * between lo and hi, a null bound keeps the
+     * bound of this view
+     * 
+     * @param lo            the lower bound, or null
+     * @param loInclusive   true if lo itself is in the view
+     * @param hi            the upper bound, or null
+     * @param hiInclusive   true if hi itself is in the view
+     * @return              <code>SortedFMap<K,V></code>
+     *                      the view
+     */
+    protected FMap.SortedFMap<K, V> range(K lo, boolean loInclusive,
+            K hi, boolean hiInclusive) {
+        if (lo == null || this.tooLow(lo)) {
+            lo = this.lo;
+            loInclusive = this.loInclusive;
+        }
+        if (hi == null || this.tooHigh(hi)) {
+            hi = this.hi;
+            hiInclusive = this.hiInclusive;
+        }
+        return new SubMap<K, V>(tree, lo, loInclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Helper for iterator and entries
+     * 
+     * Creates an iterator over the nodes of the view
+     * 
+     * @return      <code>TreeIterator<K,V></code>
+     *              the created iterator
+     */
+    TreeIterator<K, V> nodes() {
+        return new TreeRangeIterator<K, V>(tree, lo, loInclusive,
+                hi, hiInclusive, tree.comparator());
+    }
+
+    /**
+     * Creates an iterator over the keys of the
+     * view, in the order of the tree
+     * 
+     * @return      <code>Iterator<K></code>
+     *              the created iterator
+     */
+    public Iterator<K> iterator() {
+        return this.nodes();
+    }
+
+    /**
+     * Creates an iterator over the keys of the
+     * view, in the order of the given Comparator<K>
+     * 
+     * @param c     the given Comparator<K>
+     * @return      <code>Iterator<K></code>
+     *              the created iterator
+     */
+    public Iterator<K> iterator(Comparator<K> c) {
+        if (c == tree.comparator() || c.equals(tree.comparator())) {
+            return this.iterator();
+        }
+        ArrayList<K> a = new ArrayList<K>();
+
+        this.addKeys(a);
+        Collections.sort(a, c);
+        return new KeyIterator<K>(a);
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys of the view to the ArrayList<K> a
+     * 
+     * @param a     the given ArrayList<K>
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> a
+     */
+    protected ArrayList<K> addKeys(ArrayList<K> a) {
+        Iterator<K> i = this.iterator();
+
+        while (i.hasNext()) {
+            a.add(i.next());
+        }
+        return a;
+    }
+
+    /**
+     * Checks if the view is empty
+     * 
+     * @return      <code>true</code> if no key of
+     *              the tree is in range;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return this.firstNode() == null;
+    }
+
+    /**
+     * Gets the number of keys in the view, from
+     * the ranks of its bounds in the tree
+     * 
+     * @return      <code>int</code> the size
+     */
+    public int size() {
+        if (hi == null) {
+            return tree.size() - this.before();
+        }
+        return Math.max(tree.countBelow(hi, hiInclusive) - this.before(), 0);
+    }
+
+    /**
+     * Helper for size, countBelow and nodeAt
+     * 
+     * Counts the keys of the tree below the view
+     * 
+     * @return      <code>int</code> the count
+     */
+    int before() {
+        return lo == null ? 0 : tree.countBelow(lo, !loInclusive);
+    }
+
+    /**
+     * Helper for rank and countInRange
+     * 
+     * Counts the keys of the view less than k,
+     * or less than or equal to it if inclusive
+     * 
+     * @param k             the given key
+     * @param inclusive     true if k itself counts
+     * @return              <code>int</code> the count
+     */
+    int countBelow(K k, boolean inclusive) {
+        if (this.tooHigh(k)) {
+            return this.size();
+        }
+        return Math.max(tree.countBelow(k, inclusive) - this.before(), 0);
+    }
+
+    /**
+     * Helper for select
+     * 
+     * Finds the node of the key of the view
+     * with i keys of the view before it
+     * 
+     * @param i     the index, at least 0 and
+     *              less than the size
+     * @return      <code>RBTree<K,V></code>
+     *              the node
+     */
+    RBTree<K, V> nodeAt(int i) {
+        return tree.nodeAt(this.before() + i);
+    }
+
+    /**
+     * Helper for union, intersect and difference
+     * 
+     * Cuts the keys of the view out of the tree by
+     * splitting it at the bounds, which costs
+     * O(log n) instead of copying the view
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the tree of the view
+     */
+    RBTree<K, V> tree() {
+        Comparator<K> c = tree.comparator();
+        RBTree<K, V> t = Node.plain(tree);
+
+        if (lo != null) {
+            Split<K, V> s = Node.split(t, lo, c);
+
+            t = s.right;
+            if (s.node != null && loInclusive) {
+                t = Node.join(Node.leaf(t), s.node.getKey(),
+                        s.node.getValue(), t);
+            }
+        }
+        if (hi != null) {
+            Split<K, V> s = Node.split(t, hi, c);
+
+            t = s.left;
+            if (s.node != null && hiInclusive) {
+                t = Node.join(t, s.node.getKey(), s.node.getValue(),
+                        Node.leaf(t));
+            }
+        }
+        return Node.asRoot(t, c);
+    }
+
+    /**
+     * Checks if the view contains the key k
+     * 
+     * @param k     the K being checked
+     * @return      <code>true</code> if k is
+     *              in the view;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(K k) {
+        return this.inRange(k) && tree.containsKey(k);
+    }
+
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(K k) {
+        if (!this.inRange(k)) {
+            throw new RuntimeException
+            ("The key value does not exist-RBT");
+        }
+        return tree.get(k);
+    }
+
+    /**
+     * Creates an iterator over the keys and values
+     * of the view, in the order of the tree
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public Iterator<Map.Entry<K, V>> entries() {
+        return new TreeEntryIterator<K, V>(this.nodes());
+    }
+
+    /**
+     * Creates a Spliterator over the keys of the
+     * view, in the order of the tree. It covers the
+     * ranks of the view in the whole tree, so it
+     * splits at the boundaries of subtrees
+     * 
+     * @return      <code>Spliterator<K></code>
+     *              the created Spliterator
+     */
+    public Spliterator<K> spliterator() {
+        int i = this.before();
+
+        return new TreeSpliterator<K, V, K>(tree, i, i + this.size(),
+                t -> t.getKey(), tree.comparator());
+    }
+
+    /**
+     * Creates a Spliterator over the keys and values
+     * of the view, in the order of the tree, that
+     * splits at the boundaries of subtrees
+     * 
+     * @return      <code>Spliterator<Map.Entry<K,V>></code>
+     *              the created Spliterator
+     */
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        int i = this.before();
+
+        return new TreeSpliterator<K, V, Map.Entry<K, V>>(tree, i,
+                i + this.size(),
+                t -> new AbstractMap.SimpleImmutableEntry<K, V>(
+                        t.getKey(), t.getValue()),
+                Map.Entry.comparingByKey(tree.comparator()));
+    }
+
+    /**
+     * Calls f with every key of the view and the
+     * value of that key, in the order of the tree
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        TreeIterator<K, V> i = this.nodes();
+
+        while (i.hasNext()) {
+            RBTree<K, V> t = i.nextNode();
+
+            f.accept(t.getKey(), t.getValue());
+        }
+    }
+
+    /**
+     * Overrides the hashCode method, it is the
+     * same as for any FMap<K,V> with the same
+     * keys and values. It is counted the first
+     * time, and the view keeps it since it
+     * cannot change
+     * 
+     * @return      <code>int</code> the hash code
+     */
+    public int hashCode() {
+        if (!hashed) {
+            int n = 0;
+            int sum = 0;
+            Iterator<Map.Entry<K, V>> i = this.entries();
+
+            while (i.hasNext()) {
+                Map.Entry<K, V> e = i.next();
+
+                n++;
+                sum += FMap.entryHash(e.getKey(), e.getValue());
+            }
+            hash = sum;
+            hashed = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Overrides the equals method. Checks if an
+     * object is equal to this FMap
+     * 
+     * @param o     the given set object
+     * @return      <code>true</code> the two objects
+     *              are the same;
+     *              <code>false</code> otherwise.
+     */
+    public boolean equals(Object o) {
+        if (o instanceof FMap) {
+            @SuppressWarnings("unchecked")
+            FMap<K, V> q = (FMap<K, V>) o;
+
+            if (q.size() == this.size()) {
+                Iterator<Map.Entry<K, V>> i = this.entries();
+
+                while (i.hasNext()) {
+                    Map.Entry<K, V> e = i.next();
+
+                    if (!q.containsKey(e.getKey())) {
+                        return false;
+                    } else {
+                        if (!q.get(e.getKey()).equals(e.getValue())) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            } else {
+                return false;
+            }
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Visits a class without modifying it, uses
+     * double dispatch to do something new without
+     * making changes
+     * 
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>, a new
+     *                  tree with just the keys
+     *                  of the view
+     */
+    public FMap<K, V> accept(Visitor<K, V> visitor) {
+        ArrayList<Map.Entry<K, V>> a = new ArrayList<Map.Entry<K, V>>();
+        TreeIterator<K, V> i = this.nodes();
+
+        while (i.hasNext()) {
+            RBTree<K, V> t = i.nextNode();
+
+            a.add(new AbstractMap.SimpleImmutableEntry<K, V>(t.getKey(),
+                    visitor.visit(t.getKey(), t.getValue())));
+        }
+        return FMap.fromSorted(tree.comparator(), a);
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    protected void parts(FMap.Footprint f) {
+        f.add(tree);
+        f.share(tree);
+    }
+}
+
+/**
+ * Represents a tree split around a key: the keys less
+ * than it, the node of the key if the tree had it, and
+ * the keys greater than it
+ */
+class Split<K, V> {
+
+    RBTree<K, V> left; // the smaller keys
+    RBTree<K, V> node; // the node of the key, or null
+    RBTree<K, V> right; // the greater keys
+
+    /**
+     * Constructor for the class Split
+     * 
+     * @param left      the smaller keys
+     * @param node      the node of the key, or null
+     * @param right     the greater keys
+     */
+    Split(RBTree<K, V> left, RBTree<K, V> node, RBTree<K, V> right) {
+        this.left = left;
+        this.node = node;
+        this.right = right;
+    }
+}
+
+/**
+ * Represents a union, intersection or difference of two
+ * trees. The second tree is split around the key at the
+ * top of the first, the halves are combined recursively
+ * and joined back around that key. Large halves fork
+ * onto the common ForkJoinPool
+ */
+class SetTask<K, V> extends RecursiveTask<RBTree<K, V>> {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int UNION = 0; // the keys of either tree
+    static final int INTERSECT = 1; // the keys of both trees
+    static final int DIFFERENCE = 2; // the keys of a but not b
+    static final int THRESHOLD = AcceptTask.THRESHOLD; // the largest pair of trees merged serially
+
+    int op; // UNION, INTERSECT or DIFFERENCE
+    RBTree<K, V> a; // the first tree
+    RBTree<K, V> b; // the second tree
+    BiFunction<? super V, ? super V, ? extends V> merge; // combines the values of a shared key
+    Comparator<K> comparator; // the Comparator<K> of both trees
+
+    /**
+     * Constructor for the class SetTask
+     * 
+     * @param op            UNION, INTERSECT or DIFFERENCE
+     * @param a             the first tree
+     * @param b             the second tree
+     * @param merge         combines the values of a key
+     *                      in both trees, first a then b
+     * @param comparator    the Comparator<K> of both trees
+     */
+    SetTask(int op, RBTree<K, V> a, RBTree<K, V> b,
+            BiFunction<? super V, ? super V, ? extends V> merge,
+            Comparator<K> comparator) {
+        this.op = op;
+        this.a = a;
+        this.b = b;
+        this.merge = merge;
+        this.comparator = comparator;
+    }
+
+    /**
+     * Combines the two whole trees
+     * 
+     * @param op            UNION, INTERSECT or DIFFERENCE
+     * @param a             the first tree
+     * @param b             the second tree
+     * @param merge         combines the values of a key
+     *                      in both trees, first a then b
+     * @param comparator    the Comparator<K> of both trees
+     * @return              <code>RBTree<K,V></code>
+     *                      the combined tree
+     */
+    static <K, V> RBTree<K, V> run(int op, RBTree<K, V> a, RBTree<K, V> b,
+            BiFunction<? super V, ? super V, ? extends V> merge,
+            Comparator<K> comparator) {
+        SetTask<K, V> task = new SetTask<K, V>(op, Node.plain(a),
+                Node.plain(b), merge, comparator);
+        RBTree<K, V> t;
+
+        if (a.size() + b.size() > THRESHOLD) {
+            t = ForkJoinPool.commonPool().invoke(task);
+        } else {
+            t = task.compute();
+        }
+        return Node.asRoot(t, comparator);
+    }
+
+    /**
+     * Combines the two trees of this task
+     * 
+     * @return      <code>RBTree<K,V></code>
+     *              the combined tree
+     */
+    protected RBTree<K, V> compute() {
+        if (a.isEmpty()) {
+            return op == UNION ? b : a;
+        } else if (b.isEmpty()) {
+            return op == INTERSECT ? b : a;
+        } else if (op == DIFFERENCE && a == b) {
+            // a subtree both versions still share
+            return Node.leaf(b);
+        }
+
+        Split<K, V> s = Node.split(b, a.getKey(), comparator);
+        SetTask<K, V> left = new SetTask<K, V>(op, a.getLeft(), s.left,
+                merge, comparator);
+        SetTask<K, V> right = new SetTask<K, V>(op, a.getRight(), s.right,
+                merge, comparator);
+        RBTree<K, V> l;
+        RBTree<K, V> r;
+
+        if (a.size() + b.size() > THRESHOLD) {
+            left.fork();
+            r = right.compute();
+            l = left.join();
+        } else {
+            l = left.compute();
+            r = right.compute();
+        }
+
+        if (s.node == null) {
+            if (op == INTERSECT) {
+                return Node.join2(l, r);
+            }
+            return Node.join(l, a.getKey(), a.getValue(), r);
+        } else if (op == DIFFERENCE) {
+            return Node.join2(l, r);
+        } else {
+            return Node.join(l, a.getKey(),
+                    merge.apply(a.getValue(), s.node.getValue()), r);
+        }
+    }
+}
+
+/**
+ * Represents a batch of includes into an RBTree<K,V>.
+ * The Nodes made during the batch are owned by it and
+ * are changed in place by later puts, only Nodes that
+ * are shared with the original tree get copied
+ */
+class TransientRBT<K, V> extends FMap.TransientFMap<K, V> {
+
+    RBTree<K, V> root; // the tree so far
+    Comparator<K> comparator; // the Comparator<K> of the tree
+    Set<Node<K, V>> owned; // the Nodes made by this batch
+
+    /**
+     * Constructor for TransientRBT<K,V>
+     * 
+     * @param root  the RBTree<K,V> to start with
+     */
+    TransientRBT(RBTree<K, V> root) {
+        super(root);
+        this.root = root;
+        this.comparator = root.comparator();
+        this.owned = Collections.newSetFromMap(
+                new IdentityHashMap<Node<K, V>, Boolean>());
+    }
+
+    /**
+     * Maps the key k to the value v
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>TransientFMap<K,V></code>
+     *              this TransientFMap<K,V>
+     */
+    public FMap.TransientFMap<K, V> put(K k, V v) {
+        this.ensureEditable();
+
+        if (root.isEmpty()) {
+            root = this.own(new Node<K, V>(k, v, root, root, true));
+        } else {
+            root = this.put((Node<K, V>) root, k, v);
+        }
+        return this;
+    }
+
+    /**
+     * Ends the batch. The Nodes of the batch
+     * are no longer owned, so the tree can
+     * not change anymore
+     * 
+     * @return      <code>FMap<K,V></code>
+     *              the FMap<K,V> with every
+     *              key that was put
+     */
+    public FMap<K, V> persistent() {
+        this.ensureEditable();
+        done = true;
+        owned = null;
+        root = Node.asRoot(root, comparator);
+        map = root;
+        return root;
+    }
+
+    /**
+     * Helper for put
+     * 
+     * Adds the Node<K,V> to the owned Nodes
+     * 
+     * @param n     the given Node<K,V>
+     * @return      <code>Node<K,V></code>
+     *              the same Node<K,V>
+     */
+    Node<K, V> own(Node<K, V> n) {
+        owned.add(n);
+        return n;
+    }
+
+    /**
+     * Helper for put
+     * 
+     * Gets a Node<K,V> that may be changed in
+     * place, copying the given one if it is
+     * shared with the original tree
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>Node<K,V></code>
+     *              the owned Node<K,V>
+     */
+    Node<K, V> editable(RBTree<K, V> t) {
+        Node<K, V> n = (Node<K, V>) t;
+
+        if (owned.contains(n)) {
+            return n;
+        } else {
+            return this.own(new Node<K, V>(n.k0, n.v0, n.left, n.right,
+                    n.red));
+        }
+    }
+
+    /**
+     * Helper for put
+     * 
+     * Puts the key into the subtree t, the same way
+     * Node.include does but changing owned Nodes
+     * 
+     * @param t     the given RBTree<K,V>
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>RBTree<K,V></code>
+     *              the subtree with the key
+     */
+    RBTree<K, V> put(RBTree<K, V> t, K k, V v) {
+        if (t.isEmpty()) {
+            return this.own(new Node<K, V>(k, v, t, t, true));
+        }
+
+        Node<K, V> n = this.editable(t);
+        int r = comparator.compare(k, n.k0);
+
+        if (r == 0) {
+            n.k0 = k;
+            n.v0 = v;
+        } else if (r < 0) {
+            n.left = this.put(n.left, k, v);
+        } else {
+            n.right = this.put(n.right, k, v);
+        }
+        this.update(n);
+
+        return this.balance(n);
+    }
+
+    /**
+     * Helper for put
+     * 
+     * Recomputes the size and sum of a
+     * Node<K,V> after its children changed
+     * 
+     * @param n     the given Node<K,V>
+     */
+    void update(Node<K, V> n) {
+        n.initSize();
+        n.initSum();
+        n.initBlackHeight();
+    }
+
+    /**
+     * Helper for put
+     * 
+     * Checks if an RBTree<K,V> is a red Node<K,V>
+     * 
+     * @param t     the given RBTree<K,V>
+     * @return      <code>true</code> if t is red;
+     *              <code>false</code> otherwise.
+     */
+    boolean isRed(RBTree<K, V> t) {
+        return t.red;
+    }
+
+    /**
+     * Helper for put
+     * 
+     * Balances the owned Node<K,V> the same way
+     * Node.balance does
+     * 
+     * @param n     the given Node<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the balanced subtree
+     */
+    RBTree<K, V> balance(Node<K, V> n) {
+        RBTree<K, V> l = n.left;
+        RBTree<K, V> r = n.right;
+
+        if (this.isRed(l) && this.isRed(l.getLeft())) {
+            return this.formBalanced(l.getLeft(), l, n,
+                    l.getLeft().getLeft(), l.getLeft().getRight(),
+                    l.getRight(), r);
+        } else if (this.isRed(r) && this.isRed(r.getRight())) {
+            return this.formBalanced(n, r, r.getRight(),
+                    l, r.getLeft(),
+                    r.getRight().getLeft(), r.getRight().getRight());
+        } else if (this.isRed(l) && this.isRed(l.getRight())) {
+            return this.formBalanced(l, l.getRight(), n,
+                    l.getLeft(), l.getRight().getLeft(),
+                    l.getRight().getRight(), r);
+        } else if (this.isRed(r) && this.isRed(r.getLeft())) {
+            return this.formBalanced(n, r.getLeft(), r,
+                    l, r.getLeft().getLeft(),
+                    r.getLeft().getRight(), r.getRight());
+        } else {
+            return n;
+        }
+    }
+
+    /**
+     * Helper for balance
+     * 
+     * Rearranges x, y and z in place into a red
+     * y with the black children x and z
+     * 
+     * @param x     x RBTree<K,V>
+     * @param y     y RBTree<K,V>
+     * @param z     z RBTree<K,V>
+     * @param a     a RBTree<K,V>
+     * @param b     b RBTree<K,V>
+     * @param c     c RBTree<K,V>
+     * @param d     d RBTree<K,V>
+     * @return      <code>RBTree<K,V></code>
+     *              the fixed RBTree<K,V>
+     */
+    RBTree<K, V> formBalanced(
+            RBTree<K, V> x, RBTree<K, V> y,
+            RBTree<K, V> z, RBTree<K, V> a,
+            RBTree<K, V> b, RBTree<K, V> c,
+            RBTree<K, V> d) {
+        Node<K, V> l = this.editable(x);
+        Node<K, V> m = this.editable(y);
+        Node<K, V> r = this.editable(z);
+
+        l.left = a;
+        l.right = b;
+        l.red = false;
+        this.update(l);
+
+        r.left = c;
+        r.right = d;
+        r.red = false;
+        this.update(r);
+
+        m.left = l;
+        m.right = r;
+        m.red = true;
+        this.update(m);
+
+        return m;
+    }
+}
+
+/**
+ * Represents an FMap<K,V> as a hash array mapped trie.
+ * Each level of the trie consumes five bits of the
+ * key's hash, so lookups and includes touch at most
+ * seven nodes and unchanged branches are shared
+ * between versions
+ */
+class HAMT<K, V> extends FMap<K, V> {
+
+    TrieNode<K, V> root; // the root of the trie
+
+    /**
+     * Constructor for HAMT<K,V>
+     * 
+     * @param root  the root of the trie
+     */
+    HAMT(TrieNode<K, V> root) {
+        this.root = root;
+    }
+
+    /**
+     * Spreads the hashCode of the key so the
+     * high bits also take part in the first
+     * levels of the trie
+     * 
+     * @param k     the key
+     * @return      <code>int</code> the hash
+     */
+    static int hash(Object k) {
+        int h = k.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Creates a non-empty HAMT<K,V>
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>HAMT<K,V></code>
+     *              the newly created non-empty
+     *              HAMT<K,V>
+     */
+    public FMap<K, V> include(K k, V v) {
+        return new HAMT<K, V>(root.include(k, v, hash(k), 0));
+    }
+
+    /**
+     * Creates an FMap<K,V> without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @return      <code>FMap<K,V></code>
+     *              the FMap<K,V> without k,
+     *              or this if k is not in it
+     */
+    public FMap<K, V> without(K k) {
+        TrieNode<K, V> t = root.without(k, hash(k), 0);
+
+        if (t == root) {
+            return this;
+        } else if (t == null) {
+            return FMap.hashed();
+        } else {
+            return new HAMT<K, V>(t);
+        }
+    }
+
+
+    /**
+     * Finds what changed from this HAMT<K,V> to other.
+     * If other is also a HAMT<K,V>, both tries are
+     * walked slot by slot and the nodes they share are
+     * stepped over, so the cost follows the size of
+     * the change, not of the map
+     * 
+     * @param other     the newer FMap<K,V>
+     * @return          <code>FMapDiff<K,V></code>
+     *                  the changes from this to other
+     */
+    public FMap.FMapDiff<K, V> diff(FMap<K, V> other) {
+        if (!(other instanceof HAMT)) {
+            return super.diff(other);
+        }
+        FMap.FMapDiff<K, V> d = new FMap.FMapDiff<K, V>();
+
+        TrieNode.diff(root, ((HAMT<K, V>) other).root, 0, d);
+        return d;
+    }
+
+    /**
+     * Creates an KeyIterator from this FMap<K,V>
+     * 
+     * @return      <code>KeyIterator<K></code>
+     *              the created iterator
+     */
+    public Iterator<K> iterator() {
+        ArrayList<K> a = new ArrayList<K>(this.size());
+        root.traverse(a);
+        return new KeyIterator<K>(a);
+    }
+
+    /**
+     * Creates an iterator from this FMap<K,V>
+     * 
+     * @param c     the given Comparator<T>
+     * @return      <code>KeyIterator<K></code>
+     *              the created iterator, in
+     *              sorted order
+     */
+    public Iterator<K> iterator(Comparator<K> c) {
+        ArrayList<K> a = new ArrayList<K>(this.size());
+        root.traverse(a);
+        Collections.sort(a, c);
+        return new KeyIterator<K>(a);
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys from this
+     * to the given ArrayList<K>
+     * 
+     * @param a     the given ArrayList<K> that
+     *              the keys get added to
+     *              by recursion
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> with
+     *              the keys
+     */
+    protected ArrayList<K> addKeys(ArrayList<K> a) {
+        throw new RuntimeException("addKeys: Unsupported" +
+                "for HAMT");
+    }
+
+    /**
+     * Checks if the FMap<K,V> is empty
+     * 
+     * @return      <code>true</code> if the
+     *              FMap is empty;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return root.size() == 0;
+    }
+
+    /**
+     * Gets the size of the FMap<K,V>
+     * 
+     * @return      <code>int</code> returns
+     *              a natural number representing
+     *              the size
+     */
+    public int size() {
+        return root.size();
+    }
+
+    /**
+     * Checks if the FMap<K,V> contains the key k
+     * 
+     * @param k     the K being checked
+     * @return      <code>true</code> if k is
+     *              in the FMap;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(K k) {
+        return root.lookup(k, hash(k), 0) != null;
+    }
+
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(K k) {
+        TrieLeaf<K, V> leaf = root.lookup(k, hash(k), 0);
+
+        if (leaf == null) {
+            throw new RuntimeException
+            ("The key value does not exist - HAMT");
+        }
+        return leaf.v0;
+    }
+
+    /**
+     * Creates an iterator over the keys and
+     * values of this FMap<K,V>, visiting each
+     * key only once
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public Iterator<Map.Entry<K, V>> entries() {
+        final ArrayList<Map.Entry<K, V>> a =
+                new ArrayList<Map.Entry<K, V>>(this.size());
+
+        root.forEach((k, v) ->
+                a.add(new AbstractMap.SimpleImmutableEntry<K, V>(k, v)));
+        return Collections.unmodifiableList(a).iterator();
+    }
+
+    /**
+     * Calls f with every key of this FMap<K,V>
+     * and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        root.forEach(f);
+    }
+
+    /**
+     * Overrides the hashCode method
+     * 
+     * @return      <code>int</code> the hashCode
+     */
+    public int hashCode() {
+        if (this.isEmpty()) {
+            return 0;
+        }
+        return root.hashSum();
+    }
+
+    /**
+     * Overrides the equals method. Checks if an
+     * object is equal to this FMap
+     * 
+     * @param o     the given set object
+     * @return      <code>true</code> the two objects
+     *              are the same;
+     *              <code>false</code> otherwise.
+     */
+    public boolean equals(Object o) {
+        if (o instanceof FMap) {
+            @SuppressWarnings("unchecked")
+            FMap<K, V> q = (FMap<K, V>) o;
+
+            if (q.size() == this.size()) {
+                Iterator<Map.Entry<K, V>> i = this.entries();
+
+                while (i.hasNext()) {
+                    Map.Entry<K, V> e = i.next();
+
+                    if (!q.containsKey(e.getKey())) {
+                        return false;
+                    } else {
+                        if (!q.get(e.getKey()).equals(e.getValue())) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            } else {
+                return false;
+            }
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Visits a class without modifying it, uses
+     * double dispatch to do something new without
+     * making changes
+     * 
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>
+     */
+    public FMap<K, V> accept(Visitor<K, V> visitor) {
+
+        FMap<K, V> m2 = FMap.hashed();
+        Iterator<Map.Entry<K, V>> i = this.entries();
+
+        while (i.hasNext()) {
+            Map.Entry<K, V> e = i.next();
+
+            V v = visitor.visit(e.getKey(), e.getValue());
+            m2 = m2.include(e.getKey(), v);
+
+        }
+        return m2;
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    protected void parts(FMap.Footprint f) {
+        f.add(root);
+    }
+}
+
+/**
+ * Represents a node of a HAMT<K,V>
+ */
+abstract class TrieNode<K, V> {
+
+    /**
+     * Gets the number of keys below this node
+     * 
+     * @return      <code>int</code> the size
+     */
+    abstract int size();
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    abstract int hashSum();
+
+    /**
+     * Finds the leaf holding the key k
+     * 
+     * @param k     the given key
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieLeaf<K,V></code>
+     *              the leaf with the key, or
+     *              null if there is none
+     */
+    abstract TrieLeaf<K, V> lookup(K k, int hash, int shift);
+
+    /**
+     * Creates a new node with the key k mapped
+     * to the value v, sharing everything that
+     * does not change
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieNode<K,V></code>
+     *              the new node
+     */
+    abstract TrieNode<K, V> include(K k, V v, int hash, int shift);
+
+    /**
+     * Creates a new node without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieNode<K,V></code>
+     *              the new node, this if k is
+     *              not below it, or null if
+     *              nothing is left
+     */
+    abstract TrieNode<K, V> without(K k, int hash, int shift);
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys below this node
+     * to the ArrayList<K> a
+     * 
+     * @param a     the given ArrayList<K>
+     */
+    abstract void traverse(ArrayList<K> a);
+
+    /**
+     * Calls f with every key below this
+     * node and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    abstract void forEach(BiConsumer<? super K, ? super V> f);
+
+    /**
+     * Creates the smallest branch holding two nodes
+     * whose hashes are different
+     * 
+     * @param a     the first node
+     * @param ha    the hash of the first node
+     * @param b     the second node
+     * @param hb    the hash of the second node
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieNode<K,V></code>
+     *              the branch with both nodes
+     */
+    static <K, V> TrieNode<K, V> merge(TrieNode<K, V> a, int ha,
+            TrieNode<K, V> b, int hb, int shift) {
+        int fa = (ha >>> shift) & 31;
+        int fb = (hb >>> shift) & 31;
+
+        if (fa == fb) {
+            TrieNode<K, V>[] children = TrieBranch.newArray(1);
+            children[0] = merge(a, ha, b, hb, shift + 5);
+            return new TrieBranch<K, V>(1 << fa, children);
+        }
+
+        TrieNode<K, V>[] children = TrieBranch.newArray(2);
+        children[fa < fb ? 0 : 1] = a;
+        children[fa < fb ? 1 : 0] = b;
+        return new TrieBranch<K, V>((1 << fa) | (1 << fb), children);
+    }
+
+
+    /**
+     * Helper for diff
+     * 
+     * Adds the changes from a to b to the given
+     * FMapDiff<K,V>. Two branches are compared slot
+     * by slot and a child both of them share is
+     * skipped, anything else is compared key by key
+     * 
+     * @param a     the older node
+     * @param b     the newer node
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @param d     the given FMapDiff<K,V>
+     */
+    static <K, V> void diff(TrieNode<K, V> a, TrieNode<K, V> b, int shift,
+            FMap.FMapDiff<K, V> d) {
+        if (a == b) {
+            return;
+        } else if (a instanceof TrieBranch && b instanceof TrieBranch) {
+            TrieBranch<K, V> x = (TrieBranch<K, V>) a;
+            TrieBranch<K, V> y = (TrieBranch<K, V>) b;
+            int i = 0;
+            int j = 0;
+
+            for (int slots = x.bitmap | y.bitmap; slots != 0;
+                    slots &= slots - 1) {
+                int bit = slots & -slots;
+
+                if ((y.bitmap & bit) == 0) {
+                    x.children[i++].forEach((k, v) -> d.recordRemoved(k, v));
+                } else if ((x.bitmap & bit) == 0) {
+                    y.children[j++].forEach((k, v) -> d.recordAdded(k, v));
+                } else {
+                    TrieNode.diff(x.children[i++], y.children[j++],
+                            shift + 5, d);
+                }
+            }
+            return;
+        }
+
+        a.forEach((k, v) -> {
+            TrieLeaf<K, V> leaf = b.lookup(k, HAMT.hash(k), shift);
+
+            if (leaf == null) {
+                d.recordRemoved(k, v);
+            } else if (!v.equals(leaf.v0)) {
+                d.recordChanged(k, v, leaf.v0);
+            }
+        });
+        b.forEach((k, v) -> {
+            if (a.lookup(k, HAMT.hash(k), shift) == null) {
+                d.recordAdded(k, v);
+            }
+        });
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    void parts(FMap.Footprint f) {
+    }
+}
+
+/**
+ * Represents a branch of a HAMT<K,V>. The bitmap
+ * tells which of the 32 slots are used and the
+ * children array only holds the used slots
+ */
+class TrieBranch<K, V> extends TrieNode<K, V> {
+
+    int bitmap; // the used slots
+    TrieNode<K, V>[] children; // the children of the used slots
+    int size; // the size
+    int sum; // the sum of the hashes
+
+    /**
+     * Constructor for TrieBranch<K,V>
+     * 
+     * @param bitmap    the used slots
+     * @param children  the children of the used slots
+     */
+    TrieBranch(int bitmap, TrieNode<K, V>[] children) {
+        this.bitmap = bitmap;
+        this.children = children;
+        this.sum = 0;
+
+        for (TrieNode<K, V> child : children) {
+            this.size += child.size();
+            this.sum += child.hashSum();
+        }
+    }
+
+    /**
+     * Creates the branch used as root of an empty HAMT
+     * 
+     * @return      <code>TrieBranch<K,V></code>
+     *              a branch without children
+     */
+    static <K, V> TrieBranch<K, V> emptyBranch() {
+        return new TrieBranch<K, V>(0, TrieBranch.<K, V>newArray(0));
+    }
+
+    /**
+     * Creates an array of children
+     * 
+     * @param n     the length of the array
+     * @return      <code>TrieNode<K,V>[]</code>
+     *              the new array
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> TrieNode<K, V>[] newArray(int n) {
+        return (TrieNode<K, V>[]) new TrieNode<?, ?>[n];
+    }
+
+    /**
+     * Gets the number of keys below this node
+     * 
+     * @return      <code>int</code> the size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    int hashSum() {
+        return sum;
+    }
+
+    /**
+     * Finds the leaf holding the key k
+     * 
+     * @param k     the given key
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieLeaf<K,V></code>
+     *              the leaf with the key, or
+     *              null if there is none
+     */
+    TrieLeaf<K, V> lookup(K k, int hash, int shift) {
+        int bit = 1 << ((hash >>> shift) & 31);
+
+        if ((bitmap & bit) == 0) {
+            return null;
+        }
+        int i = Integer.bitCount(bitmap & (bit - 1));
+        return children[i].lookup(k, hash, shift + 5);
+    }
+
+    /**
+     * Creates a new node with the key k mapped
+     * to the value v, sharing everything that
+     * does not change
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieNode<K,V></code>
+     *              the new node
+     */
+    TrieNode<K, V> include(K k, V v, int hash, int shift) {
+        int bit = 1 << ((hash >>> shift) & 31);
+        int i = Integer.bitCount(bitmap & (bit - 1));
+
+        if ((bitmap & bit) != 0) {
+            TrieNode<K, V>[] a = children.clone();
+            a[i] = children[i].include(k, v, hash, shift + 5);
+            return new TrieBranch<K, V>(bitmap, a);
+        }
+
+        TrieNode<K, V>[] a = TrieBranch.newArray(children.length + 1);
+        System.arraycopy(children, 0, a, 0, i);
+        a[i] = new TrieLeaf<K, V>(hash, k, v);
+        System.arraycopy(children, i, a, i + 1, children.length - i);
+        return new TrieBranch<K, V>(bitmap | bit, a);
+    }
+
+    /**
+     * Creates a new node without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieNode<K,V></code>
+     *              the new node, this if k is
+     *              not below it, or null if
+     *              nothing is left
+     */
+    TrieNode<K, V> without(K k, int hash, int shift) {
+        int bit = 1 << ((hash >>> shift) & 31);
+
+        if ((bitmap & bit) == 0) {
+            return this;
+        }
+
+        int i = Integer.bitCount(bitmap & (bit - 1));
+        TrieNode<K, V> child = children[i].without(k, hash, shift + 5);
+
+        if (child == children[i]) {
+            return this;
+        } else if (child != null) {
+            if (children.length == 1 && !(child instanceof TrieBranch)) {
+                // a leaf does not need a branch above it
+                return child;
+            }
+            TrieNode<K, V>[] a = children.clone();
+            a[i] = child;
+            return new TrieBranch<K, V>(bitmap, a);
+        } else if (children.length == 1) {
+            return null;
+        } else if (children.length == 2 &&
+                !(children[1 - i] instanceof TrieBranch)) {
+            return children[1 - i];
+        }
+
+        TrieNode<K, V>[] a = TrieBranch.newArray(children.length - 1);
+        System.arraycopy(children, 0, a, 0, i);
+        System.arraycopy(children, i + 1, a, i, children.length - i - 1);
+        return new TrieBranch<K, V>(bitmap & ~bit, a);
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys below this node
+     * to the ArrayList<K> a
+     * 
+     * @param a     the given ArrayList<K>
+     */
+    void traverse(ArrayList<K> a) {
+        for (TrieNode<K, V> child : children) {
+            child.traverse(a);
+        }
+    }
+
+    /**
+     * Calls f with every key below this
+     * node and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    void forEach(BiConsumer<? super K, ? super V> f) {
+        for (TrieNode<K, V> child : children) {
+            child.forEach(f);
+        }
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    void parts(FMap.Footprint f) {
+        f.add(children);
+    }
+}
+
+/**
+ * Represents a single key and value of a HAMT<K,V>
+ */
+class TrieLeaf<K, V> extends TrieNode<K, V> {
+
+    int hash; // the hash of the key
+    K k0; // the given key
+    V v0; // the given value
+    int sum; // the hash of the key and value
+
+    /**
+     * Constructor for TrieLeaf<K,V>
+     * 
+     * @param hash  the hash of the key
+     * @param k0    the given key
+     * @param v0    the given value
+     */
+    TrieLeaf(int hash, K k0, V v0) {
+        this.hash = hash;
+        this.k0 = k0;
+        this.v0 = v0;
+        this.sum = FMap.entryHash(k0, v0);
+    }
+
+    /**
+     * Gets the number of keys below this node
+     * 
+     * @return      <code>int</code> the size
+     */
+    int size() {
+        return 1;
+    }
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    int hashSum() {
+        return sum;
+    }
+
+    /**
+     * Finds the leaf holding the key k
+     * 
+     * @param k     the given key
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieLeaf<K,V></code>
+     *              the leaf with the key, or
+     *              null if there is none
+     */
+    TrieLeaf<K, V> lookup(K k, int hash, int shift) {
+        if (this.hash == hash && k.equals(k0)) {
+            return this;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new node with the key k mapped
+     * to the value v, sharing everything that
+     * does not change
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieNode<K,V></code>
+     *              the new node
+     */
+    TrieNode<K, V> include(K k, V v, int hash, int shift) {
+        TrieLeaf<K, V> leaf = new TrieLeaf<K, V>(hash, k, v);
+
+        if (this.hash != hash) {
+            return TrieNode.merge(this, this.hash, leaf, hash, shift);
+        } else if (k.equals(k0)) {
+            return leaf;
+        } else {
+            TrieLeaf<K, V>[] leaves = TrieCollision.newArray(2);
+            leaves[0] = this;
+            leaves[1] = leaf;
+            return new TrieCollision<K, V>(hash, leaves);
+        }
+    }
+
+    /**
+     * Creates a new node without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieNode<K,V></code>
+     *              the new node, this if k is
+     *              not below it, or null if
+     *              nothing is left
+     */
+    TrieNode<K, V> without(K k, int hash, int shift) {
+        if (this.lookup(k, hash, shift) == null) {
+            return this;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys below this node
+     * to the ArrayList<K> a
+     * 
+     * @param a     the given ArrayList<K>
+     */
+    void traverse(ArrayList<K> a) {
+        a.add(k0);
+    }
+
+    /**
+     * Calls f with every key below this
+     * node and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    void forEach(BiConsumer<? super K, ? super V> f) {
+        f.accept(k0, v0);
+    }
+}
+
+/**
+ * Represents the keys of a HAMT<K,V> whose
+ * hashes are all the same
+ */
+class TrieCollision<K, V> extends TrieNode<K, V> {
+
+    int hash; // the hash shared by the keys
+    TrieLeaf<K, V>[] leaves; // the keys and values
+    int sum; // the sum of the hashes
+
+    /**
+     * Constructor for TrieCollision<K,V>
+     * 
+     * @param hash      the hash shared by the keys
+     * @param leaves    the keys and values
+     */
+    TrieCollision(int hash, TrieLeaf<K, V>[] leaves) {
+        this.hash = hash;
+        this.leaves = leaves;
+        this.sum = 0;
+
+        for (TrieLeaf<K, V> leaf : leaves) {
+            this.sum += leaf.hashSum();
+        }
+    }
+
+    /**
+     * Creates an array of leaves
+     * 
+     * @param n     the length of the array
+     * @return      <code>TrieLeaf<K,V>[]</code>
+     *              the new array
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> TrieLeaf<K, V>[] newArray(int n) {
+        return (TrieLeaf<K, V>[]) new TrieLeaf<?, ?>[n];
+    }
+
+    /**
+     * Gets the number of keys below this node
+     * 
+     * @return      <code>int</code> the size
+     */
+    int size() {
+        return leaves.length;
+    }
+
+    /**
+     * Helper for hashCode
+     * 
+     * Gets the sum of the hashes of the
+     * keys and values, which does not depend
+     * on the order of the keys
+     * 
+     * @return      <code>int</code> the sum
+     */
+    int hashSum() {
+        return sum;
+    }
+
+    /**
+     * Finds the leaf holding the key k
+     * 
+     * @param k     the given key
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieLeaf<K,V></code>
+     *              the leaf with the key, or
+     *              null if there is none
+     */
+    TrieLeaf<K, V> lookup(K k, int hash, int shift) {
+        if (this.hash != hash) {
+            return null;
+        }
+        for (TrieLeaf<K, V> leaf : leaves) {
+            if (k.equals(leaf.k0)) {
+                return leaf;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a new node with the key k mapped
+     * to the value v, sharing everything that
+     * does not change
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieNode<K,V></code>
+     *              the new node
+     */
+    TrieNode<K, V> include(K k, V v, int hash, int shift) {
+        TrieLeaf<K, V> leaf = new TrieLeaf<K, V>(hash, k, v);
+
+        if (this.hash != hash) {
+            return TrieNode.merge(this, this.hash, leaf, hash, shift);
+        }
+        for (int i = 0; i < leaves.length; i++) {
+            if (k.equals(leaves[i].k0)) {
+                TrieLeaf<K, V>[] a = leaves.clone();
+                a[i] = leaf;
+                return new TrieCollision<K, V>(hash, a);
+            }
+        }
+
+        TrieLeaf<K, V>[] a = TrieCollision.newArray(leaves.length + 1);
+        System.arraycopy(leaves, 0, a, 0, leaves.length);
+        a[leaves.length] = leaf;
+        return new TrieCollision<K, V>(hash, a);
+    }
+
+    /**
+     * Creates a new node without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @param hash  the hash of the key
+     * @param shift the number of hash bits
+     *              used by the levels above
+     * @return      <code>TrieNode<K,V></code>
+     *              the new node, this if k is
+     *              not below it, or null if
+     *              nothing is left
+     */
+    TrieNode<K, V> without(K k, int hash, int shift) {
+        if (this.hash != hash) {
+            return this;
+        }
+        for (int i = 0; i < leaves.length; i++) {
+            if (k.equals(leaves[i].k0)) {
+                if (leaves.length == 2) {
+                    return leaves[1 - i];
+                }
+
+                TrieLeaf<K, V>[] a = TrieCollision.newArray(leaves.length - 1);
+                System.arraycopy(leaves, 0, a, 0, i);
+                System.arraycopy(leaves, i + 1, a, i, leaves.length - i - 1);
+                return new TrieCollision<K, V>(hash, a);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys below this node
+     * to the ArrayList<K> a
+     * 
+     * @param a     the given ArrayList<K>
+     */
+    void traverse(ArrayList<K> a) {
+        for (TrieLeaf<K, V> leaf : leaves) {
+            a.add(leaf.k0);
+        }
+    }
+
+    /**
+     * Calls f with every key below this
+     * node and the value of that key
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    void forEach(BiConsumer<? super K, ? super V> f) {
+        for (TrieLeaf<K, V> leaf : leaves) {
+            f.accept(leaf.k0, leaf.v0);
+        }
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    void parts(FMap.Footprint f) {
+        f.add(leaves);
+    }
+}
+
+/**
+ * Represents a sorted FMap<K,V> as a B-tree of wide
+ * nodes. Each node keeps up to width keys in one array,
+ * found by binary search, so a lookup reads a few nodes
+ * instead of one node per comparison. Including or
+ * removing a key copies the nodes on its path, like
+ * the other FMap<K,V>s, and shares all the others
+ */
+class BTree<K, V> extends FMap<K, V> {
+
+    static final int WIDTH = 32; // the default most keys in a node
+
+    BTreeNode<K, V> root; // the root, a leaf without keys if empty
+    Comparator<K> comparator; // the order of the keys
+    int width; // the most keys in a node
+
+    /**
+     * Constructor for BTree<K,V>
+     * 
+     * @param root          the root node
+     * @param comparator    the order of the keys
+     * @param width         the most keys in a node
+     */
+    BTree(BTreeNode<K, V> root, Comparator<K> comparator, int width) {
+        this.root = root;
+        this.comparator = comparator;
+        this.width = width;
+    }
+
+    /**
+     * Creates a BTree<K,V> with the key k mapped
+     * to the value v. A node that fills past the
+     * width splits in two and hands its middle
+     * key up, so the tree only grows at the root
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>FMap<K,V></code>
+     *              the newly created non-empty
+     *              BTree<K,V>
+     */
+    public FMap<K, V> include(K k, V v) {
+        BTreeNode<K, V> t = root.include(k, v, comparator, width);
+
+        if (t.keys.length > width) {
+            int mid = t.keys.length / 2;
+
+            t = new BTreeNode<K, V>(new Object[] {t.keys[mid]},
+                    new Object[] {t.values[mid]},
+                    new Object[] {t.left(mid), t.right(mid)});
+        }
+        return new BTree<K, V>(t, comparator, width);
+    }
+
+    /**
+     * Creates an FMap<K,V> without the key k. A node
+     * left with less than half the width borrows a
+     * key from a neighbour or merges with it, so the
+     * tree only shrinks at the root
+     * 
+     * @param k     the key
+     * @return      <code>FMap<K,V></code>
+     *              the FMap<K,V> without k,
+     *              or this if k is not in it
+     */
+    public FMap<K, V> without(K k) {
+        BTreeNode<K, V> t = root.without(k, comparator, width / 2);
+
+        if (t == root) {
+            return this;
+        } else if (t.keys.length == 0 && !t.isLeaf()) {
+            t = t.child(0);
+        }
+        return new BTree<K, V>(t, comparator, width);
+    }
+
+    /**
+     * Creates an iterator over the keys,
+     * in the order of the Comparator<K>
+     * 
+     * @return      <code>Iterator<K></code>
+     *              the created iterator
+     */
+    public Iterator<K> iterator() {
+        return new BTreeIterator<K, V>(root);
+    }
+
+    /**
+     * Creates an iterator from this FMap<K,V>
+     * 
+     * @param c     the given Comparator<T>
+     * @return      <code>Iterator<K></code>
+     *              the created iterator, in
+     *              sorted order
+     */
+    public Iterator<K> iterator(Comparator<K> c) {
+        if (c == comparator || c.equals(comparator)) {
+            return this.iterator();
+        }
+        ArrayList<K> a = this.addKeys(new ArrayList<K>(this.size()));
+
+        Collections.sort(a, c);
+        return new KeyIterator<K>(a);
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys from this
+     * to the given ArrayList<K>
+     * 
+     * @param a     the given ArrayList<K>
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> with
+     *              the keys
+     */
+    protected ArrayList<K> addKeys(ArrayList<K> a) {
+        root.forEach((k, v) -> a.add(k));
+        return a;
+    }
+
+    /**
+     * Checks if the FMap<K,V> is empty
+     * 
+     * @return      <code>true</code> if the
+     *              FMap is empty;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return root.size == 0;
+    }
+
+    /**
+     * Gets the size of the FMap<K,V>
+     * 
+     * @return      <code>int</code> returns
+     *              a natural number representing
+     *              the size
+     */
+    public int size() {
+        return root.size;
+    }
+
+    /**
+     * Finds the node that holds the key k, going
+     * down from the root with a binary search in
+     * each node on the way
+     * 
+     * @param k     the given key
+     * @return      <code>BTreeNode<K,V></code>
+     *              the node of k, or null if k
+     *              is not in the tree
+     */
+    BTreeNode<K, V> find(K k) {
+        BTreeNode<K, V> t = root;
+
+        while (true) {
+            int i = t.search(k, comparator);
+
+            if (i >= 0) {
+                return t;
+            } else if (t.isLeaf()) {
+                return null;
+            }
+            t = t.child(-(i + 1));
+        }
+    }
+
+    /**
+     * Checks if the FMap<K,V> contains the key k
+     * 
+     * @param k     the K being checked
+     * @return      <code>true</code> if k is
+     *              in the FMap;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(K k) {
+        return this.find(k) != null;
+    }
+
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(K k) {
+        BTreeNode<K, V> t = this.find(k);
+
+        if (t == null) {
+            throw new RuntimeException
+            ("The key value does not exist - BTREE");
+        }
+        return t.value(t.search(k, comparator));
+    }
+
+    /**
+     * Creates an iterator over the keys and
+     * values of this FMap<K,V>, in the order
+     * of the Comparator<K>
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public Iterator<Map.Entry<K, V>> entries() {
+        final ArrayList<Map.Entry<K, V>> a =
+                new ArrayList<Map.Entry<K, V>>(this.size());
+
+        root.forEach((k, v) ->
+                a.add(new AbstractMap.SimpleImmutableEntry<K, V>(k, v)));
+        return Collections.unmodifiableList(a).iterator();
+    }
+
+    /**
+     * Calls f with every key of this FMap<K,V>
+     * and the value of that key, in order
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        root.forEach(f);
+    }
+
+    /**
+     * Overrides the hashCode method
+     * 
+     * @return      <code>int</code> the hashCode
+     */
+    public int hashCode() {
+        if (this.isEmpty()) {
+            return 0;
+        }
+        return root.sum;
+    }
+
+    /**
+     * Overrides the equals method. Checks if an
+     * object is equal to this FMap
+     * 
+     * @param o     the given set object
+     * @return      <code>true</code> the two objects
+     *              are the same;
+     *              <code>false</code> otherwise.
+     */
+    public boolean equals(Object o) {
+        if (o instanceof FMap) {
+            @SuppressWarnings("unchecked")
+            FMap<K, V> q = (FMap<K, V>) o;
+
+            if (q.size() != this.size()) {
+                return false;
+            }
+            Iterator<Map.Entry<K, V>> i = this.entries();
+
+            while (i.hasNext()) {
+                Map.Entry<K, V> e = i.next();
+
+                if (!q.containsKey(e.getKey())
+                        || !q.get(e.getKey()).equals(e.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Visits a class without modifying it, uses
+     * double dispatch to do something new without
+     * making changes
+     * 
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>, a
+     *                  BTree<K,V> of the same shape
+     *                  that shares the key arrays
+     */
+    public FMap<K, V> accept(Visitor<K, V> visitor) {
+        return new BTree<K, V>(root.accept(visitor), comparator, width);
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    protected void parts(FMap.Footprint f) {
+        f.add(root);
+    }
+}
+
+/**
+ * Represents a node of a BTree<K,V>: its keys in order,
+ * their values, and for an inner node one more child
+ * than keys, child i holding the keys between key i - 1
+ * and key i. Every node but the root has at least half
+ * the width of keys, and all leaves are at the same depth
+ */
+class BTreeNode<K, V> {
+
+    Object[] keys; // the keys, in order
+    Object[] values; // the values of the keys
+    Object[] children; // the children, or null in a leaf
+    int size; // the number of keys below this node
+    int sum; // the sum of the hashes
+
+    /**
+     * Constructor for BTreeNode<K,V>
+     * 
+     * @param keys      the keys, in order
+     * @param values    the values of the keys
+     * @param children  the children, or null in a leaf
+     */
+    BTreeNode(Object[] keys, Object[] values, Object[] children) {
+        this.keys = keys;
+        this.values = values;
+        this.children = children;
+        this.size = keys.length;
+        this.sum = 0;
+
+        for (int i = 0; i < keys.length; i++) {
+            this.sum += FMap.entryHash(keys[i], values[i]);
+        }
+        if (children != null) {
+            for (Object c : children) {
+                BTreeNode<?, ?> child = (BTreeNode<?, ?>) c;
+
+                this.size += child.size;
+                this.sum += child.sum;
+            }
+        }
+    }
+
+    /**
+     * Creates the root of an empty BTree<K,V>
+     * 
+     * @return      <code>BTreeNode<K,V></code>
+     *              a leaf without keys
+     */
+    static <K, V> BTreeNode<K, V> emptyLeaf() {
+        return new BTreeNode<K, V>(new Object[0], new Object[0], null);
+    }
+
+    /**
+     * Gets the key at the given position
+     * 
+     * @param i     the position
+     * @return      <code>K</code> the key
+     */
+    @SuppressWarnings("unchecked")
+    K key(int i) {
+        return (K) keys[i];
+    }
+
+    /**
+     * Gets the value at the given position
+     * 
+     * @param i     the position
+     * @return      <code>V</code> the value
+     */
+    @SuppressWarnings("unchecked")
+    V value(int i) {
+        return (V) values[i];
+    }
+
+    /**
+     * Gets the child at the given position
+     * 
+     * @param i     the position
+     * @return      <code>BTreeNode<K,V></code>
+     *              the child
+     */
+    @SuppressWarnings("unchecked")
+    BTreeNode<K, V> child(int i) {
+        return (BTreeNode<K, V>) children[i];
+    }
+
+    /**
+     * Checks if this node is a leaf
+     * 
+     * @return      <code>true</code> if it has
+     *              no children;
+     *              <code>false</code> otherwise.
+     */
+    boolean isLeaf() {
+        return children == null;
+    }
+
+    /**
+     * Finds the position of the key k in this
+     * node by binary search
+     * 
+     * @param k     the given key
+     * @param c     the Comparator<K> of the tree
+     * @return      <code>int</code> the position of k,
+     *              or -(p + 1) if k is not in this node
+     *              and would go at position p, the
+     *              child it would be under
+     */
+    int search(K k, Comparator<K> c) {
+        int lo = 0;
+        int hi = keys.length - 1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int r = c.compare(k, this.key(mid));
+
+            if (r == 0) {
+                return mid;
+            } else if (r < 0) {
+                hi = mid - 1;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * Copies a with x put in at position i
+     * 
+     * @param a     the given array
+     * @param i     the position
+     * @param x     the new element
+     * @return      <code>Object[]</code>
+     *              the longer copy
+     */
+    static Object[] inserted(Object[] a, int i, Object x) {
+        Object[] b = new Object[a.length + 1];
+
+        System.arraycopy(a, 0, b, 0, i);
+        b[i] = x;
+        System.arraycopy(a, i, b, i + 1, a.length - i);
+        return b;
+    }
+
+    /**
+     * Copies a without the element at position i
+     * 
+     * @param a     the given array
+     * @param i     the position
+     * @return      <code>Object[]</code>
+     *              the shorter copy
+     */
+    static Object[] removed(Object[] a, int i) {
+        Object[] b = new Object[a.length - 1];
+
+        System.arraycopy(a, 0, b, 0, i);
+        System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+        return b;
+    }
+
+    /**
+     * Copies a with x at position i
+     * 
+     * @param a     the given array
+     * @param i     the position
+     * @param x     the new element
+     * @return      <code>Object[]</code>
+     *              the copy
+     */
+    static Object[] replaced(Object[] a, int i, Object x) {
+        Object[] b = a.clone();
+
+        b[i] = x;
+        return b;
+    }
+
+    /**
+     * Gets the part of a node one key too wide
+     * on the left of the middle key
+     * 
+     * @param mid   the position of the middle key
+     * @return      <code>BTreeNode<K,V></code>
+     *              the left half
+     */
+    BTreeNode<K, V> left(int mid) {
+        return new BTreeNode<K, V>(Arrays.copyOf(keys, mid),
+                Arrays.copyOf(values, mid),
+                children == null ? null : Arrays.copyOf(children, mid + 1));
+    }
+
+    /**
+     * Gets the part of a node one key too wide
+     * on the right of the middle key
+     * 
+     * @param mid   the position of the middle key
+     * @return      <code>BTreeNode<K,V></code>
+     *              the right half
+     */
+    BTreeNode<K, V> right(int mid) {
+        return new BTreeNode<K, V>(
+                Arrays.copyOfRange(keys, mid + 1, keys.length),
+                Arrays.copyOfRange(values, mid + 1, values.length),
+                children == null ? null
+                        : Arrays.copyOfRange(children, mid + 1,
+                                children.length));
+    }
+
+    /**
+     * Creates a copy of this node with the key k
+     * mapped to the value v below it. The copy may
+     * have one key more than the width, and then
+     * the parent splits it
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @param c     the Comparator<K> of the tree
+     * @param width the most keys in a node
+     * @return      <code>BTreeNode<K,V></code>
+     *              the new node
+     */
+    BTreeNode<K, V> include(K k, V v, Comparator<K> c, int width) {
+        int i = this.search(k, c);
+
+        if (i >= 0) {
+            return new BTreeNode<K, V>(BTreeNode.replaced(keys, i, k),
+                    BTreeNode.replaced(values, i, v), children);
+        }
+        i = -(i + 1);
+
+        if (this.isLeaf()) {
+            return new BTreeNode<K, V>(BTreeNode.inserted(keys, i, k),
+                    BTreeNode.inserted(values, i, v), null);
+        }
+        BTreeNode<K, V> t = this.child(i).include(k, v, c, width);
+
+        if (t.keys.length <= width) {
+            return new BTreeNode<K, V>(keys, values,
+                    BTreeNode.replaced(children, i, t));
+        }
+        int mid = t.keys.length / 2;
+        Object[] a = new Object[children.length + 1];
+
+        System.arraycopy(children, 0, a, 0, i);
+        a[i] = t.left(mid);
+        a[i + 1] = t.right(mid);
+        System.arraycopy(children, i + 1, a, i + 2, children.length - i - 1);
+        return new BTreeNode<K, V>(BTreeNode.inserted(keys, i, t.keys[mid]),
+                BTreeNode.inserted(values, i, t.values[mid]), a);
+    }
+
+    /**
+     * Creates a copy of this node without the key k
+     * below it. The copy may have one key less than
+     * min, and then the parent refills it
+     * 
+     * @param k     the key
+     * @param c     the Comparator<K> of the tree
+     * @param min   the fewest keys in a node
+     *              but the root
+     * @return      <code>BTreeNode<K,V></code>
+     *              the new node, or this if k
+     *              is not below it
+     */
+    BTreeNode<K, V> without(K k, Comparator<K> c, int min) {
+        int i = this.search(k, c);
+
+        if (this.isLeaf()) {
+            if (i < 0) {
+                return this;
+            }
+            return new BTreeNode<K, V>(BTreeNode.removed(keys, i),
+                    BTreeNode.removed(values, i), null);
+        } else if (i < 0) {
+            i = -(i + 1);
+            BTreeNode<K, V> t = this.child(i).without(k, c, min);
+
+            if (t == this.child(i)) {
+                return this;
+            }
+            return this.refill(keys, values,
+                    BTreeNode.replaced(children, i, t), i, min);
+        }
+
+        // the largest key on the left takes the place of k
+        BTreeNode<K, V> last = this.child(i);
+
+        while (!last.isLeaf()) {
+            last = last.child(last.children.length - 1);
+        }
+        int j = last.keys.length - 1;
+        BTreeNode<K, V> t = this.child(i).without(last.key(j), c, min);
+
+        return this.refill(BTreeNode.replaced(keys, i, last.keys[j]),
+                BTreeNode.replaced(values, i, last.values[j]),
+                BTreeNode.replaced(children, i, t), i, min);
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Creates a node of the given keys, values and
+     * children, where child i may have one key less
+     * than min. It then takes a key through the
+     * parent from a neighbour that has more than
+     * min keys, or else merges with a neighbour
+     * and the key between them
+     * 
+     * @param ks        the keys
+     * @param vs        the values
+     * @param cs        the children
+     * @param i         the position of the child
+     * @param min       the fewest keys in a node
+     * @return          <code>BTreeNode<K,V></code>
+     *                  the new node
+     */
+    @SuppressWarnings("unchecked")
+    BTreeNode<K, V> refill(Object[] ks, Object[] vs, Object[] cs, int i,
+            int min) {
+        BTreeNode<K, V> t = (BTreeNode<K, V>) cs[i];
+
+        if (t.keys.length >= min) {
+            return new BTreeNode<K, V>(ks, vs, cs);
+        }
+        BTreeNode<K, V> l = i > 0 ? (BTreeNode<K, V>) cs[i - 1] : null;
+        BTreeNode<K, V> r = i < ks.length ? (BTreeNode<K, V>) cs[i + 1] : null;
+
+        if (l != null && l.keys.length > min) {
+            int n = l.keys.length - 1;
+
+            cs = cs.clone();
+            cs[i - 1] = new BTreeNode<K, V>(Arrays.copyOf(l.keys, n),
+                    Arrays.copyOf(l.values, n), l.isLeaf() ? null
+                            : Arrays.copyOf(l.children, n + 1));
+            cs[i] = new BTreeNode<K, V>(
+                    BTreeNode.inserted(t.keys, 0, ks[i - 1]),
+                    BTreeNode.inserted(t.values, 0, vs[i - 1]),
+                    t.isLeaf() ? null
+                            : BTreeNode.inserted(t.children, 0,
+                                    l.children[n + 1]));
+            return new BTreeNode<K, V>(
+                    BTreeNode.replaced(ks, i - 1, l.keys[n]),
+                    BTreeNode.replaced(vs, i - 1, l.values[n]), cs);
+        } else if (r != null && r.keys.length > min) {
+            int n = t.keys.length;
+
+            cs = cs.clone();
+            cs[i] = new BTreeNode<K, V>(
+                    BTreeNode.inserted(t.keys, n, ks[i]),
+                    BTreeNode.inserted(t.values, n, vs[i]),
+                    t.isLeaf() ? null
+                            : BTreeNode.inserted(t.children, n + 1,
+                                    r.children[0]));
+            cs[i + 1] = new BTreeNode<K, V>(BTreeNode.removed(r.keys, 0),
+                    BTreeNode.removed(r.values, 0), r.isLeaf() ? null
+                            : BTreeNode.removed(r.children, 0));
+            return new BTreeNode<K, V>(BTreeNode.replaced(ks, i, r.keys[0]),
+                    BTreeNode.replaced(vs, i, r.values[0]), cs);
+        }
+
+        // merge child j and child j + 1 around key j
+        int j = l != null ? i - 1 : i;
+        BTreeNode<K, V> a = (BTreeNode<K, V>) cs[j];
+        BTreeNode<K, V> b = (BTreeNode<K, V>) cs[j + 1];
+        int n = a.keys.length;
+        Object[] mk = new Object[n + 1 + b.keys.length];
+        Object[] mv = new Object[mk.length];
+        Object[] mc = null;
+
+        System.arraycopy(a.keys, 0, mk, 0, n);
+        System.arraycopy(a.values, 0, mv, 0, n);
+        mk[n] = ks[j];
+        mv[n] = vs[j];
+        System.arraycopy(b.keys, 0, mk, n + 1, b.keys.length);
+        System.arraycopy(b.values, 0, mv, n + 1, b.keys.length);
+
+        if (!a.isLeaf()) {
+            mc = new Object[mk.length + 1];
+            System.arraycopy(a.children, 0, mc, 0, n + 1);
+            System.arraycopy(b.children, 0, mc, n + 1, b.children.length);
+        }
+        cs = BTreeNode.removed(cs, j + 1);
+        cs[j] = new BTreeNode<K, V>(mk, mv, mc);
+        return new BTreeNode<K, V>(BTreeNode.removed(ks, j),
+                BTreeNode.removed(vs, j), cs);
+    }
+
+    /**
+     * Calls f with every key below this node
+     * and the value of that key, in order
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    void forEach(BiConsumer<? super K, ? super V> f) {
+        for (int i = 0; i < keys.length; i++) {
+            if (children != null) {
+                this.child(i).forEach(f);
+            }
+            f.accept(this.key(i), this.value(i));
+        }
+        if (children != null) {
+            this.child(keys.length).forEach(f);
+        }
+    }
+
+    /**
+     * Helper for accept
+     * 
+     * Creates a node with the same keys and
+     * new values from the visitor
+     * 
+     * @param visitor   the visitor
+     * @return          <code>BTreeNode<K,V></code>
+     *                  the new node
+     */
+    BTreeNode<K, V> accept(Visitor<K, V> visitor) {
+        Object[] vs = new Object[values.length];
+        Object[] cs = null;
+
+        for (int i = 0; i < keys.length; i++) {
+            vs[i] = visitor.visit(this.key(i), this.value(i));
+        }
+        if (children != null) {
+            cs = new Object[children.length];
+
+            for (int i = 0; i < children.length; i++) {
+                cs[i] = this.child(i).accept(visitor);
+            }
+        }
+        return new BTreeNode<K, V>(keys, vs, cs);
+    }
+
+    /**
+     * Helper for footprint
+     * 
+     * Adds the objects this one is made of
+     * to the given Footprint
+     * 
+     * @param f     the Footprint being counted
+     */
+    void parts(FMap.Footprint f) {
+        f.add(keys);
+        f.add(values);
+
+        if (children != null) {
+            f.add(children);
+        }
+    }
+}
+
+/**
+ * Represents an iterator over the keys of a BTree<K,V>,
+ * in order. It keeps the nodes on the path to the next
+ * key and the position in each, so it walks the tree
+ * lazily without copying the keys out
+ */
+class BTreeIterator<K, V> implements Iterator<K> {
+
+    ArrayList<BTreeNode<K, V>> nodes; // the path to the next key
+    int[] at; // the next position in each node on the path
+
+    /**
+     * Constructor for BTreeIterator<K,V>
+     * 
+     * @param root  the root of the BTree<K,V>
+     */
+    BTreeIterator(BTreeNode<K, V> root) {
+        this.nodes = new ArrayList<BTreeNode<K, V>>();
+        this.descend(root);
+        this.at = new int[nodes.size()];
+        this.skip();
+    }
+
+    /**
+     * Adds t and the first child below it, down
+     * to a leaf, to the path
+     * 
+     * @param t     the given BTreeNode<K,V>
+     */
+    void descend(BTreeNode<K, V> t) {
+        nodes.add(t);
+
+        while (!t.isLeaf()) {
+            t = t.child(0);
+            nodes.add(t);
+        }
+    }
+
+    /**
+     * Drops the nodes at the end of the path
+     * that have no keys left
+     */
+    void skip() {
+        int d = nodes.size() - 1;
+
+        while (d >= 0 && at[d] == nodes.get(d).keys.length) {
+            nodes.remove(d--);
+        }
+    }
+
+    /**
+     * Checks if the iterator has a next
+     * 
+     * @return      <code>true</code> if there
+     *              are more keys
+     *              <code>false</code> otherwise.
+     */
+    public boolean hasNext() {
+        return !nodes.isEmpty();
+    }
+
+    /**
+     * Gets the next key of the iterator
+     * 
+     * @return      <code>K</code> the next key, if
+     *              there is no such key it throws
+     *              an exception
+     */
+    public K next() {
+        if (nodes.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        int d = nodes.size() - 1;
+        BTreeNode<K, V> t = nodes.get(d);
+        K k = t.key(at[d]++);
+
+        if (!t.isLeaf()) {
+            this.descend(t.child(at[d]));
+
+            for (int i = d + 1; i < nodes.size(); i++) {
+                at[i] = 0;
+            }
+        }
+        this.skip();
+        return k;
+    }
+}
+
+/**
+ * Represents the memory of the OffHeapFMap<K,V>s made from
+ * one empty map: direct ByteBuffers that are only appended
+ * to. A record never changes once written, so every version
+ * of a map keeps reading its own nodes. The memory goes
+ * back to the system when all these maps are unreachable
+ * and the buffers are collected
+ */
+class OffHeapStore {
+
+    static final int SEGMENT = 1 << 24; // the default bytes in a segment
+    static final int FIRST = 1 << 12; // the bytes in the first segment
+    static final long NIL = 0; // the address of no record
+
+    volatile ByteBuffer[] segments; // the buffers, the last one is filling
+    int segmentSize; // the most bytes in a new segment
+    int used; // the bytes used in the last segment
+    long bytes; // the bytes used in all segments
+
+    /**
+     * Constructor for OffHeapStore
+     * 
+     * @param segmentSize   the most bytes in a new segment
+     */
+    OffHeapStore(int segmentSize) {
+        this.segmentSize = segmentSize;
+        this.segments = new ByteBuffer[0];
+    }
+
+    /**
+     * Takes n bytes at the end of the last segment,
+     * or at the start of a new one if they do not
+     * fit. The first segment is made here, and each
+     * new one is twice as big as the last up to the
+     * segment size, so small maps take little direct
+     * memory. The address is the number of the
+     * segment in the high half and the offset in
+     * the low half
+     * 
+     * @param n     the number of bytes
+     * @return      <code>long</code> the address
+     */
+    synchronized long allocate(int n) {
+        ByteBuffer[] a = segments;
+
+        if (a.length == 0 || used + n > a[a.length - 1].capacity()) {
+            int size = Math.min(segmentSize, a.length == 0 ? FIRST
+                    : 2 * a[a.length - 1].capacity());
+
+            // the first bytes are never handed out,
+            // so no record has the address NIL
+            used = a.length == 0 ? 8 : 0;
+            bytes += used;
+
+            a = Arrays.copyOf(a, a.length + 1);
+            a[a.length - 1] = ByteBuffer.allocateDirect(
+                    Math.max(used + n, size));
+            segments = a;
+        }
+        long address = ((long) (a.length - 1) << 32) | used;
+
+        used += n;
+        bytes += n;
+        return address;
+    }
+
+    /**
+     * Gets the segment of the given address
+     * 
+     * @param address   the address
+     * @return          <code>ByteBuffer</code>
+     *                  the segment
+     */
+    ByteBuffer segment(long address) {
+        return segments[(int) (address >>> 32)];
+    }
+
+    /**
+     * Gets the offset of the given address
+     * in its segment
+     * 
+     * @param address   the address
+     * @return          <code>int</code> the offset
+     */
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Gets the bytes used in all segments
+     * 
+     * @return      <code>long</code> the bytes
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+}
+
+/**
+ * Represents a sorted FMap<K,V> whose nodes live outside
+ * the heap, in an OffHeapStore. The tree is an AVL tree
+ * of fixed size nodes, each pointing to an entry record
+ * with the encoded key and value. Including or removing
+ * a key appends the copied path and leaves the old nodes
+ * as they are, so old versions stay valid. The heap only
+ * holds this object, and the garbage collector never
+ * walks the tree. Keys are decoded for each comparison
+ */
+class OffHeapFMap<K, V> extends FMap<K, V> {
+
+    static final int LEFT = 0; // the address of the left child
+    static final int RIGHT = 8; // the address of the right child
+    static final int ENTRY = 16; // the address of the entry
+    static final int SIZE = 24; // the number of keys below
+    static final int SUM = 28; // the sum of the hashes below
+    static final int HEIGHT = 32; // the height, one byte
+    static final int NODE = 33; // the bytes in a node
+
+    static final int HASH = 0; // the hash of the key and value
+    static final int KEY_LENGTH = 4; // the bytes of the key
+    static final int VALUE_LENGTH = 8; // the bytes of the value
+    static final int KEY = 12; // the key, then the value
+
+    OffHeapStore store; // where the nodes are
+    long root; // the address of the root, or NIL
+    Comparator<K> comparator; // the order of the keys
+    FMap.Codec<K> keyCodec; // the encoding of the keys
+    FMap.Codec<V> valueCodec; // the encoding of the values
+
+    /**
+     * Constructor for OffHeapFMap<K,V>
+     * 
+     * @param store         where the nodes are
+     * @param root          the address of the root
+     * @param comparator    the order of the keys
+     * @param keyCodec      the encoding of the keys
+     * @param valueCodec    the encoding of the values
+     */
+    OffHeapFMap(OffHeapStore store, long root, Comparator<K> comparator,
+            FMap.Codec<K> keyCodec, FMap.Codec<V> valueCodec) {
+        this.store = store;
+        this.root = root;
+        this.comparator = comparator;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * Creates an OffHeapFMap<K,V> with the same
+     * store and codecs and another root
+     * 
+     * @param t     the address of the root
+     * @return      <code>OffHeapFMap<K,V></code>
+     *              the new map
+     */
+    OffHeapFMap<K, V> withRoot(long t) {
+        return new OffHeapFMap<K, V>(store, t, comparator, keyCodec,
+                valueCodec);
+    }
+
+    /**
+     * Gets the left child of the node t
+     * 
+     * @param t     the address of the node
+     * @return      <code>long</code> the address
+     *              of the child, or NIL
+     */
+    long left(long t) {
+        return store.segment(t).getLong(OffHeapStore.offset(t) + LEFT);
+    }
+
+    /**
+     * Gets the right child of the node t
+     * 
+     * @param t     the address of the node
+     * @return      <code>long</code> the address
+     *              of the child, or NIL
+     */
+    long right(long t) {
+        return store.segment(t).getLong(OffHeapStore.offset(t) + RIGHT);
+    }
+
+    /**
+     * Gets the entry of the node t
+     * 
+     * @param t     the address of the node
+     * @return      <code>long</code> the address
+     *              of the entry
+     */
+    long entry(long t) {
+        return store.segment(t).getLong(OffHeapStore.offset(t) + ENTRY);
+    }
+
+    /**
+     * Gets the number of keys below t
+     * 
+     * @param t     the address of the node, or NIL
+     * @return      <code>int</code> the size
+     */
+    int size(long t) {
+        if (t == OffHeapStore.NIL) {
+            return 0;
+        }
+        return store.segment(t).getInt(OffHeapStore.offset(t) + SIZE);
+    }
+
+    /**
+     * Gets the sum of the hashes below t
+     * 
+     * @param t     the address of the node, or NIL
+     * @return      <code>int</code> the sum
+     */
+    int sum(long t) {
+        if (t == OffHeapStore.NIL) {
+            return 0;
+        }
+        return store.segment(t).getInt(OffHeapStore.offset(t) + SUM);
+    }
+
+    /**
+     * Gets the height of t
+     * 
+     * @param t     the address of the node, or NIL
+     * @return      <code>int</code> the height
+     */
+    int height(long t) {
+        if (t == OffHeapStore.NIL) {
+            return 0;
+        }
+        return store.segment(t).get(OffHeapStore.offset(t) + HEIGHT);
+    }
+
+    /**
+     * Decodes the key of the node t
+     * 
+     * @param t     the address of the node
+     * @return      <code>K</code> the key
+     */
+    K key(long t) {
+        long e = this.entry(t);
+        ByteBuffer b = store.segment(e);
+        int o = OffHeapStore.offset(e);
+
+        return keyCodec.decode(b, o + KEY, b.getInt(o + KEY_LENGTH));
+    }
+
+    /**
+     * Decodes the value of the node t
+     * 
+     * @param t     the address of the node
+     * @return      <code>V</code> the value
+     */
+    V value(long t) {
+        long e = this.entry(t);
+        ByteBuffer b = store.segment(e);
+        int o = OffHeapStore.offset(e);
+
+        return valueCodec.decode(b, o + KEY + b.getInt(o + KEY_LENGTH),
+                b.getInt(o + VALUE_LENGTH));
+    }
+
+    /**
+     * Writes an entry record for k and v
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>long</code> the address
+     *              of the entry
+     */
+    long newEntry(K k, V v) {
+        byte[] kb = keyCodec.encode(k);
+        byte[] vb = valueCodec.encode(v);
+        long e = store.allocate(KEY + kb.length + vb.length);
+        ByteBuffer b = store.segment(e);
+        int o = OffHeapStore.offset(e);
+
+        b.putInt(o + HASH, FMap.entryHash(k, v));
+        b.putInt(o + KEY_LENGTH, kb.length);
+        b.putInt(o + VALUE_LENGTH, vb.length);
+
+        ByteBuffer d = b.duplicate();
+
+        d.position(o + KEY);
+        d.put(kb);
+        d.put(vb);
+        return e;
+    }
+
+    /**
+     * Writes a node with the children l and r
+     * and the entry e
+     * 
+     * @param l     the left child, or NIL
+     * @param e     the address of the entry
+     * @param r     the right child, or NIL
+     * @return      <code>long</code> the address
+     *              of the node
+     */
+    long newNode(long l, long e, long r) {
+        int hash = store.segment(e).getInt(OffHeapStore.offset(e) + HASH);
+        long t = store.allocate(NODE);
+        ByteBuffer b = store.segment(t);
+        int o = OffHeapStore.offset(t);
+
+        b.putLong(o + LEFT, l);
+        b.putLong(o + RIGHT, r);
+        b.putLong(o + ENTRY, e);
+        b.putInt(o + SIZE, this.size(l) + this.size(r) + 1);
+        b.putInt(o + SUM, this.sum(l) + this.sum(r) + hash);
+        b.put(o + HEIGHT,
+                (byte) (Math.max(this.height(l), this.height(r)) + 1));
+        return t;
+    }
+
+    /**
+     * Writes a node with the children l and r and
+     * the entry e, rotating once or twice if one
+     * child is two taller than the other
+     * 
+     * @param l     the left child, or NIL
+     * @param e     the address of the entry
+     * @param r     the right child, or NIL
+     * @return      <code>long</code> the address
+     *              of the balanced node
+     */
+    long balance(long l, long e, long r) {
+        int hl = this.height(l);
+        int hr = this.height(r);
+
+        if (hl > hr + 1) {
+            long ll = this.left(l);
+            long lr = this.right(l);
+
+            if (this.height(ll) >= this.height(lr)) {
+                return this.newNode(ll, this.entry(l),
+                        this.newNode(lr, e, r));
+            }
+            return this.newNode(
+                    this.newNode(ll, this.entry(l), this.left(lr)),
+                    this.entry(lr),
+                    this.newNode(this.right(lr), e, r));
+        } else if (hr > hl + 1) {
+            long rl = this.left(r);
+            long rr = this.right(r);
+
+            if (this.height(rr) >= this.height(rl)) {
+                return this.newNode(this.newNode(l, e, rl),
+                        this.entry(r), rr);
+            }
+            return this.newNode(
+                    this.newNode(l, e, this.left(rl)),
+                    this.entry(rl),
+                    this.newNode(this.right(rl), this.entry(r), rr));
+        }
+        return this.newNode(l, e, r);
+    }
+
+    /**
+     * Helper for include
+     * 
+     * Puts the entry e of the key k below t
+     * 
+     * @param t     the address of the node, or NIL
+     * @param k     the key
+     * @param e     the address of the entry
+     * @return      <code>long</code> the address
+     *              of the new node
+     */
+    long insert(long t, K k, long e) {
+        if (t == OffHeapStore.NIL) {
+            return this.newNode(OffHeapStore.NIL, e, OffHeapStore.NIL);
+        }
+        int r = comparator.compare(k, this.key(t));
+
+        if (r == 0) {
+            return this.newNode(this.left(t), e, this.right(t));
+        } else if (r < 0) {
+            return this.balance(this.insert(this.left(t), k, e),
+                    this.entry(t), this.right(t));
+        } else {
+            return this.balance(this.left(t), this.entry(t),
+                    this.insert(this.right(t), k, e));
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Takes the key k out from below t
+     * 
+     * @param t     the address of the node, or NIL
+     * @param k     the key
+     * @return      <code>long</code> the address
+     *              of the new node, or t if k
+     *              is not below it
+     */
+    long remove(long t, K k) {
+        if (t == OffHeapStore.NIL) {
+            return t;
+        }
+        int r = comparator.compare(k, this.key(t));
+
+        if (r < 0) {
+            long l = this.remove(this.left(t), k);
+
+            if (l == this.left(t)) {
+                return t;
+            }
+            return this.balance(l, this.entry(t), this.right(t));
+        } else if (r > 0) {
+            long rt = this.remove(this.right(t), k);
+
+            if (rt == this.right(t)) {
+                return t;
+            }
+            return this.balance(this.left(t), this.entry(t), rt);
+        } else if (this.left(t) == OffHeapStore.NIL) {
+            return this.right(t);
+        } else if (this.right(t) == OffHeapStore.NIL) {
+            return this.left(t);
+        }
+
+        // the smallest key on the right takes the place of k
+        long m = this.right(t);
+
+        while (this.left(m) != OffHeapStore.NIL) {
+            m = this.left(m);
+        }
+        return this.balance(this.left(t), this.entry(m),
+                this.removeFirst(this.right(t)));
+    }
+
+    /**
+     * Helper for remove
+     * 
+     * Takes the smallest key out from below t
+     * 
+     * @param t     the address of the node
+     * @return      <code>long</code> the address
+     *              of the new node, or NIL
+     */
+    long removeFirst(long t) {
+        if (this.left(t) == OffHeapStore.NIL) {
+            return this.right(t);
+        }
+        return this.balance(this.removeFirst(this.left(t)),
+                this.entry(t), this.right(t));
+    }
+
+    /**
+     * Creates an OffHeapFMap<K,V> with the key k
+     * mapped to the value v
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>FMap<K,V></code>
+     *              the newly created non-empty
+     *              OffHeapFMap<K,V>
+     */
+    public FMap<K, V> include(K k, V v) {
+        return this.withRoot(this.insert(root, k, this.newEntry(k, v)));
+    }
+
+    /**
+     * Creates an FMap<K,V> without the key k
+     * 
+     * @param k     the key
+     * @return      <code>FMap<K,V></code>
+     *              the FMap<K,V> without k,
+     *              or this if k is not in it
+     */
+    public FMap<K, V> without(K k) {
+        long t = this.remove(root, k);
+
+        if (t == root) {
+            return this;
+        }
+        return this.withRoot(t);
+    }
+
+    /**
+     * Creates an iterator over the keys,
+     * in the order of the Comparator<K>
+     * 
+     * @return      <code>Iterator<K></code>
+     *              the created iterator
+     */
+    public Iterator<K> iterator() {
+        return new OffHeapIterator<K, V>(this);
+    }
+
+    /**
+     * Creates an iterator from this FMap<K,V>
+     * 
+     * @param c     the given Comparator<T>
+     * @return      <code>Iterator<K></code>
+     *              the created iterator, in
+     *              sorted order
+     */
+    public Iterator<K> iterator(Comparator<K> c) {
+        if (c == comparator || c.equals(comparator)) {
+            return this.iterator();
+        }
+        ArrayList<K> a = this.addKeys(new ArrayList<K>(this.size()));
+
+        Collections.sort(a, c);
+        return new KeyIterator<K>(a);
+    }
+
+    /**
+     * Helper for iterator
+     * 
+     * Adds the keys from this
+     * to the given ArrayList<K>
+     * 
+     * @param a     the given ArrayList<K>
+     * @return      <code>ArrayList<K></code>
+     *              the ArrayList<K> with
+     *              the keys
+     */
+    protected ArrayList<K> addKeys(ArrayList<K> a) {
+        OffHeapIterator<K, V> i = new OffHeapIterator<K, V>(this);
+
+        while (i.hasNext()) {
+            a.add(i.next());
+        }
+        return a;
+    }
+
+    /**
+     * Checks if the FMap<K,V> is empty
+     * 
+     * @return      <code>true</code> if the
+     *              FMap is empty;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return root == OffHeapStore.NIL;
+    }
+
+    /**
+     * Gets the size of the FMap<K,V>
+     * 
+     * @return      <code>int</code> returns
+     *              a natural number representing
+     *              the size
+     */
+    public int size() {
+        return this.size(root);
+    }
+
+    /**
+     * Finds the node of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>long</code> the address
+     *              of the node, or NIL if k is
+     *              not in the map
+     */
+    long find(K k) {
+        long t = root;
+
+        while (t != OffHeapStore.NIL) {
+            int r = comparator.compare(k, this.key(t));
+
+            if (r == 0) {
+                return t;
+            }
+            t = r < 0 ? this.left(t) : this.right(t);
+        }
+        return t;
+    }
+
+    /**
+     * Checks if the FMap<K,V> contains the key k
+     * 
+     * @param k     the K being checked
+     * @return      <code>true</code> if k is
+     *              in the FMap;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(K k) {
+        return this.find(k) != OffHeapStore.NIL;
+    }
+
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(K k) {
+        long t = this.find(k);
+
+        if (t == OffHeapStore.NIL) {
+            throw new RuntimeException
+            ("The key value does not exist - OFFHEAP");
+        }
+        return this.value(t);
+    }
+
+    /**
+     * Creates an iterator over the keys and
+     * values of this FMap<K,V>, in the order
+     * of the Comparator<K>
+     * 
+     * @return      <code>Iterator<Map.Entry<K,V>></code>
+     *              the created iterator
+     */
+    public Iterator<Map.Entry<K, V>> entries() {
+        return new OffHeapEntryIterator<K, V>(
+                new OffHeapIterator<K, V>(this));
+    }
+
+    /**
+     * Calls f with every key of this FMap<K,V>
+     * and the value of that key, in order
+     * 
+     * @param f     the given BiConsumer<K,V>
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        OffHeapIterator<K, V> i = new OffHeapIterator<K, V>(this);
+
+        while (i.hasNext()) {
+            long t = i.nextNode();
+
+            f.accept(this.key(t), this.value(t));
+        }
+    }
+
+    /**
+     * Gets the bytes taken outside the heap by this
+     * map and every other version made from the same
+     * empty map, which share them
+     * 
+     * @return      <code>long</code> the bytes
+     */
+    public long offHeapBytes() {
+        return store.bytes();
+    }
+
+    /**
+     * Overrides the hashCode method
+     * 
+     * @return      <code>int</code> the hashCode
+     */
+    public int hashCode() {
+        if (this.isEmpty()) {
+            return 0;
+        }
+        return this.sum(root);
+    }
+
+    /**
+     * Overrides the equals method. Checks if an
+     * object is equal to this FMap
+     * 
+     * @param o     the given set object
+     * @return      <code>true</code> the two objects
+     *              are the same;
+     *              <code>false</code> otherwise.
+     */
+    public boolean equals(Object o) {
+        if (o instanceof FMap) {
+            @SuppressWarnings("unchecked")
+            FMap<K, V> q = (FMap<K, V>) o;
+
+            if (q.size() != this.size()) {
+                return false;
+            }
+            Iterator<Map.Entry<K, V>> i = this.entries();
+
+            while (i.hasNext()) {
+                Map.Entry<K, V> e = i.next();
+
+                if (!q.containsKey(e.getKey())
+                        || !q.get(e.getKey()).equals(e.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Visits a class without modifying it, uses
+     * double dispatch to do something new without
+     * making changes
+     * 
+     * 
+     * @param visitor   the visitor
+     * @return          <code>FMap<K,V></code>
+     *                  the returned FMap<K,V>, an
+     *                  OffHeapFMap<K,V> of the same
+     *                  shape in the same store
+     */
+    public FMap<K, V> accept(Visitor<K, V> visitor) {
+        return this.withRoot(this.accept(root, visitor));
+    }
+
+    /**
+     * Helper for accept
+     * 
+     * Writes a copy of t with the values
+     * from the visitor
+     * 
+     * @param t         the address of the node, or NIL
+     * @param visitor   the visitor
+     * @return          <code>long</code> the address
+     *                  of the copy
+     */
+    long accept(long t, Visitor<K, V> visitor) {
+        if (t == OffHeapStore.NIL) {
+            return t;
+        }
+        long l = this.accept(this.left(t), visitor);
+        K k = this.key(t);
+        long e = this.newEntry(k, visitor.visit(k, this.value(t)));
+
+        return this.newNode(l, e, this.accept(this.right(t), visitor));
+    }
+}
+
+/**
+ * Represents an in-order iterator over the nodes of an
+ * OffHeapFMap<K,V>. The stack holds addresses, and an AVL
+ * tree is never taller than 1.45 log n, so it is short
+ */
+class OffHeapIterator<K, V> implements Iterator<K> {
+
+    OffHeapFMap<K, V> map; // the map being iterated
+    long[] stack; // the nodes whose key is still to come
+    int depth; // the number of nodes on the stack
+
+    /**
+     * Constructor for OffHeapIterator<K,V>
+     * 
+     * @param map   the map to iterate
+     */
+    OffHeapIterator(OffHeapFMap<K, V> map) {
+        this.map = map;
+        this.stack = new long[map.height(map.root)];
+        this.pushLeft(map.root);
+    }
+
+    /**
+     * Pushes t and its left children
+     * 
+     * @param t     the address of the node, or NIL
+     */
+    void pushLeft(long t) {
+        while (t != OffHeapStore.NIL) {
+            stack[depth++] = t;
+            t = map.left(t);
+        }
+    }
+
+    /**
+     * Checks if the iterator has a next
+     * 
+     * @return      <code>true</code> if there
+     *              are more keys
+     *              <code>false</code> otherwise.
+     */
+    public boolean hasNext() {
+        return depth > 0;
+    }
+
+    /**
+     * Gets the node of the next key
+     * of the iterator
+     * 
+     * @return      <code>long</code> the address
+     *              of the next node, if there is
+     *              no such node it throws
+     *              an exception
+     */
+    long nextNode() {
+        if (depth == 0) {
+            throw new NoSuchElementException();
+        }
+        long t = stack[--depth];
+
+        this.pushLeft(map.right(t));
+        return t;
+    }
+
+    /**
+     * Gets the next key of the iterator
+     * 
+     * @return      <code>K</code> the next key
+     */
+    public K next() {
+        return map.key(this.nextNode());
+    }
+}
+
+/**
+ * Represents an in-order iterator over the keys
+ * and values of an OffHeapFMap<K,V>
+ */
+class OffHeapEntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+    OffHeapIterator<K, V> it; // the iterator over the nodes
+
+    /**
+     * Constructor for OffHeapEntryIterator<K,V>
+     * 
+     * @param it    the iterator over the nodes
+     */
+    OffHeapEntryIterator(OffHeapIterator<K, V> it) {
+        this.it = it;
+    }
+
+    /**
+     * Checks if the iterator has a next
+     * 
+     * @return      <code>true</code> if the
+     *              iterator has a next
+     *              <code>false</code> otherwise.
+     */
+    public boolean hasNext() {
+        return it.hasNext();
+    }
+
+    /**
+     * Gets the next of the iterator
+     * 
+     * @return      <code>Map.Entry<K,V></code> the
+     *              next key and value, if there
+     *              is no such element it throws
+     *              an exception
+     */
+    public Map.Entry<K, V> next() {
+        long t = it.nextNode();
+
+        return new AbstractMap.SimpleImmutableEntry<K, V>(
+                it.map.key(t), it.map.value(t));
+    }
+}
+
+/**
+ * Represents a persistent map from int keys to values,
+ * kept as a red-black tree like an FMap<K,V> made by
+ * FMap.empty(Comparator), but the keys are stored
+ * unboxed and compared directly, so looking up a
+ * key allocates nothing and including one only
+ * allocates the nodes it copies
+ * 
+ * IntFMap<V> and IntNode<V> are LongFMap<V> and LongNode<V>
+ * with the key type changed, on purpose: a base shared
+ * by both would have to build and compare nodes through
+ * virtual calls or boxed keys, which is what these
+ * classes are here to avoid. A fix to one belongs in both
+ */
+class IntFMap<V> {
+
+    IntNode<V> root; // the root of the tree, or null if it is empty
+
+    /**
+     * Constructor for IntFMap<V>
+     * 
+     * @param root  the root of the tree, or null
+     */
+    IntFMap(IntNode<V> root) {
+        this.root = root;
+    }
+
+    /**
+     * Creates an empty IntFMap<V>
+     * 
+     * @return      <code>IntFMap<V></code>
+     *              the empty IntFMap<V>
+     */
+    public static <V> IntFMap<V> empty() {
+        return new IntFMap<V>(null);
+    }
+
+    /**
+     * Creates an IntFMap<V> with the key k mapped
+     * to the value v, sharing everything that
+     * does not change
+     * 
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>IntFMap<V></code>
+     *              the newly created non-empty
+     *              IntFMap<V>
+     */
+    public IntFMap<V> include(int k, V v) {
+        return new IntFMap<V>(IntNode.blacken(IntNode.ins(root, k, v)));
+    }
+
+    /**
+     * Creates an IntFMap<V> without the key k,
+     * sharing everything that does not change
+     * 
+     * @param k     the key
+     * @return      <code>IntFMap<V></code>
+     *              the IntFMap<V> without k,
+     *              or this if k is not in it
+     */
+    public IntFMap<V> without(int k) {
+        if (!this.containsKey(k)) {
+            return this;
+        }
+        return new IntFMap<V>(IntNode.blacken(
+                IntNode.del(IntNode.blacken(root), k)));
+    }
+
+    /**
+     * Checks if the IntFMap<V> is empty
+     * 
+     * @return      <code>true</code> if the
+     *              IntFMap is empty;
+     *              <code>false</code> otherwise.
+     */
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Gets the size of the IntFMap<V>
+     * 
+     * @return      <code>int</code> returns
+     *              a natural number representing
+     *              the size
+     */
+    public int size() {
+        return IntNode.size(root);
+    }
+
+    /**
+     * Checks if the IntFMap<V> contains the key k
+     * 
+     * @param k     the key being checked
+     * @return      <code>true</code> if k is
+     *              in the IntFMap;
+     *              <code>false</code> otherwise.
+     */
+    public boolean containsKey(int k) {
+        return IntNode.find(root, k) != null;
+    }
+
+    /**
+     * Gets the value v of the key k
+     * 
+     * @param k     the given key
+     * @return      <code>V</code> the value that
+     *              the key gets
+     */
+    public V get(int k) {
+        IntNode<V> t = IntNode.find(root, k);
+
+        if (t == null) {
+            throw new RuntimeException
+            ("The key value does not exist-RBT");
+        }
+        return t.v0;
+    }
+
     /**
-     * Overrides the hashCode method
+     * Creates an iterator over the keys of
+     * the IntFMap<V>, in increasing order
+     * 
+     * @return      <code>PrimitiveIterator.OfInt</code>
+     *              the created iterator
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new IntTreeIterator<V>(root);
+    }
+
+    /**
+     * Creates a sequential IntStream of the keys
+     * of the IntFMap<V>, in increasing order
+     * 
+     * @return      <code>IntStream</code>
+     *              the created IntStream
+     */
+    public IntStream keys() {
+        return StreamSupport.intStream(Spliterators.spliterator(
+                this.iterator(), this.size(),
+                Spliterator.SORTED | Spliterator.ORDERED |
+                Spliterator.DISTINCT | Spliterator.IMMUTABLE |
+                Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Calls f with every key of the IntFMap<V> and
+     * the value of that key, in increasing order
+     * 
+     * @param f     the given IntEntryConsumer<V>
+     */
+    public void forEach(IntEntryConsumer<? super V> f) {
+        IntNode.forEach(root, f);
+    }
+
+    /**
+     * Overrides the toString method in the
+     * java API. Creates a string from the IntFMap
+     * 
+     * @return      <code>String</code>
+     *              returns the string
+     */
+    public String toString() {
+        return "{...(" + this.size() +
+                " keys mapped to values)...}";
+    }
+
+    /**
+     * Overrides the hashCode method. It is the
+     * same as for an FMap<Integer,V> with the same
+     * keys and values
      * 
      * @return      <code>int</code> the hashCode
      */
     public int hashCode() {
-        return 0;
+        return root == null ? 0 : root.sum;
     }
-    
+
     /**
      * Overrides the equals method. Checks if an
-     * object is equal to this FMap
+     * object is an IntFMap with the same keys and
+     * values as this one
      * 
-     * @param o     the given set object
+     * @param o     the given object
      * @return      <code>true</code> the two objects
      *              are the same;
      *              <code>false</code> otherwise.
      */
     public boolean equals(Object o) {
-        if (o instanceof FMap) {
-            @SuppressWarnings("unchecked")
-            FMap<K,V> q = (FMap<K,V>) o;
-            return q.isEmpty();
-        } else {
+        if (!(o instanceof IntFMap)) {
             return false;
         }
+        IntFMap<?> q = (IntFMap<?>) o;
+
+        if (q.root == root) {
+            return true;
+        } else if (q.size() != this.size() ||
+                q.hashCode() != this.hashCode()) {
+            return false;
+        }
+        IntTreeIterator<V> i = new IntTreeIterator<V>(root);
+
+        while (i.hasNext()) {
+            IntNode<V> t = i.nextNode();
+            IntNode<?> u = IntNode.find(q.root, t.k0);
+
+            if (u == null || !t.v0.equals(u.v0)) {
+                return false;
+            }
+        }
+        return true;
     }
-    
+}
+
+/**
+ * Represents something called with each key and
+ * value of an IntFMap<V>, without boxing the key
+ */
+interface IntEntryConsumer<V> {
+
     /**
-     * Visits a class without modifying it, uses
-     * double dispatch to do something new without
-     * making changes
-     * 
+     * Is called with a key and its value
      * 
-     * @param visitor   the visitor
-     * @return          <code>FMap<K,V></code>
-     *                  the returned FMap<K,V>
+     * @param k     the key
+     * @param v     the value
      */
-    public FMap<K, V> accept(Visitor<K, V> visitor) {
-
-        FMap<K, V> m2 = FMap.empty();
-        
-        return m2;
-        
-    }
+    void accept(int k, V v);
 }
 
 /**
- * Represents a non-empty FMap
+ * Represents a node of the red-black tree of a
+ * IntFMap<V>. An empty tree is null, so the methods
+ * that take a tree are static
  */
-class Include<K, V> extends AList<K,V>{
+class IntNode<V> {
 
-    K k0; // the given key
+    int k0; // the given key
     V v0; // the given value
-    FMap<K, V> m0; // the rest of the FMap
+    IntNode<V> left; // the left node, or null
+    IntNode<V> right; // the right node, or null
+    boolean red; // true if the node is red
+    int size; // the size
+    int sum; // the sum of the hashes
 
     /**
-     * Constructor for the concrete class include
+     * The constructor for the
+     * concrete class IntNode
      * 
-     * @param k0    the given key
-     * @param v0    the given value
-     * @param m0    the rest of the FMap
+     * @param k0        the given key
+     * @param v0        the given value
+     * @param left      the left node, or null
+     * @param right     the right node, or null
+     * @param red       true if the node is red
      */
-    Include(K k0, V v0, FMap<K, V> m0) {
+    IntNode(int k0, V v0, IntNode<V> left, IntNode<V> right, boolean red) {
         this.k0 = k0;
         this.v0 = v0;
-        this.m0 = m0;
+        this.left = left;
+        this.right = right;
+        this.red = red;
+        this.size = 1 + IntNode.size(left) + IntNode.size(right);
+        this.sum = IntNode.sum(left) + IntNode.sum(right)
+                + IntNode.entryHash(k0, v0);
     }
-    
+
     /**
-     * Creates a non-empty AList<K,V>
+     * Gets the size of the tree t
+     * 
+     * @param t     the given tree, or null
+     * @return      <code>int</code> the size
+     */
+    static <V> int size(IntNode<V> t) {
+        return t == null ? 0 : t.size;
+    }
+
+    /**
+     * Helper for the constructor
+     * 
+     * Gets the sum of the hashes of the tree t
+     * 
+     * @param t     the given tree, or null
+     * @return      <code>int</code> the sum
+     */
+    static <V> int sum(IntNode<V> t) {
+        return t == null ? 0 : t.sum;
+    }
+
+    /**
+     * Helper for the constructor
+     * 
+     * Gets the hash of one key and its value,
+     * the same as FMap.entryHash of the boxed key
      * 
      * @param k     the key
      * @param v     the value
-     * @return      <code>AList<K,V></code>
-     *              the newly created non-empty
-     *              AList<K,V>
+     * @return      <code>int</code> the hash
      */
-    public AList<K, V> include(K k, V v) {
-        if (!this.containsKey(k)) {
-            return new Include<K, V>(k, v, this);
-        } else if (this.k0.equals(k)){
-            return new Include<K, V>(k, v, m0);
+    static int entryHash(int k, Object v) {
+        return Integer.hashCode(k) ^ v.hashCode();
+    }
+
+    /**
+     * Helper for get and containsKey
+     * 
+     * Finds the node with the key k in t
+     * 
+     * @param t     the given tree, or null
+     * @param k     the key
+     * @return      <code>IntNode<V></code>
+     *              the node with the key, or
+     *              null if there is none
+     */
+    static <V> IntNode<V> find(IntNode<V> t, int k) {
+        while (t != null && t.k0 != k) {
+            t = k < t.k0 ? t.left : t.right;
+        }
+        return t;
+    }
+
+    /**
+     * Helper for include
+     * 
+     * Adds the key and value to t and balances
+     * the nodes on the way back up
+     * 
+     * @param t     the given tree, or null
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>IntNode<V></code>
+     *              the new tree
+     */
+    static <V> IntNode<V> ins(IntNode<V> t, int k, V v) {
+        if (t == null) {
+            return new IntNode<V>(k, v, null, null, true);
+        } else if (k < t.k0) {
+            return IntNode.balance(IntNode.ins(t.left, k, v),
+                    t.k0, t.v0, t.right, t.red);
+        } else if (k > t.k0) {
+            return IntNode.balance(t.left, t.k0, t.v0,
+                    IntNode.ins(t.right, k, v), t.red);
+        } else {
+            return new IntNode<V>(k, v, t.left, t.right, t.red);
+        }
+    }
+
+    /**
+     * Helper for ins
+     * 
+     * Creates a node from l, k, v and r. If it is
+     * black and two red nodes below it are connected,
+     * they are rearranged into a red node with two
+     * black children
+     * 
+     * @param l     the left tree
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right tree
+     * @param red   true if the node is red
+     * @return      <code>IntNode<V></code>
+     *              the balanced tree
+     */
+    static <V> IntNode<V> balance(IntNode<V> l, int k, V v, IntNode<V> r,
+            boolean red) {
+        if (!red) {
+            if (IntNode.isRed(l) && IntNode.isRed(l.left)) {
+                return new IntNode<V>(l.k0, l.v0,
+                        IntNode.blacken(l.left),
+                        new IntNode<V>(k, v, l.right, r, false), true);
+            } else if (IntNode.isRed(l) && IntNode.isRed(l.right)) {
+                IntNode<V> lr = l.right;
+
+                return new IntNode<V>(lr.k0, lr.v0,
+                        new IntNode<V>(l.k0, l.v0, l.left, lr.left, false),
+                        new IntNode<V>(k, v, lr.right, r, false), true);
+            } else if (IntNode.isRed(r) && IntNode.isRed(r.right)) {
+                return new IntNode<V>(r.k0, r.v0,
+                        new IntNode<V>(k, v, l, r.left, false),
+                        IntNode.blacken(r.right), true);
+            } else if (IntNode.isRed(r) && IntNode.isRed(r.left)) {
+                IntNode<V> rl = r.left;
+
+                return new IntNode<V>(rl.k0, rl.v0,
+                        new IntNode<V>(k, v, l, rl.left, false),
+                        new IntNode<V>(r.k0, r.v0, rl.right, r.right, false),
+                        true);
+            }
+        }
+        return new IntNode<V>(k, v, l, r, red);
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Removes the key k, which must be in t, with
+     * the deletion of Kahrs like Node.del. If t is
+     * black the result has one black node less on
+     * every path
+     * 
+     * @param t     the given tree
+     * @param k     the key
+     * @return      <code>IntNode<V></code>
+     *              t without k, or null
+     */
+    static <V> IntNode<V> del(IntNode<V> t, int k) {
+        if (k == t.k0) {
+            return IntNode.fuse(t.left, t.right);
+        } else if (k < t.k0) {
+            if (IntNode.isBlack(t.left)) {
+                return IntNode.balanceLeft(IntNode.del(t.left, k),
+                        t.k0, t.v0, t.right);
+            } else {
+                return new IntNode<V>(t.k0, t.v0, IntNode.del(t.left, k),
+                        t.right, true);
+            }
+        } else {
+            if (IntNode.isBlack(t.right)) {
+                return IntNode.balanceRight(t.left, t.k0, t.v0,
+                        IntNode.del(t.right, k));
+            } else {
+                return new IntNode<V>(t.k0, t.v0, t.left,
+                        IntNode.del(t.right, k), true);
+            }
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Joins the two children of a removed node
+     * into one tree
+     * 
+     * @param l     the left tree, or null
+     * @param r     the right tree, or null
+     * @return      <code>IntNode<V></code>
+     *              the keys of l then the keys of r
+     */
+    static <V> IntNode<V> fuse(IntNode<V> l, IntNode<V> r) {
+        if (l == null) {
+            return r;
+        } else if (r == null) {
+            return l;
+        } else if (l.red && r.red) {
+            IntNode<V> m = IntNode.fuse(l.right, r.left);
+
+            if (IntNode.isRed(m)) {
+                return new IntNode<V>(m.k0, m.v0,
+                        new IntNode<V>(l.k0, l.v0, l.left, m.left, true),
+                        new IntNode<V>(r.k0, r.v0, m.right, r.right, true),
+                        true);
+            } else {
+                return new IntNode<V>(l.k0, l.v0, l.left,
+                        new IntNode<V>(r.k0, r.v0, m, r.right, true), true);
+            }
+        } else if (!l.red && !r.red) {
+            IntNode<V> m = IntNode.fuse(l.right, r.left);
+
+            if (IntNode.isRed(m)) {
+                return new IntNode<V>(m.k0, m.v0,
+                        new IntNode<V>(l.k0, l.v0, l.left, m.left, false),
+                        new IntNode<V>(r.k0, r.v0, m.right, r.right, false),
+                        true);
+            } else {
+                return IntNode.balanceLeft(l.left, l.k0, l.v0,
+                        new IntNode<V>(r.k0, r.v0, m, r.right, false));
+            }
+        } else if (r.red) {
+            return new IntNode<V>(r.k0, r.v0, IntNode.fuse(l, r.left),
+                    r.right, true);
+        } else {
+            return new IntNode<V>(l.k0, l.v0, l.left,
+                    IntNode.fuse(l.right, r), true);
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Rebuilds a node whose left side has one
+     * black node less than its right side
+     * 
+     * @param l     the left tree
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right tree
+     * @return      <code>IntNode<V></code>
+     *              the rebuilt tree
+     */
+    static <V> IntNode<V> balanceLeft(IntNode<V> l, int k, V v, IntNode<V> r) {
+        if (IntNode.isRed(l)) {
+            return new IntNode<V>(k, v, IntNode.blacken(l), r, true);
+        } else if (IntNode.isBlack(r)) {
+            return IntNode.rebalance(l, k, v, IntNode.redden(r));
+        } else {
+            // r is red and its left child is black
+            IntNode<V> rl = r.left;
+
+            return new IntNode<V>(rl.k0, rl.v0,
+                    new IntNode<V>(k, v, l, rl.left, false),
+                    IntNode.rebalance(rl.right, r.k0, r.v0,
+                            IntNode.redden(r.right)),
+                    true);
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Rebuilds a node whose right side has one
+     * black node less than its left side
+     * 
+     * @param l     the left tree
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right tree
+     * @return      <code>IntNode<V></code>
+     *              the rebuilt tree
+     */
+    static <V> IntNode<V> balanceRight(IntNode<V> l, int k, V v, IntNode<V> r) {
+        if (IntNode.isRed(r)) {
+            return new IntNode<V>(k, v, l, IntNode.blacken(r), true);
+        } else if (IntNode.isBlack(l)) {
+            return IntNode.rebalance(IntNode.redden(l), k, v, r);
+        } else {
+            // l is red and its right child is black
+            IntNode<V> lr = l.right;
+
+            return new IntNode<V>(lr.k0, lr.v0,
+                    IntNode.rebalance(IntNode.redden(l.left),
+                            l.k0, l.v0, lr.left),
+                    new IntNode<V>(k, v, lr.right, r, false),
+                    true);
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Creates a black node from l, k, v and r,
+     * unless two red nodes would be connected,
+     * in which case the nodes are rearranged
+     * into a red node with two black children
+     * 
+     * @param l     the left tree
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right tree
+     * @return      <code>IntNode<V></code>
+     *              the balanced tree
+     */
+    static <V> IntNode<V> rebalance(IntNode<V> l, int k, V v, IntNode<V> r) {
+        if (IntNode.isRed(l) && IntNode.isRed(r)) {
+            return new IntNode<V>(k, v, IntNode.blacken(l),
+                    IntNode.blacken(r), true);
+        }
+        return IntNode.balance(l, k, v, r, false);
+    }
+
+    /**
+     * Gets t colored black
+     * 
+     * @param t     the given tree, or null
+     * @return      <code>IntNode<V></code>
+     *              t if it is not red,
+     *              a black copy otherwise
+     */
+    static <V> IntNode<V> blacken(IntNode<V> t) {
+        if (IntNode.isRed(t)) {
+            return new IntNode<V>(t.k0, t.v0, t.left, t.right, false);
         } else {
-            return new Include<K,V>(k0, v0, m0.include(k, v));
+            return t;
+        }
+    }
+
+    /**
+     * Helper for without
+     * 
+     * Gets a red copy of the black node t
+     * 
+     * @param t     the given tree
+     * @return      <code>IntNode<V></code>
+     *              the red copy
+     */
+    static <V> IntNode<V> redden(IntNode<V> t) {
+        if (!IntNode.isBlack(t)) {
+            throw new RuntimeException("redden: the tree" +
+                    " is not balanced");
+        }
+        return new IntNode<V>(t.k0, t.v0, t.left, t.right, true);
+    }
+
+    /**
+     * Checks if t is a red node
+     * 
+     * @param t     the given tree, or null
+     * @return      <code>true</code> if t is red;
+     *              <code>false</code> otherwise.
+     */
+    static <V> boolean isRed(IntNode<V> t) {
+        return t != null && t.red;
+    }
+
+    /**
+     * Checks if t is a black node, which
+     * an empty tree is not
+     * 
+     * @param t     the given tree, or null
+     * @return      <code>true</code> if t is a
+     *              black node;
+     *              <code>false</code> otherwise.
+     */
+    static <V> boolean isBlack(IntNode<V> t) {
+        return t != null && !t.red;
+    }
+
+    /**
+     * Helper for forEach
+     * 
+     * Calls f with every key of t and the value
+     * of that key, in increasing order
+     * 
+     * @param t     the given tree, or null
+     * @param f     the given IntEntryConsumer<V>
+     */
+    static <V> void forEach(IntNode<V> t, IntEntryConsumer<? super V> f) {
+        while (t != null) {
+            IntNode.forEach(t.left, f);
+            f.accept(t.k0, t.v0);
+            t = t.right;
+        }
+    }
+}
+
+/**
+ * Represents an iterator over the keys of a
+ * IntFMap<V> in increasing order, which walks
+ * the tree lazily with a stack
+ */
+class IntTreeIterator<V> implements PrimitiveIterator.OfInt {
+
+    ArrayList<IntNode<V>> stack; // the nodes whose key comes next
+
+    /**
+     * Constructor for the concrete
+     * class IntTreeIterator<V>
+     * 
+     * @param t     the tree to iterate, or null
+     */
+    IntTreeIterator(IntNode<V> t) {
+        this.stack = new ArrayList<IntNode<V>>();
+        this.pushLeft(t);
+    }
+
+    /**
+     * Pushes t and the nodes down its left side
+     * 
+     * @param t     the given tree, or null
+     */
+    void pushLeft(IntNode<V> t) {
+        while (t != null) {
+            stack.add(t);
+            t = t.left;
+        }
+    }
+
+    /**
+     * Checks if the iterator has a next
+     * 
+     * @return      <code>true</code> if there
+     *              is a next key;
+     *              <code>false</code> otherwise.
+     */
+    public boolean hasNext() {
+        return !stack.isEmpty();
+    }
+
+    /**
+     * Gets the node of the next key
+     * 
+     * @return      <code>IntNode<V></code>
+     *              the next node, if there is
+     *              no such node it throws
+     *              an exception
+     */
+    IntNode<V> nextNode() {
+        if (stack.isEmpty()) {
+            throw new NoSuchElementException();
         }
+        IntNode<V> t = stack.remove(stack.size() - 1);
+
+        this.pushLeft(t.right);
+        return t;
     }
 
     /**
-     * Creates an KeyIterator from this FMap<K,V>
+     * Gets the next key of the iterator
      * 
-     * @return      <code>KeyIterator<K></code>
-     *              the created iterator
+     * @return      <code>int</code> the next key,
+     *              if there is no such key it
+     *              throws an exception
      */
-    public Iterator<K> iterator() {
-        ArrayList<K> a = this.makeArrayList();
-
-        return new KeyIterator<K>(a);
+    public int nextInt() {
+        return this.nextNode().k0;
     }
+}
+
+/**
+ * Represents a persistent map from long keys to values,
+ * kept as a red-black tree like an FMap<K,V> made by
+ * FMap.empty(Comparator), but the keys are stored
+ * unboxed and compared directly, so looking up a
+ * key allocates nothing and including one only
+ * allocates the nodes it copies
+ * 
+ * LongFMap<V> and LongNode<V> mirror IntFMap<V> and
+ * IntNode<V> line for line; IntFMap<V> says why
+ */
+class LongFMap<V> {
+
+    LongNode<V> root; // the root of the tree, or null if it is empty
 
     /**
-     * Creates an iterator from this FMap<K,V>
+     * Constructor for LongFMap<V>
      * 
-     * @param c     the given Comparator<T>
-     * @return      <code>KeyIterator<K></code>
-     *              the created iterator, in
-     *              sorted order
+     * @param root  the root of the tree, or null
      */
-    public Iterator<K> iterator(Comparator<K> c) {
-        ArrayList<K> a = this.makeArrayList();
-        Collections.sort(a, c);
-
-        return new KeyIterator<K>(a);
+    LongFMap(LongNode<V> root) {
+        this.root = root;
     }
 
     /**
-     * Creates an ArrayList from the
-     * FMap keys
+     * Creates an empty LongFMap<V>
      * 
-     * @return      <code>ArrayList<K></code>
-     *              the ArrayList<K> from
-     *              the keys
+     * @return      <code>LongFMap<V></code>
+     *              the empty LongFMap<V>
      */
-    protected ArrayList<K> makeArrayList() {
-        ArrayList<K> a = new ArrayList<K>();
-
-        return this.addKeys(a);
+    public static <V> LongFMap<V> empty() {
+        return new LongFMap<V>(null);
     }
 
     /**
-     * Helper for iterator
+     * Creates a LongFMap<V> with the key k mapped
+     * to the value v, sharing everything that
+     * does not change
      * 
-     * Adds the keys from this
-     * to the given ArrayList<K>
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>LongFMap<V></code>
+     *              the newly created non-empty
+     *              LongFMap<V>
+     */
+    public LongFMap<V> include(long k, V v) {
+        return new LongFMap<V>(LongNode.blacken(LongNode.ins(root, k, v)));
+    }
+
+    /**
+     * Creates a LongFMap<V> without the key k,
+     * sharing everything that does not change
      * 
-     * @param a     the given ArrayList<K> that
-     *              the keys get added to
-     *              by recursion
-     * @return      <code>ArrayList<K></code>
-     *              the ArrayList<K> with
-     *              the keys
+     * @param k     the key
+     * @return      <code>LongFMap<V></code>
+     *              the LongFMap<V> without k,
+     *              or this if k is not in it
      */
-    protected ArrayList<K> addKeys(ArrayList<K> a) {
-        if (m0.containsKey(k0)) {
-            return m0.addKeys(a);
-        } else {
-            a.add(0, k0);
-            return m0.addKeys(a);
+    public LongFMap<V> without(long k) {
+        if (!this.containsKey(k)) {
+            return this;
         }
+        return new LongFMap<V>(LongNode.blacken(
+                LongNode.del(LongNode.blacken(root), k)));
     }
-    
+
     /**
-     * Checks if the FMap<K,V> is empty
+     * Checks if the LongFMap<V> is empty
      * 
      * @return      <code>true</code> if the
-     *              FMap is empty;
+     *              LongFMap is empty;
      *              <code>false</code> otherwise.
      */
     public boolean isEmpty() {
-        return false;
+        return root == null;
     }
 
     /**
-     * Gets the size of the FMap<K,V>
+     * Gets the size of the LongFMap<V>
      * 
      * @return      <code>int</code> returns
      *              a natural number representing
      *              the size
      */
     public int size() {
-        if (m0.containsKey(k0)) {
-            return m0.size();
-        } else {
-            return m0.size() + 1;
-        }
+        return LongNode.size(root);
     }
-    
+
     /**
-     * Checks if the FMap<K,V> contains the key k
+     * Checks if the LongFMap<V> contains the key k
      * 
-     * @param k     the K being checked
+     * @param k     the key being checked
      * @return      <code>true</code> if k is
-     *              in the FMap;
+     *              in the LongFMap;
      *              <code>false</code> otherwise.
      */
-    public boolean containsKey(K k) {
-        if (k.equals(k0)) {
-            return true;
-        } else {
-            return m0.containsKey(k);
-        }
+    public boolean containsKey(long k) {
+        return LongNode.find(root, k) != null;
     }
 
     /**
@@ -506,1002 +9544,1317 @@ class Include<K, V> extends AList<K,V>{
      * @return      <code>V</code> the value that
      *              the key gets
      */
-    public V get(K k) {
-        if (k.equals(k0)) {
-            return v0;
-        } else {
-            return m0.get(k);
+    public V get(long k) {
+        LongNode<V> t = LongNode.find(root, k);
+
+        if (t == null) {
+            throw new RuntimeException
+            ("The key value does not exist-RBT");
         }
+        return t.v0;
     }
 
     /**
-     * Overrides the hashCode method
+     * Creates an iterator over the keys of
+     * the LongFMap<V>, in increasing order
+     * 
+     * @return      <code>PrimitiveIterator.OfLong</code>
+     *              the created iterator
+     */
+    public PrimitiveIterator.OfLong iterator() {
+        return new LongTreeIterator<V>(root);
+    }
+
+    /**
+     * Creates a sequential LongStream of the keys
+     * of the LongFMap<V>, in increasing order
+     * 
+     * @return      <code>LongStream</code>
+     *              the created LongStream
+     */
+    public LongStream keys() {
+        return StreamSupport.longStream(Spliterators.spliterator(
+                this.iterator(), this.size(),
+                Spliterator.SORTED | Spliterator.ORDERED |
+                Spliterator.DISTINCT | Spliterator.IMMUTABLE |
+                Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Calls f with every key of the LongFMap<V> and
+     * the value of that key, in increasing order
+     * 
+     * @param f     the given LongEntryConsumer<V>
+     */
+    public void forEach(LongEntryConsumer<? super V> f) {
+        LongNode.forEach(root, f);
+    }
+
+    /**
+     * Overrides the toString method in the
+     * java API. Creates a string from the LongFMap
+     * 
+     * @return      <code>String</code>
+     *              returns the string
+     */
+    public String toString() {
+        return "{...(" + this.size() +
+                " keys mapped to values)...}";
+    }
+
+    /**
+     * Overrides the hashCode method. It is the
+     * same as for an FMap<Long,V> with the same
+     * keys and values
      * 
      * @return      <code>int</code> the hashCode
      */
     public int hashCode() {
-   
-        Iterator<K> iterator = this.iterator();
-        int hs = 1;
-        
-        while(iterator.hasNext()){
-            K k = iterator.next();
-            V v = this.get(k);
-            
-            //System.out.println("HS: " + hs +
-            //                   " K: " + k.hashCode()+ 
-            //                   " V: " + v.hashCode());    
-            
-            hs *= ((k.hashCode() + 5) + (v.hashCode()) + 7); 
-            
-        }
-        
-        // System.out.println(hs + " Final");
-        
-        return hs + this.size();
-        
+        return root == null ? 0 : root.sum;
     }
-    
+
     /**
      * Overrides the equals method. Checks if an
-     * object is equal to this FMap
+     * object is a LongFMap with the same keys and
+     * values as this one
      * 
-     * @param o     the given set object
+     * @param o     the given object
      * @return      <code>true</code> the two objects
      *              are the same;
      *              <code>false</code> otherwise.
      */
     public boolean equals(Object o) {
-        if (o instanceof FMap) {
-            @SuppressWarnings("unchecked")
-            FMap<K, V> q = (FMap<K, V>) o;
-            
-            if(q.size() == this.size()){
-                Iterator<K> i = this.iterator();
-                
-                while(i.hasNext()){
-                    K k = i.next();
-                    
-                    if(!q.containsKey(k)){
-                        return false;
-                    } else {
-                        if(!q.get(k).equals(this.get(k))){
-                            return false;
-                        }
-                    }
-                }
-                return true;   
-            } else {
-                return false;
-            }
-        } else {
+        if (!(o instanceof LongFMap)) {
             return false;
         }
-    }
-    
-    /**
-     * Visits a class without modifying it, uses
-     * double dispatch to do something new without
-     * making changes
-     * 
-     * 
-     * @param visitor   the visitor
-     * @return          <code>FMap<K,V></code>
-     *                  the returned FMap<K,V>
-     */
-    public FMap<K, V> accept(Visitor<K, V> visitor) {
-
-        FMap<K, V> m2 = FMap.empty();
+        LongFMap<?> q = (LongFMap<?>) o;
 
-        for (K k : this) {
+        if (q.root == root) {
+            return true;
+        } else if (q.size() != this.size() ||
+                q.hashCode() != this.hashCode()) {
+            return false;
+        }
+        LongTreeIterator<V> i = new LongTreeIterator<V>(root);
 
-            V v = visitor.visit(k, this.get(k));
-            m2 = m2.include(k, v);
+        while (i.hasNext()) {
+            LongNode<V> t = i.nextNode();
+            LongNode<?> u = LongNode.find(q.root, t.k0);
 
+            if (u == null || !t.v0.equals(u.v0)) {
+                return false;
+            }
         }
-        return m2;
+        return true;
     }
 }
 
 /**
- * Represents an FMap<K,V> as a red and black tree
+ * Represents something called with each key and
+ * value of a LongFMap<V>, without boxing the key
  */
-abstract class RBTree<K,V> extends FMap<K,V>
-    implements Iterable<K> {
-    
-    public String color; // the color
-    
+interface LongEntryConsumer<V> {
+
     /**
-     * Constructor for RBTree<K,V>
+     * Is called with a key and its value
+     * 
+     * @param k     the key
+     * @param v     the value
+     */
+    void accept(long k, V v);
+}
+
+/**
+ * Represents a node of the red-black tree of a
+ * LongFMap<V>. An empty tree is null, so the methods
+ * that take a tree are static
+ */
+class LongNode<V> {
+
+    long k0; // the given key
+    V v0; // the given value
+    LongNode<V> left; // the left node, or null
+    LongNode<V> right; // the right node, or null
+    boolean red; // true if the node is red
+    int size; // the size
+    int sum; // the sum of the hashes
+
+    /**
+     * The constructor for the
+     * concrete class LongNode
      * 
-     * @param color     the given color
+     * @param k0        the given key
+     * @param v0        the given value
+     * @param left      the left node, or null
+     * @param right     the right node, or null
+     * @param red       true if the node is red
      */
-    public RBTree(String color) {
-        this.color = color;
+    LongNode(long k0, V v0, LongNode<V> left, LongNode<V> right, boolean red) {
+        this.k0 = k0;
+        this.v0 = v0;
+        this.left = left;
+        this.right = right;
+        this.red = red;
+        this.size = 1 + LongNode.size(left) + LongNode.size(right);
+        this.sum = LongNode.sum(left) + LongNode.sum(right)
+                + LongNode.entryHash(k0, v0);
     }
 
     /**
-     * Creates a non-empty RBTree<K,V>
+     * Gets the size of the tree t
      * 
-     * @param k     the key
-     * @param v     the value
-     * @return      <code>RBTree<K,V></code>
-     *              the newly created non-empty
-     *              RBTree<K,V>
+     * @param t     the given tree, or null
+     * @return      <code>int</code> the size
      */
-    public abstract RBTree<K,V> include(K k, V v);
-    
+    static <V> int size(LongNode<V> t) {
+        return t == null ? 0 : t.size;
+    }
+
     /**
-     * Helper for iterator
+     * Helper for the constructor
      * 
-     * Traverses through the RBTree<K,V> and
-     * adds the keys to the ArrayList<K> a
+     * Gets the sum of the hashes of the tree t
      * 
-     * @param a     the given ArrayList<K>
+     * @param t     the given tree, or null
+     * @return      <code>int</code> the sum
      */
-    protected abstract void traverse(ArrayList<K> a);
-    
+    static <V> int sum(LongNode<V> t) {
+        return t == null ? 0 : t.sum;
+    }
+
     /**
-     * Helper for balance
+     * Helper for the constructor
      * 
-     * Gets the left of the RBTree<K,V>
+     * Gets the hash of one key and its value,
+     * the same as FMap.entryHash of the boxed key
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the left
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>int</code> the hash
      */
-    protected abstract RBTree<K,V> getLeft();
-    
+    static int entryHash(long k, Object v) {
+        return Long.hashCode(k) ^ v.hashCode();
+    }
+
     /**
-     * Helper for balance
+     * Helper for get and containsKey
      * 
-     * Gets the right of the RBTree<K,V>
+     * Finds the node with the key k in t
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the right
+     * @param t     the given tree, or null
+     * @param k     the key
+     * @return      <code>LongNode<V></code>
+     *              the node with the key, or
+     *              null if there is none
      */
-    protected abstract RBTree<K,V> getRight();
-    
+    static <V> LongNode<V> find(LongNode<V> t, long k) {
+        while (t != null && t.k0 != k) {
+            t = k < t.k0 ? t.left : t.right;
+        }
+        return t;
+    }
+
     /**
-     * Helper for balance
+     * Helper for include
      * 
-     * Gets the key of the RBTree<K,V>
+     * Adds the key and value to t and balances
+     * the nodes on the way back up
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the key
+     * @param t     the given tree, or null
+     * @param k     the key
+     * @param v     the value
+     * @return      <code>LongNode<V></code>
+     *              the new tree
      */
-    protected abstract K getKey();
-    
+    static <V> LongNode<V> ins(LongNode<V> t, long k, V v) {
+        if (t == null) {
+            return new LongNode<V>(k, v, null, null, true);
+        } else if (k < t.k0) {
+            return LongNode.balance(LongNode.ins(t.left, k, v),
+                    t.k0, t.v0, t.right, t.red);
+        } else if (k > t.k0) {
+            return LongNode.balance(t.left, t.k0, t.v0,
+                    LongNode.ins(t.right, k, v), t.red);
+        } else {
+            return new LongNode<V>(k, v, t.left, t.right, t.red);
+        }
+    }
+
     /**
-     * Helper for balance
+     * Helper for ins
      * 
-     * Gets the value of the RBTree<K,V>
+     * Creates a node from l, k, v and r. If it is
+     * black and two red nodes below it are connected,
+     * they are rearranged into a red node with two
+     * black children
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the value
+     * @param l     the left tree
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right tree
+     * @param red   true if the node is red
+     * @return      <code>LongNode<V></code>
+     *              the balanced tree
      */
-    protected abstract V getValue();
-    
-}
+    static <V> LongNode<V> balance(LongNode<V> l, long k, V v, LongNode<V> r,
+            boolean red) {
+        if (!red) {
+            if (LongNode.isRed(l) && LongNode.isRed(l.left)) {
+                return new LongNode<V>(l.k0, l.v0,
+                        LongNode.blacken(l.left),
+                        new LongNode<V>(k, v, l.right, r, false), true);
+            } else if (LongNode.isRed(l) && LongNode.isRed(l.right)) {
+                LongNode<V> lr = l.right;
 
-/**
- * Represents an empty RBTree<K,V>
- */
-class EmptyRBT<K, V> extends RBTree<K, V> {
+                return new LongNode<V>(lr.k0, lr.v0,
+                        new LongNode<V>(l.k0, l.v0, l.left, lr.left, false),
+                        new LongNode<V>(k, v, lr.right, r, false), true);
+            } else if (LongNode.isRed(r) && LongNode.isRed(r.right)) {
+                return new LongNode<V>(r.k0, r.v0,
+                        new LongNode<V>(k, v, l, r.left, false),
+                        LongNode.blacken(r.right), true);
+            } else if (LongNode.isRed(r) && LongNode.isRed(r.left)) {
+                LongNode<V> rl = r.left;
+
+                return new LongNode<V>(rl.k0, rl.v0,
+                        new LongNode<V>(k, v, l, rl.left, false),
+                        new LongNode<V>(r.k0, r.v0, rl.right, r.right, false),
+                        true);
+            }
+        }
+        return new LongNode<V>(k, v, l, r, red);
+    }
 
-    Comparator<K> comparator; // the given Comparator<K>
-    
     /**
-     * Constructor for EmptyRBT
+     * Helper for without
+     * 
+     * Removes the key k, which must be in t, with
+     * the deletion of Kahrs like Node.del. If t is
+     * black the result has one black node less on
+     * every path
+     * 
+     * @param t     the given tree
+     * @param k     the key
+     * @return      <code>LongNode<V></code>
+     *              t without k, or null
      */
-    EmptyRBT() {
-        super("black");
+    static <V> LongNode<V> del(LongNode<V> t, long k) {
+        if (k == t.k0) {
+            return LongNode.fuse(t.left, t.right);
+        } else if (k < t.k0) {
+            if (LongNode.isBlack(t.left)) {
+                return LongNode.balanceLeft(LongNode.del(t.left, k),
+                        t.k0, t.v0, t.right);
+            } else {
+                return new LongNode<V>(t.k0, t.v0, LongNode.del(t.left, k),
+                        t.right, true);
+            }
+        } else {
+            if (LongNode.isBlack(t.right)) {
+                return LongNode.balanceRight(t.left, t.k0, t.v0,
+                        LongNode.del(t.right, k));
+            } else {
+                return new LongNode<V>(t.k0, t.v0, t.left,
+                        LongNode.del(t.right, k), true);
+            }
+        }
     }
-    
+
     /**
-     * Constructor for EmptyRBT
+     * Helper for without
      * 
-     * @param comparator     the given Comparator<K>
+     * Joins the two children of a removed node
+     * into one tree
+     * 
+     * @param l     the left tree, or null
+     * @param r     the right tree, or null
+     * @return      <code>LongNode<V></code>
+     *              the keys of l then the keys of r
      */
-    EmptyRBT(Comparator<K> comparator) {
-        super("black");
-        this.comparator = comparator;
+    static <V> LongNode<V> fuse(LongNode<V> l, LongNode<V> r) {
+        if (l == null) {
+            return r;
+        } else if (r == null) {
+            return l;
+        } else if (l.red && r.red) {
+            LongNode<V> m = LongNode.fuse(l.right, r.left);
+
+            if (LongNode.isRed(m)) {
+                return new LongNode<V>(m.k0, m.v0,
+                        new LongNode<V>(l.k0, l.v0, l.left, m.left, true),
+                        new LongNode<V>(r.k0, r.v0, m.right, r.right, true),
+                        true);
+            } else {
+                return new LongNode<V>(l.k0, l.v0, l.left,
+                        new LongNode<V>(r.k0, r.v0, m, r.right, true), true);
+            }
+        } else if (!l.red && !r.red) {
+            LongNode<V> m = LongNode.fuse(l.right, r.left);
+
+            if (LongNode.isRed(m)) {
+                return new LongNode<V>(m.k0, m.v0,
+                        new LongNode<V>(l.k0, l.v0, l.left, m.left, false),
+                        new LongNode<V>(r.k0, r.v0, m.right, r.right, false),
+                        true);
+            } else {
+                return LongNode.balanceLeft(l.left, l.k0, l.v0,
+                        new LongNode<V>(r.k0, r.v0, m, r.right, false));
+            }
+        } else if (r.red) {
+            return new LongNode<V>(r.k0, r.v0, LongNode.fuse(l, r.left),
+                    r.right, true);
+        } else {
+            return new LongNode<V>(l.k0, l.v0, l.left,
+                    LongNode.fuse(l.right, r), true);
+        }
     }
-    
+
     /**
-     * Creates a non-empty RBTree<K,V>
+     * Helper for without
      * 
+     * Rebuilds a node whose left side has one
+     * black node less than its right side
+     * 
+     * @param l     the left tree
      * @param k     the key
      * @param v     the value
-     * @return      <code>RBTree<K,V></code>
-     *              the newly created non-empty
-     *              RBTree<K,V>
+     * @param r     the right tree
+     * @return      <code>LongNode<V></code>
+     *              the rebuilt tree
      */
-    public RBTree<K, V> include(K k, V v){
-        return new Node<K,V>(k, v,
-                this, this,
-                comparator,
-                "red");
+    static <V> LongNode<V> balanceLeft(LongNode<V> l, long k, V v, LongNode<V> r) {
+        if (LongNode.isRed(l)) {
+            return new LongNode<V>(k, v, LongNode.blacken(l), r, true);
+        } else if (LongNode.isBlack(r)) {
+            return LongNode.rebalance(l, k, v, LongNode.redden(r));
+        } else {
+            // r is red and its left child is black
+            LongNode<V> rl = r.left;
+
+            return new LongNode<V>(rl.k0, rl.v0,
+                    new LongNode<V>(k, v, l, rl.left, false),
+                    LongNode.rebalance(rl.right, r.k0, r.v0,
+                            LongNode.redden(r.right)),
+                    true);
+        }
     }
-    
+
     /**
-     * Creates an KeyIterator from this FMap<K,V>
+     * Helper for without
      * 
-     * @return      <code>KeyIterator<K></code>
-     *              the created iterator
+     * Rebuilds a node whose right side has one
+     * black node less than its left side
+     * 
+     * @param l     the left tree
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right tree
+     * @return      <code>LongNode<V></code>
+     *              the rebuilt tree
      */
-    public Iterator<K> iterator(){
-        ArrayList<K> a = new ArrayList<K>();
-        return new KeyIterator<K>(a);
+    static <V> LongNode<V> balanceRight(LongNode<V> l, long k, V v, LongNode<V> r) {
+        if (LongNode.isRed(r)) {
+            return new LongNode<V>(k, v, l, LongNode.blacken(r), true);
+        } else if (LongNode.isBlack(l)) {
+            return LongNode.rebalance(LongNode.redden(l), k, v, r);
+        } else {
+            // l is red and its right child is black
+            LongNode<V> lr = l.right;
+
+            return new LongNode<V>(lr.k0, lr.v0,
+                    LongNode.rebalance(LongNode.redden(l.left),
+                            l.k0, l.v0, lr.left),
+                    new LongNode<V>(k, v, lr.right, r, false),
+                    true);
+        }
     }
-    
+
     /**
-     * Creates an iterator from this FMap<K,V>
+     * Helper for without
      * 
-     * @param c     the given Comparator<T>
-     * @return      <code>KeyIterator<K></code>
-     *              the created iterator, in
-     *              sorted order
+     * Creates a black node from l, k, v and r,
+     * unless two red nodes would be connected,
+     * in which case the nodes are rearranged
+     * into a red node with two black children
+     * 
+     * @param l     the left tree
+     * @param k     the key
+     * @param v     the value
+     * @param r     the right tree
+     * @return      <code>LongNode<V></code>
+     *              the balanced tree
      */
-    public Iterator<K> iterator(Comparator<K> c){
-        ArrayList<K> a = new ArrayList<K>();
-        return new KeyIterator<K>(a);
+    static <V> LongNode<V> rebalance(LongNode<V> l, long k, V v, LongNode<V> r) {
+        if (LongNode.isRed(l) && LongNode.isRed(r)) {
+            return new LongNode<V>(k, v, LongNode.blacken(l),
+                    LongNode.blacken(r), true);
+        }
+        return LongNode.balance(l, k, v, r, false);
     }
-    
+
     /**
-     * Helper for iterator
+     * Gets t colored black
      * 
-     * Traverses through the RBTree<K,V> and
-     * adds the keys to the ArrayList<K> a
-     * 
-     * @param a     the given ArrayList<K>
+     * @param t     the given tree, or null
+     * @return      <code>LongNode<V></code>
+     *              t if it is not red,
+     *              a black copy otherwise
      */
-    protected void traverse(ArrayList<K> a) {
-        return;
+    static <V> LongNode<V> blacken(LongNode<V> t) {
+        if (LongNode.isRed(t)) {
+            return new LongNode<V>(t.k0, t.v0, t.left, t.right, false);
+        } else {
+            return t;
+        }
     }
-    
+
     /**
-     * Checks if the FMap<K,V> is empty
+     * Helper for without
      * 
-     * @return      <code>true</code> if the
-     *              FMap is empty;
-     *              <code>false</code> otherwise.
+     * Gets a red copy of the black node t
+     * 
+     * @param t     the given tree
+     * @return      <code>LongNode<V></code>
+     *              the red copy
      */
-    public boolean isEmpty() {
-        return true;
+    static <V> LongNode<V> redden(LongNode<V> t) {
+        if (!LongNode.isBlack(t)) {
+            throw new RuntimeException("redden: the tree" +
+                    " is not balanced");
+        }
+        return new LongNode<V>(t.k0, t.v0, t.left, t.right, true);
     }
 
     /**
-     * Gets the size of the FMap<K,V>
+     * Checks if t is a red node
      * 
-     * @return      <code>int</code> returns
-     *              a natural number representing
-     *              the size
+     * @param t     the given tree, or null
+     * @return      <code>true</code> if t is red;
+     *              <code>false</code> otherwise.
      */
-    public int size() {
-        return 0;
+    static <V> boolean isRed(LongNode<V> t) {
+        return t != null && t.red;
     }
 
     /**
-     * Checks if the FMap<K,V> contains the key k
+     * Checks if t is a black node, which
+     * an empty tree is not
      * 
-     * @param k     the K being checked
-     * @return      <code>true</code> if k is
-     *              in the FMap;
+     * @param t     the given tree, or null
+     * @return      <code>true</code> if t is a
+     *              black node;
      *              <code>false</code> otherwise.
      */
-    public boolean containsKey(K k) {
-        return false;
+    static <V> boolean isBlack(LongNode<V> t) {
+        return t != null && !t.red;
     }
-    
+
     /**
-     * Gets the value v of the key k
+     * Helper for forEach
      * 
-     * @param k     the given key
-     * @return      <code>V</code> the value that
-     *              the key gets
+     * Calls f with every key of t and the value
+     * of that key, in increasing order
+     * 
+     * @param t     the given tree, or null
+     * @param f     the given LongEntryConsumer<V>
      */
-    public V get(K k){
-        throw new RuntimeException
-        ("The key value does not exist-RBT");
+    static <V> void forEach(LongNode<V> t, LongEntryConsumer<? super V> f) {
+        while (t != null) {
+            LongNode.forEach(t.left, f);
+            f.accept(t.k0, t.v0);
+            t = t.right;
+        }
     }
-    
+}
+
+/**
+ * Represents an iterator over the keys of a
+ * LongFMap<V> in increasing order, which walks
+ * the tree lazily with a stack
+ */
+class LongTreeIterator<V> implements PrimitiveIterator.OfLong {
+
+    ArrayList<LongNode<V>> stack; // the nodes whose key comes next
+
     /**
-     * Overrides the hashCode method
+     * Constructor for the concrete
+     * class LongTreeIterator<V>
      * 
-     * @return      <code>int</code> the hashCode
+     * @param t     the tree to iterate, or null
      */
-    public int hashCode() {
-        return 0;
+    LongTreeIterator(LongNode<V> t) {
+        this.stack = new ArrayList<LongNode<V>>();
+        this.pushLeft(t);
     }
 
     /**
-     * Overrides the equals method. Checks if an
-     * object is equal to this FMap
+     * Pushes t and the nodes down its left side
      * 
-     * @param o     the given set object
-     * @return      <code>true</code> the two objects
-     *              are the same;
-     *              <code>false</code> otherwise.
+     * @param t     the given tree, or null
      */
-    public boolean equals(Object o) {
-        if (o instanceof FMap) {
-            @SuppressWarnings("unchecked")
-            FMap<K,V> q = (FMap<K,V>) o;
-            return q.isEmpty();
-        } else {
-            return false;
+    void pushLeft(LongNode<V> t) {
+        while (t != null) {
+            stack.add(t);
+            t = t.left;
         }
     }
-    
+
     /**
-     * Helper for iterator
-     * 
-     * Adds the keys from this
-     * to the given ArrayList<K>
+     * Checks if the iterator has a next
      * 
-     * @param a     the given ArrayList<K> that
-     *              the keys get added to
-     *              by recursion
-     * @return      <code>ArrayList<K></code>
-     *              the ArrayList<K> with
-     *              the keys
+     * @return      <code>true</code> if there
+     *              is a next key;
+     *              <code>false</code> otherwise.
      */
-    protected ArrayList<K> addKeys(ArrayList<K> a) {
-        throw new RuntimeException("addKeys: Unsupported" +
-          	"for EmptyRBT");
+    public boolean hasNext() {
+        return !stack.isEmpty();
     }
-    
+
     /**
-     * Visits a class without modifying it, uses
-     * double dispatch to do something new without
-     * making changes
+     * Gets the node of the next key
      * 
-     * 
-     * @param visitor   the visitor
-     * @return          <code>FMap<K,V></code>
-     *                  the returned FMap<K,V>
+     * @return      <code>LongNode<V></code>
+     *              the next node, if there is
+     *              no such node it throws
+     *              an exception
      */
-    public FMap<K, V> accept(Visitor<K, V> visitor) {
-
-        FMap<K, V> m2 = FMap.empty(comparator);
+    LongNode<V> nextNode() {
+        if (stack.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        LongNode<V> t = stack.remove(stack.size() - 1);
 
-        return m2;
+        this.pushLeft(t.right);
+        return t;
     }
-    
+
     /**
-     * Helper for balance
-     * 
-     * Gets the left of the RBTree<K,V>
+     * Gets the next key of the iterator
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the left
+     * @return      <code>long</code> the next key,
+     *              if there is no such key it
+     *              throws an exception
      */
-    protected RBTree<K,V> getLeft() {
-        throw new RuntimeException("getLeft: Unsupported" +
-        		"for emptyRBT");
+    public long nextLong() {
+        return this.nextNode().k0;
     }
+}
+
+/**
+ * Represents an iterator made up from
+ * the given ArrayList<K>
+ */
+class KeyIterator<K> implements Iterator<K> {
+
+    ArrayList<K> a; // the given ArrayList<K>
+    Iterator<K> it; // the iterator made from
+                    // the ArrayList<K>
     
     /**
-     * Helper for balance
-     * 
-     * Gets the right of the RBTree<K,V>
+     * Constructor for the concrete
+     * class KeyIterator<K>
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the right
+     * @param a     the given ArrayList<K>
+     * @param it    the iterator made from
+     *              the ArrayList<K>
      */
-    protected RBTree<K,V> getRight() {
-        throw new RuntimeException("getRight: Unsupported" +
-        		"for emptyRBT");
+    KeyIterator(ArrayList<K> a) {
+        this.a = a;
+        it = a.iterator();
     }
-    
+
     /**
-     * Helper for balance
-     * 
-     * Gets the key of the RBTree<K,V>
+     * Checks if the iterator has a next
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the key
+     * @return      <code>true</code> if the
+     *              iterator<K> has a next
+     *              <code>false</code> otherwise.
      */
-    protected K getKey() {
-        throw new RuntimeException("getKey: Unsupported" +
-        		"for emptyRBT");
+    public boolean hasNext() {
+        return it.hasNext();
     }
-    
+
     /**
-     * Helper for balance
-     * 
-     * Gets the value of the RBTree<K,V>
+     * Gets the next of the iterator
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the value
+     * @return      <code>K</code> the next
+     *              element, if there is no
+     *              such element it throws
+     *              an exception
      */
-    protected V getValue() {
-        throw new RuntimeException("getValue: Unsupported" +
-        		"for emptyRBT");
+    public K next() {
+        return it.next();
     }
-    
-}
-
-/**
- * Represents a non-empty RBTree<K>
- */
-class Node<K, V> extends RBTree<K, V> {
-
-    K k0; // the given key
-    V v0; // the given value
-    RBTree<K, V> left; // the left node
-    RBTree<K, V> right; // the right node
-    Comparator<K> comparator; // the given comparator
-    int size; // the size
 
     /**
-     * The constructor for the
-     * concrete class Node
-     * 
-     * @param k0        the given key
-     * @param v0        the given value
-     * @param left      the left node
-     * @param right     the right node
-     * @param comparator         the given comparator
-     * @param size      the size
-     * @param color     the color
-     */
-    Node(K k0, V v0, RBTree<K, V> left, RBTree<K, V> right,
-            Comparator<K> comparator, String color) {
-        super(color);
-        this.k0 = k0;
-        this.v0 = v0;
-        this.left = left;
-        this.right = right;
-        this.comparator = comparator;
-        this.initSize();
+     * Removes an element from the iterator,
+     * but it is not properly implemented yet.
+     * For now, it just throws an
+     * UnsupportedOperationException
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
     }
     
+}
+
+/**
+ * Represents an in-order iterator over the keys
+ * of an RBTree<K,V>. The keys are found on demand
+ * with a stack of the nodes whose keys have not
+ * been returned yet, so the stack never holds
+ * more than the height of the tree
+ */
+class TreeIterator<K, V> implements Iterator<K> {
+
+    ArrayList<RBTree<K, V>> stack; // the nodes still to visit
+    boolean reverse; // true if the keys go from largest to smallest
+
     /**
-     * Initializes the size of the node
+     * Constructor for the concrete
+     * class TreeIterator<K,V>
+     * 
+     * @param t     the RBTree<K,V> to iterate
      */
-    void initSize(){
-        size = 1 + left.size()
-                 + right.size();
+    TreeIterator(RBTree<K, V> t) {
+        this(t, false);
     }
 
     /**
-     * Creates a non-empty FMap<K,V>
+     * Constructor for the concrete
+     * class TreeIterator<K,V>
      * 
-     * @param k     the key
-     * @param v     the value
-     * @return      <code>RBTree<K,V></code>
-     *              the newly created non-empty
-     *              RBTree<K,V>
+     * @param t         the RBTree<K,V> to iterate
+     * @param reverse   true if the keys go from
+     *                  largest to smallest
      */
-    public RBTree<K, V> include(K k, V v) {
-
-        // Adds the key and value then
-        // balances the tree if needed
-        // by recursively working its
-        // way up
-        
-        // Makes sure two reds are never
-        // connected
-        
-        if (k.equals(k0)) {
-            return new Node<K,V>(k, v,
-                    this.left,
-                    this.right,
-                    this.comparator,
-                    this.color);
-        } else if (comparator.compare(k, k0) < 0) {
-            return this.balance(
-                    new Node<K,V>(k0, v0,
-                    this.left.include(k, v),
-                    this.right,
-                    this.comparator,
-                    this.color));
-        } else {
-            return this.balance(
-                    new Node<K,V>(k0, v0,
-                    this.left,
-                    this.right.include(k, v),
-                    this.comparator,
-                    this.color));
-        }
-        
+    TreeIterator(RBTree<K, V> t, boolean reverse) {
+        // a red-black tree is never higher
+        // than 2 * log2(size + 1)
+        int height = 2 * (32 - Integer.numberOfLeadingZeros(t.size()));
+        this.stack = new ArrayList<RBTree<K, V>>(height + 1);
+        this.reverse = reverse;
+        this.pushFirst(t);
     }
 
     /**
-     * Creates an KeyIterator from this FMap<K,V>
+     * Constructor for the concrete
+     * class TreeIterator<K,V>, starting
+     * at the key from
      * 
-     * @return      <code>KeyIterator<K></code>
-     *              the created iterator
+     * @param t             the RBTree<K,V> to iterate
+     * @param from          the first key, or null to
+     *                      start at the smallest one
+     * @param inclusive     true if from itself is included
+     * @param c             the Comparator<K> of the tree
      */
-    public Iterator<K> iterator() {
-        ArrayList<K> a = new ArrayList<K>();
-        this.traverse(a);
-        return new KeyIterator<K>(a);
+    TreeIterator(RBTree<K, V> t, K from, boolean inclusive,
+            Comparator<K> c) {
+        int height = 2 * (32 - Integer.numberOfLeadingZeros(t.size()));
+        this.stack = new ArrayList<RBTree<K, V>>(height + 1);
+        this.reverse = false;
+
+        if (from == null) {
+            this.pushFirst(t);
+            return;
+        }
+
+        // only the nodes at or after from are pushed,
+        // the ones before it are passed on the way down
+        while (!t.isEmpty()) {
+            int r = c.compare(from, t.getKey());
+
+            if (r < 0 || (r == 0 && inclusive)) {
+                stack.add(t);
+
+                if (r == 0) {
+                    break;
+                }
+                t = t.getLeft();
+            } else {
+                t = t.getRight();
+            }
+        }
     }
 
     /**
-     * Creates an iterator from this FMap<K,V>
+     * Constructor for the concrete
+     * class TreeIterator<K,V>, starting
+     * in the middle of the tree
      * 
-     * @param c     the given Comparator<T>
-     * @return      <code>KeyIterator<K></code>
-     *              the created iterator, in
-     *              sorted order
+     * @param t         the RBTree<K,V> to iterate
+     * @param from      the index of the first key,
+     *                  counting from the smallest
      */
-    public Iterator<K> iterator(Comparator<K> c) {
+    TreeIterator(RBTree<K, V> t, int from) {
+        int height = 2 * (32 - Integer.numberOfLeadingZeros(t.size()));
+        this.stack = new ArrayList<RBTree<K, V>>(height + 1);
+        this.reverse = false;
 
-        ArrayList<K> a = new ArrayList<K>();
-        this.traverse(a);
-        Collections.sort(a, c);
-        
-        return new KeyIterator<K>(a);
+        // only the nodes at or after from are pushed,
+        // the ones before it are passed on the way down
+        while (!t.isEmpty()) {
+            int left = t.getLeft().size();
 
+            if (from < left) {
+                stack.add(t);
+                t = t.getLeft();
+            } else if (from == left) {
+                stack.add(t);
+                break;
+            } else {
+                from -= left + 1;
+                t = t.getRight();
+            }
+        }
     }
 
     /**
-     * Helper for iterator
-     * 
-     * Traverses through the RBTree<K,V> and
-     * adds the keys to the ArrayList<K> a
+     * Pushes t and all of its descendants
+     * on the side that comes first onto the
+     * stack
      * 
-     * @param a     the given ArrayList<K>
+     * @param t     the given RBTree<K,V>
      */
-    protected void traverse(ArrayList<K> a) {
-        left.traverse(a);
-        a.add(k0);
-        right.traverse(a);
-        
+    void pushFirst(RBTree<K, V> t) {
+        while (!t.isEmpty()) {
+            stack.add(t);
+            t = reverse ? t.getRight() : t.getLeft();
+        }
     }
-    
+
     /**
-     * Checks if the FMap<K,V> is empty
+     * Checks if the iterator has a next
      * 
      * @return      <code>true</code> if the
-     *              FMap is empty;
+     *              iterator<K> has a next
      *              <code>false</code> otherwise.
      */
-    public boolean isEmpty() {
-        return false;
+    public boolean hasNext() {
+        return !stack.isEmpty();
     }
 
     /**
-     * Gets the size of the FMap<K,V>
+     * Gets the next of the iterator
      * 
-     * @return      <code>int</code> returns
-     *              a natural number representing
-     *              the size
+     * @return      <code>K</code> the next
+     *              element, if there is no
+     *              such element it throws
+     *              an exception
      */
-    public int size() {
-        return size;
+    public K next() {
+        return this.nextNode().getKey();
     }
 
     /**
-     * Checks if the FMap<K,V> contains the key k
+     * Gets the node of the next key
+     * of the iterator
      * 
-     * @param k     the K being checked
-     * @return      <code>true</code> if k is
-     *              in the FMap;
-     *              <code>false</code> otherwise.
+     * @return      <code>RBTree<K,V></code>
+     *              the next node, if there is
+     *              no such node it throws
+     *              an exception
      */
-    public boolean containsKey(K k) {
-        if (k.equals(k0)) {
-            return true;
-        } else if (comparator.compare(k, k0) < 0){
-            return this.left.containsKey(k);
-        } else {
-            return this.right.containsKey(k);
+    RBTree<K, V> nextNode() {
+        if (stack.isEmpty()) {
+            throw new NoSuchElementException();
         }
+        RBTree<K, V> t = stack.remove(stack.size() - 1);
+        this.pushFirst(reverse ? t.getLeft() : t.getRight());
+        return t;
     }
 
     /**
-     * Gets the value v of the key k
-     * 
-     * @param k     the given key
-     * @return      <code>V</code> the value that
-     *              the key gets
+     * Removes an element from the iterator,
+     * but it is not supported since the
+     * FMap<K,V> cannot change.
+     * It just throws an
+     * UnsupportedOperationException
      */
-    public V get(K k) {
-        if (k.equals(k0)) {
-            return v0;
-        } else if (comparator.compare(k, k0) < 0) {
-            return this.left.get(k);
-        } else {
-            return this.right.get(k);
-        }
+    public void remove() {
+        throw new UnsupportedOperationException();
     }
-    
+
+}
+
+/**
+ * Represents a TreeIterator<K,V> over the keys of
+ * a tree between two bounds. It starts at the lower
+ * bound and stops at the upper one, so it only walks
+ * the part of the tree in range
+ */
+class TreeRangeIterator<K, V> extends TreeIterator<K, V> {
+
+    K hi; // the upper bound, or null if there is none
+    boolean hiInclusive; // true if hi itself is included
+    Comparator<K> comparator; // the Comparator<K> of the tree
+
     /**
-     * Overrides the hashCode method
+     * Constructor for the concrete
+     * class TreeRangeIterator<K,V>
      * 
-     * @return      <code>int</code> the hashCode
+     * @param t             the RBTree<K,V> to iterate
+     * @param lo            the lower bound, or null
+     * @param loInclusive   true if lo itself is included
+     * @param hi            the upper bound, or null
+     * @param hiInclusive   true if hi itself is included
+     * @param comparator    the Comparator<K> of the tree
      */
-    public int hashCode() {
-        
-        Iterator<K> iterator = this.iterator();
-        int hs = 1;
-        
-        while(iterator.hasNext()){
-            K k = iterator.next();
-            V v = this.get(k);
-            
-            //System.out.println("HS: " + hs +
-            //                   " K: " + k.hashCode()+ 
-            //                   " V: " + v.hashCode());    
-            
-            hs *= ((k.hashCode() + 5) + (v.hashCode()) + 7); 
-            
-        }
-        
-        // System.out.println(hs + " Final");
-        
-        return hs + this.size();
-        
+    TreeRangeIterator(RBTree<K, V> t, K lo, boolean loInclusive,
+            K hi, boolean hiInclusive, Comparator<K> comparator) {
+        super(t, lo, loInclusive, comparator);
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+        this.comparator = comparator;
     }
 
     /**
-     * Overrides the equals method. Checks if an
-     * object is equal to this FMap
+     * Checks if the iterator has a next
      * 
-     * @param o     the given set object
-     * @return      <code>true</code> the two objects
-     *              are the same;
+     * @return      <code>true</code> if the
+     *              next key is in range
      *              <code>false</code> otherwise.
      */
-    public boolean equals(Object o) {
-        if (o instanceof FMap) {
-            @SuppressWarnings("unchecked")
-            FMap<K, V> q = (FMap<K, V>) o;
-
-            if (q.size() == this.size()) {
-                Iterator<K> i = this.iterator();
-
-                while (i.hasNext()) {
-                    K k = i.next();
-
-                    if (!q.containsKey(k)) {
-                        return false;
-                    } else {
-                        if (!q.get(k).equals(this.get(k))) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
-            } else {
-                return false;
-            }
-        } else {
+    public boolean hasNext() {
+        if (stack.isEmpty()) {
             return false;
+        } else if (hi == null) {
+            return true;
         }
+        int r = comparator.compare(stack.get(stack.size() - 1).getKey(), hi);
+
+        return r < 0 || (r == 0 && hiInclusive);
     }
 
     /**
-     * Helper for iterator
+     * Gets the node of the next key
+     * of the iterator
      * 
-     * Adds the keys from this
-     * to the given ArrayList<K>
-     * 
-     * @param a     the given ArrayList<K> that
-     *              the keys get added to
-     *              by recursion
-     * @return      <code>ArrayList<K></code>
-     *              the ArrayList<K> with
-     *              the keys
+     * @return      <code>RBTree<K,V></code>
+     *              the next node, if there is
+     *              no such node it throws
+     *              an exception
      */
-    protected ArrayList<K> addKeys(ArrayList<K> a) {
-        throw new RuntimeException("addKeys: Unsupported" +
-        		"for Node");
+    RBTree<K, V> nextNode() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return super.nextNode();
     }
-    
-    /**
-     * Visits a class without modifying it, uses
-     * double dispatch to do something new without
-     * making changes
-     * 
-     * 
-     * @param visitor   the visitor
-     * @return          <code>FMap<K,V></code>
-     *                  the returned FMap<K,V>
-     */
-    public FMap<K, V> accept(Visitor<K, V> visitor) {
-
-        FMap<K, V> m2 = FMap.empty(comparator);
+}
 
-        for (K k : this) {
+/**
+ * Represents an in-order iterator over the keys
+ * and values of an RBTree<K,V>
+ */
+class TreeEntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
 
-            V v = visitor.visit(k, this.get(k));
-            m2 = m2.include(k, v);
+    TreeIterator<K, V> it; // the iterator over the nodes
 
-        }
-        return m2;
-    }
-    
     /**
-     * Helper for include
+     * Constructor for the concrete
+     * class TreeEntryIterator<K,V>
      * 
-     * Balances the given RBTree<K,V>
+     * @param t     the RBTree<K,V> to iterate
+     */
+    TreeEntryIterator(RBTree<K, V> t) {
+        this.it = new TreeIterator<K, V>(t);
+    }
+
+    /**
+     * Constructor for the concrete
+     * class TreeEntryIterator<K,V>
      * 
-     * @param RBT   the given RBTree<K,V>
-     * @return      <code>RBTree<K,V></code>
-     *              balances the RBT<K,V> to make
-     *              sure two red nodes are not
-     *              connected
+     * @param it    the iterator over the nodes
      */
-    protected RBTree<K,V> balance(Node<K,V> RBT) {
-        if(this.getLeft().isEmpty() &&
-                this.getRight().isEmpty()){
-            return RBT;
-        } else if (RBT.getLeft().color.equals("red") &&
-                // Short circuits if the first is incorrect, 
-                // if it is empty the color is black
-                RBT.getLeft().getLeft().
-                color.equals("red")){
-            return RBT.LL();
-        } else if (RBT.getRight().color.equals("red") &&
-                RBT.getRight().getRight().
-                color.equals("red")){
-            return RBT.RR();
-        } else if (RBT.getLeft().color.equals("red") &&
-                RBT.getLeft().getRight().
-                color.equals("red")){
-            return RBT.LR();
-        } else if (RBT.getRight().color.equals("red") &&
-                RBT.getRight().getLeft().
-                color.equals("red")){
-            return RBT.RL();
-        } else {
-            // Doesn't need to be balanced
-            return RBT;
-        }
+    TreeEntryIterator(TreeIterator<K, V> it) {
+        this.it = it;
     }
-    
+
     /**
-     * Helper for balance
+     * Checks if the iterator has a next
      * 
-     * Gets the left of the RBTree<K,V>
+     * @return      <code>true</code> if the
+     *              iterator has a next
+     *              <code>false</code> otherwise.
+     */
+    public boolean hasNext() {
+        return it.hasNext();
+    }
+
+    /**
+     * Gets the next of the iterator
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the left
+     * @return      <code>Map.Entry<K,V></code> the
+     *              next key and value, if there
+     *              is no such element it throws
+     *              an exception
      */
-    protected RBTree<K,V> getLeft() {
-        return this.left;
+    public Map.Entry<K, V> next() {
+        RBTree<K, V> t = it.nextNode();
+        return new AbstractMap.SimpleImmutableEntry<K, V>(
+                t.getKey(), t.getValue());
     }
-    
+
     /**
-     * Helper for balance
-     * 
-     * Gets the right of the RBTree<K,V>
-     * 
-     * @return      <code>RBTree<K,V></code>
-     *              the right
+     * Removes an element from the iterator,
+     * but it is not supported since the
+     * FMap<K,V> cannot change.
+     * It just throws an
+     * UnsupportedOperationException
      */
-    protected RBTree<K,V> getRight() {
-        return this.right;
+    public void remove() {
+        throw new UnsupportedOperationException();
     }
-    
+
+}
+
+/**
+ * Represents a Spliterator over the in-order positions
+ * [lo, hi) of a tree. It splits at the topmost node in
+ * the range, so the halves are whole subtrees as far as
+ * possible and their sizes are known exactly. T is the
+ * type of the elements it gives out, made from the nodes
+ */
+class TreeSpliterator<K, V, T> implements Spliterator<T> {
+
+    RBTree<K, V> root; // the whole tree
+    int lo; // the index of the next element
+    int hi; // the index after the last element
+    Function<RBTree<K, V>, T> element; // makes the element of a node
+    Comparator<? super T> comparator; // the order of the elements
+    TreeIterator<K, V> it; // the nodes from lo on, once started
+
     /**
-     * Helper for balance
-     * 
-     * Gets the key of the RBTree<K,V>
+     * Constructor for the concrete
+     * class TreeSpliterator<K,V,T>
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the key
+     * @param root          the whole tree
+     * @param lo            the index of the first element
+     * @param hi            the index after the last element
+     * @param element       makes the element of a node
+     * @param comparator    the order of the elements
      */
-    protected K getKey() {
-        return this.k0;
+    TreeSpliterator(RBTree<K, V> root, int lo, int hi,
+            Function<RBTree<K, V>, T> element,
+            Comparator<? super T> comparator) {
+        this.root = root;
+        this.lo = lo;
+        this.hi = hi;
+        this.element = element;
+        this.comparator = comparator;
     }
-    
+
     /**
-     * Helper for balance
+     * Gives the next element to action, if there is one
      * 
-     * Gets the value of the RBTree<K,V>
-     * 
-     * @return      <code>RBTree<K,V></code>
-     *              the value
+     * @param action    the given Consumer
+     * @return          <code>true</code> if there
+     *                  was a next element;
+     *                  <code>false</code> otherwise.
      */
-    protected V getValue() {
-        return this.v0;
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (lo >= hi) {
+            return false;
+        }
+        if (it == null) {
+            it = new TreeIterator<K, V>(root, lo);
+        }
+        lo++;
+        action.accept(element.apply(it.nextNode()));
+        return true;
     }
-    
+
     /**
-     * Helper for balance
-     * 
-     * Creates a new RBTree<K,V> were
-     * two red nodes are not connected.
-     * In this case, the direction left,
-     * left connects two red nodes
+     * Gives all of the remaining elements to action
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the fixed RBTree<K,V>
+     * @param action    the given Consumer
      */
-    protected RBTree<K,V> LL() {
-        RBTree<K,V> x = this.getLeft().getLeft();
-        RBTree<K,V> y = this.getLeft();
-        RBTree<K,V> z = this;
-        
-        RBTree<K,V> a = this.getLeft().getLeft().getLeft();
-        RBTree<K,V> b = this.getLeft().getLeft().getRight();
-        RBTree<K,V> c = this.getLeft().getRight();
-        RBTree<K, V> d = this.getRight();
-
-        return this.formBalanced(x, y, z, a, b, c, d);
+    public void forEachRemaining(Consumer<? super T> action) {
+        if (lo >= hi) {
+            return;
+        }
+        if (it == null) {
+            it = new TreeIterator<K, V>(root, lo);
+        }
+        for (; lo < hi; lo++) {
+            action.accept(element.apply(it.nextNode()));
+        }
     }
-    
+
     /**
-     * Helper for balance
-     * 
-     * Creates a new RBTree<K,V> were
-     * two red nodes are not connected.
-     * In this case, the direction right,
-     * right connects two red nodes
+     * Splits off the first part of the elements
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the fixed RBTree<K,V>
+     * @return      <code>Spliterator<T></code>
+     *              the elements before the topmost
+     *              node in the range, or null if
+     *              there are too few to split
      */
-    protected RBTree<K,V> RR() {
-        RBTree<K,V> x = this;
-        RBTree<K,V> y = this.getRight();
-        RBTree<K,V> z = this.getRight().getRight();
-        
-        RBTree<K,V> a = this.getLeft();
-        RBTree<K,V> b = this.getRight().getLeft();
-        RBTree<K,V> c = this.getRight().getRight().getLeft();
-        RBTree<K,V> d = this.getRight().getRight().getRight();
+    public Spliterator<T> trySplit() {
+        RBTree<K, V> t = root;
+        int base = 0;
 
-        return this.formBalanced(x, y, z, a, b, c, d);
+        // finds the topmost node strictly after lo and
+        // before hi, all the nodes above it are out of
+        // the range or at lo
+        while (!t.isEmpty()) {
+            int i = base + t.getLeft().size();
+
+            if (i <= lo) {
+                base = i + 1;
+                t = t.getRight();
+            } else if (i >= hi) {
+                t = t.getLeft();
+            } else {
+                TreeSpliterator<K, V, T> prefix =
+                        new TreeSpliterator<K, V, T>(root, lo, i,
+                                element, comparator);
+
+                // the iterator is at lo, so it goes with the prefix
+                prefix.it = it;
+                it = null;
+                lo = i;
+                return prefix;
+            }
+        }
+        return null;
     }
-    
+
     /**
-     * Helper for balance
-     * 
-     * Creates a new RBTree<K,V> were
-     * two red nodes are not connected.
-     * In this case, the direction left,
-     * right connects two red nodes
+     * Gets the number of elements left
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the fixed RBTree<K,V>
+     * @return      <code>long</code> the exact size
      */
-    protected RBTree<K,V> LR() {
-        RBTree<K,V> x = this.getLeft();
-        RBTree<K,V> y = this.getLeft().getRight();
-        RBTree<K,V> z = this;
-        
-        RBTree<K,V> a = this.getLeft().getLeft();
-        RBTree<K,V> b = this.getLeft().getRight().getLeft();
-        RBTree<K,V> c = this.getLeft().getRight().getRight();
-        RBTree<K,V> d = this.getRight();
-
-        return this.formBalanced(x, y, z, a, b, c, d);
+    public long estimateSize() {
+        return hi - lo;
     }
-    
+
     /**
-     * Helper for balance
-     * 
-     * Creates a new RBTree<K,V> were
-     * two red nodes are not connected.
-     * In this case, the direction right,
-     * left connects two red nodes
+     * Gets the characteristics of this Spliterator
      * 
-     * @return      <code>RBTree<K,V></code>
-     *              the fixed RBTree<K,V>
+     * @return      <code>int</code> the characteristics
      */
-    protected RBTree<K,V> RL() {
-        RBTree<K,V> x = this;
-        RBTree<K,V> y = this.getRight().getLeft();
-        RBTree<K,V> z = this.getRight();
-        
-        RBTree<K,V> a = this.getLeft();
-        RBTree<K,V> b = this.getRight().getLeft().getLeft();
-        RBTree<K,V> c = this.getRight().getLeft().getRight();
-        RBTree<K,V> d = this.getRight().getRight();
-        
-        return this.formBalanced(x, y, z, a, b, c, d);
+    public int characteristics() {
+        return Spliterator.SIZED | Spliterator.SUBSIZED |
+                Spliterator.SORTED | Spliterator.ORDERED |
+                Spliterator.DISTINCT | Spliterator.IMMUTABLE |
+                Spliterator.NONNULL;
     }
-    
+
     /**
-     * Helper for balance
+     * Gets the Comparator the elements are sorted by
      * 
-     * Creates a balanced tree where
-     * two red nodes are not next to
-     * each other
-     * 
-     * @param x     x RBTree<K,V>
-     * @param y     y RBTree<K,V>
-     * @param z     z RBTree<K,V>
-     * @param a     a RBTree<K,V>
-     * @param b     b RBTree<K,V>
-     * @param c     c RBTree<K,V>
-     * @param d     d RBTree<K,V>
-     * @return      <code>RBTree<K,V></code>
-     *              the fixed RBTree<K,V>
+     * @return      <code>Comparator<T></code>
+     *              the order of the elements
      */
-    protected RBTree<K,V> formBalanced(
-            RBTree<K,V> x, RBTree<K,V> y,
-            RBTree<K,V> z, RBTree<K,V> a,
-            RBTree<K,V> b, RBTree<K,V> c,
-            RBTree<K,V> d) {
-        
-        RBTree<K, V> l = new Node<K, V>(
-                x.getKey(), 
-                x.getValue(), 
-                a, 
-                b,
-                comparator, 
-                "black");
-        RBTree<K, V> r = new Node<K, V>(
-                z.getKey(), 
-                z.getValue(), 
-                c, 
-                d,
-                comparator, 
-                "black");
-        
-        return new Node<K, V>(
-                y.getKey(), 
-                y.getValue(), 
-                l, 
-                r,
-                comparator, 
-                "red");
+    public Comparator<? super T> getComparator() {
+        return comparator;
     }
 
 }
 
 /**
- * Represents an iterator made up from
- * the given ArrayList<K>
+ * Represents a position in the in-order walk of an
+ * RBTree<K,V>. Unlike a TreeIterator, the stack
+ * also holds whole subtrees that have not been
+ * opened yet, so two cursors walking two trees side
+ * by side can step over a subtree both trees share
  */
-class KeyIterator<K> implements Iterator<K> {
+class TreeCursor<K, V> {
+
+    ArrayList<RBTree<K, V>> stack; // the parts still to visit
+    ArrayList<Boolean> whole; // true if the part is a whole subtree,
+                              // false if it is only the key of a node
 
-    ArrayList<K> a; // the given ArrayList<K>
-    Iterator<K> it; // the iterator made from
-                    // the ArrayList<K>
-    
     /**
      * Constructor for the concrete
-     * class KeyIterator<K>
+     * class TreeCursor<K,V>
      * 
-     * @param a     the given ArrayList<K>
-     * @param it    the iterator made from
-     *              the ArrayList<K>
+     * @param t     the RBTree<K,V> to walk
      */
-    KeyIterator(ArrayList<K> a) {
-        this.a = a;
-        it = a.iterator();
+    TreeCursor(RBTree<K, V> t) {
+        this.stack = new ArrayList<RBTree<K, V>>();
+        this.whole = new ArrayList<Boolean>();
+        this.push(t, true);
     }
 
     /**
-     * Checks if the iterator has a next
+     * Pushes a part onto the stack, unless it
+     * is an empty subtree
      * 
-     * @return      <code>true</code> if the
-     *              iterator<K> has a next
+     * @param t         the given RBTree<K,V>
+     * @param isWhole   true if the whole subtree
+     *                  is pushed, false if only
+     *                  the key of the node
+     */
+    void push(RBTree<K, V> t, boolean isWhole) {
+        if (!t.isEmpty()) {
+            stack.add(t);
+            whole.add(isWhole);
+        }
+    }
+
+    /**
+     * Checks if the walk is over
+     * 
+     * @return      <code>true</code> if nothing
+     *              is left to visit;
      *              <code>false</code> otherwise.
      */
-    public boolean hasNext() {
-        return it.hasNext();
+    boolean isDone() {
+        return stack.isEmpty();
     }
 
     /**
-     * Gets the next of the iterator
+     * Gets the part on top of the stack
      * 
-     * @return      <code>K</code> the next
-     *              element, if there is no
-     *              such element it throws
-     *              an exception
+     * @return      <code>RBTree<K,V></code>
+     *              the subtree or node that
+     *              comes next
      */
-    public K next() {
-        return it.next();
+    RBTree<K, V> top() {
+        return stack.get(stack.size() - 1);
     }
 
     /**
-     * Removes an element from the iterator,
-     * but it is not properly implemented yet.
-     * For now, it just throws an
-     * UnsupportedOperationException
+     * Checks if the next part is a whole
+     * subtree rather than a single key
+     * 
+     * @return      <code>true</code> if the top
+     *              is a whole subtree;
+     *              <code>false</code> otherwise.
      */
-    public void remove() {
-        throw new UnsupportedOperationException();
+    boolean atSubtree() {
+        return whole.get(whole.size() - 1);
     }
-    
+
+    /**
+     * Removes the part on top of the stack,
+     * skipping all of its keys
+     */
+    void pop() {
+        stack.remove(stack.size() - 1);
+        whole.remove(whole.size() - 1);
+    }
+
+    /**
+     * Opens the subtree on top of the stack
+     * into its left subtree, its own key and
+     * its right subtree
+     */
+    void expand() {
+        RBTree<K, V> t = this.top();
+        this.pop();
+        this.push(t.getRight(), true);
+        this.push(t, false);
+        this.push(t.getLeft(), true);
+    }
+
+    /**
+     * Checks if two RBTree<K,V> have the same
+     * keys and values in the same order. Only
+     * the subtrees that are not shared by both
+     * trees get opened, so comparing a tree
+     * with a version made from it by include
+     * costs O(log n). Two subtrees of the same
+     * size at the same place hold the same ranks,
+     * so if their hashes differ the trees differ
+     * 
+     * @param a     the first RBTree<K,V>
+     * @param b     the second RBTree<K,V>
+     * @return      <code>true</code> if the two
+     *              trees hold the same entries;
+     *              <code>false</code> otherwise.
+     */
+    static <K, V> boolean sameEntries(RBTree<K, V> a, RBTree<K, V> b) {
+        TreeCursor<K, V> x = new TreeCursor<K, V>(a);
+        TreeCursor<K, V> y = new TreeCursor<K, V>(b);
+
+        while (!x.isDone() && !y.isDone()) {
+            RBTree<K, V> s = x.top();
+            RBTree<K, V> t = y.top();
+
+            if (x.atSubtree() && y.atSubtree() && s == t) {
+                // both walks are at the same place,
+                // so a shared subtree is equal
+                x.pop();
+                y.pop();
+            } else if (x.atSubtree() && y.atSubtree() &&
+                    s.size() == t.size() && s.hashSum() != t.hashSum()) {
+                // the two subtrees hold the same ranks,
+                // so different hashes mean different entries
+                return false;
+            } else if (x.atSubtree() &&
+                    (!y.atSubtree() || s.size() >= t.size())) {
+                x.expand();
+            } else if (y.atSubtree()) {
+                y.expand();
+            } else if (!s.getKey().equals(t.getKey()) ||
+                    !s.getValue().equals(t.getValue())) {
+                return false;
+            } else {
+                x.pop();
+                y.pop();
+            }
+        }
+        return x.isDone() && y.isDone();
+    }
+
+
+    /**
+     * Adds the changes from the tree a to the tree b
+     * to the given FMapDiff<K,V>, in key order. Both
+     * trees are walked side by side like in
+     * sameEntries, so a subtree both trees share is
+     * skipped without being opened
+     * 
+     * @param a     the older RBTree<K,V>
+     * @param b     the newer RBTree<K,V>
+     * @param c     the Comparator<K> of both trees
+     * @param d     the given FMapDiff<K,V>
+     */
+    static <K, V> void diff(RBTree<K, V> a, RBTree<K, V> b,
+            Comparator<K> c, FMap.FMapDiff<K, V> d) {
+        TreeCursor<K, V> x = new TreeCursor<K, V>(a);
+        TreeCursor<K, V> y = new TreeCursor<K, V>(b);
+
+        while (!x.isDone() || !y.isDone()) {
+            if (!x.isDone() && !y.isDone() && x.atSubtree() &&
+                    y.atSubtree() && x.top() == y.top()) {
+                x.pop();
+                y.pop();
+            } else if (!x.isDone() && x.atSubtree() && (y.isDone() ||
+                    !y.atSubtree() || x.top().size() >= y.top().size())) {
+                x.expand();
+            } else if (!y.isDone() && y.atSubtree()) {
+                y.expand();
+            } else if (y.isDone()) {
+                d.recordRemoved(x.top().getKey(), x.top().getValue());
+                x.pop();
+            } else if (x.isDone()) {
+                d.recordAdded(y.top().getKey(), y.top().getValue());
+                y.pop();
+            } else {
+                RBTree<K, V> s = x.top();
+                RBTree<K, V> t = y.top();
+                int r = c.compare(s.getKey(), t.getKey());
+
+                if (r < 0) {
+                    d.recordRemoved(s.getKey(), s.getValue());
+                    x.pop();
+                } else if (r > 0) {
+                    d.recordAdded(t.getKey(), t.getValue());
+                    y.pop();
+                } else {
+                    if (!s.getValue().equals(t.getValue())) {
+                        d.recordChanged(s.getKey(), s.getValue(),
+                                t.getValue());
+                    }
+                    x.pop();
+                    y.pop();
+                }
+            }
+        }
+    }
+
 }
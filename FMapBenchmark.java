@@ -0,0 +1,554 @@
+/**
+ * Benchmarks for the FMap<K,V> operations on every backend
+ * 
+ * Run with
+ * 
+ *     java FMapBenchmark [-max n] [-sizes a,b] [-time ms]
+ *                        [-backend a,b] [-threshold n] [-width n]
+ *                        [-key a,b] [-pattern a,b] [-op a,b]
+ * 
+ * -max        the largest map size, sizes go 10, 100, ..., max
+ *             (default 100000, up to 10000000, which needs
+ *             a few GB of heap, e.g. -Xmx4g)
+ * -sizes      the map sizes, instead of the powers of 10 up to max
+ * -time       the length of one measured iteration (default 200)
+ * -backend    list, tree, hashed, adaptive, adaptiveTree, wide,
+ *             offHeap
+ *             (default list, tree, hashed)
+ * -threshold  the largest flat size of the adaptive backends
+ *             (default FMap.ADAPTIVE_THRESHOLD)
+ * -width      the most keys in a node of the wide backend
+ *             (default FMap.WIDE_WIDTH)
+ * -key        integer, string, composite (default all)
+ * -pattern    sequential, random, zipfian (default all)
+ * -op         include, get, containsKey, size, iterator,
+ *             sortedIterator, hashCode, equals, accept
+ *             (default all)
+ * 
+ * Every result line is the median of the measured iterations
+ * after the warmup ones, as ops/s, ns/op and the bytes the
+ * thread allocated per op. The scans (iterator, sortedIterator,
+ * equals and accept) count a whole pass over the map as one op.
+ * The list backend is O(n) per operation, so it stops at 10000.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class FMapBenchmark {
+
+    static final int WARMUP = 3; // the warmup iterations
+    static final int MEASURED = 5; // the measured iterations
+    static final int LIST_MAX = 10000; // the largest list map
+    static final int STREAM = 1 << 16; // the accessed indices
+
+    static volatile long sink; // keeps results from being optimized away
+    static int threshold = FMap.ADAPTIVE_THRESHOLD; // the flat size of adaptive maps
+    static int width = FMap.WIDE_WIDTH; // the node width of wide maps
+
+    /**
+     * Orders keys by their natural ordering
+     */
+    static final Comparator<Object> NATURAL = new Comparator<Object>() {
+        @SuppressWarnings("unchecked")
+        public int compare(Object x, Object y) {
+            return ((Comparable<Object>) x).compareTo(y);
+        }
+    };
+
+    /**
+     * Represents a key made of a String and an int
+     */
+    static final class Composite implements Comparable<Composite> {
+
+        final String group; // the group
+        final int id; // the id in the group
+
+        /**
+         * Constructor for the class Composite
+         * 
+         * @param group     the group
+         * @param id        the id in the group
+         */
+        Composite(String group, int id) {
+            this.group = group;
+            this.id = id;
+        }
+
+        public int compareTo(Composite c) {
+            int r = group.compareTo(c.group);
+
+            return r != 0 ? r : Integer.compare(id, c.id);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Composite)) {
+                return false;
+            }
+            Composite c = (Composite) o;
+
+            return id == c.id && group.equals(c.group);
+        }
+
+        public int hashCode() {
+            return 31 * group.hashCode() + id;
+        }
+    }
+
+    /**
+     * Encodes the keys of every key type for the offHeap
+     * backend, behind a byte that tells the type
+     */
+    static final FMap.Codec<Object> KEYS = new FMap.Codec<Object>() {
+        public byte[] encode(Object x) {
+            if (x instanceof Integer) {
+                return ByteBuffer.allocate(5).put((byte) 0)
+                        .putInt((Integer) x).array();
+            } else if (x instanceof String) {
+                byte[] s = FMap.Codec.STRING.encode((String) x);
+
+                return ByteBuffer.allocate(1 + s.length).put((byte) 1)
+                        .put(s).array();
+            }
+            Composite c = (Composite) x;
+            byte[] s = FMap.Codec.STRING.encode(c.group);
+
+            return ByteBuffer.allocate(5 + s.length).put((byte) 2)
+                    .putInt(c.id).put(s).array();
+        }
+
+        public Object decode(ByteBuffer b, int offset, int length) {
+            byte type = b.get(offset);
+
+            if (type == 0) {
+                return b.getInt(offset + 1);
+            } else if (type == 1) {
+                return FMap.Codec.STRING.decode(b, offset + 1, length - 1);
+            }
+            return new Composite(
+                    FMap.Codec.STRING.decode(b, offset + 5, length - 5),
+                    b.getInt(offset + 1));
+        }
+    };
+
+    /**
+     * Represents one of the benchmarked operations
+     */
+    enum Op {
+        INCLUDE("include", true, false) {
+            long run(Fixture f, int i) {
+                Object k = f.keys[f.index[i & (STREAM - 1)]];
+
+                return f.map.include(k, i).size();
+            }
+        },
+        GET("get", true, false) {
+            long run(Fixture f, int i) {
+                return f.map.get(f.keys[f.index[i & (STREAM - 1)]]);
+            }
+        },
+        CONTAINS_KEY("containsKey", true, false) {
+            long run(Fixture f, int i) {
+                return f.map.containsKey(
+                        f.keys[f.index[i & (STREAM - 1)]]) ? 1 : 0;
+            }
+        },
+        SIZE("size", false, false) {
+            long run(Fixture f, int i) {
+                return f.map.size();
+            }
+        },
+        ITERATOR("iterator", false, true) {
+            long run(Fixture f, int i) {
+                long n = 0;
+
+                for (Object k : f.map) {
+                    n += k.hashCode();
+                }
+                return n;
+            }
+        },
+        SORTED_ITERATOR("sortedIterator", false, true) {
+            long run(Fixture f, int i) {
+                long n = 0;
+                Iterator<Object> it = f.map.iterator(NATURAL);
+
+                while (it.hasNext()) {
+                    n += it.next().hashCode();
+                }
+                return n;
+            }
+        },
+        HASH_CODE("hashCode", false, false) {
+            long run(Fixture f, int i) {
+                return f.map.hashCode();
+            }
+        },
+        EQUALS("equals", false, true) {
+            long run(Fixture f, int i) {
+                return f.map.equals(f.copy) ? 1 : 0;
+            }
+        },
+        ACCEPT("accept", false, true) {
+            long run(Fixture f, int i) {
+                return f.map.accept((k, v) -> v + 1).size();
+            }
+        };
+
+        final String name; // the name on the command line
+        final boolean keyed; // true if it follows the access pattern
+        final boolean scan; // true if it is a whole pass over the map
+
+        /**
+         * Constructor for Op
+         * 
+         * @param name      the name on the command line
+         * @param keyed     true if it follows the
+         *                  access pattern
+         * @param scan      true if it is a whole
+         *                  pass over the map
+         */
+        Op(String name, boolean keyed, boolean scan) {
+            this.name = name;
+            this.keyed = keyed;
+            this.scan = scan;
+        }
+
+        /**
+         * Runs the operation once
+         * 
+         * @param f     the Fixture to run it on
+         * @param i     the number of the run
+         * @return      <code>long</code>
+         *              a result to feed the sink
+         */
+        abstract long run(Fixture f, int i);
+    }
+
+    /**
+     * Holds the maps and keys of one benchmark
+     */
+    static final class Fixture {
+
+        FMap<Object, Integer> map; // the benchmarked map
+        FMap<Object, Integer> copy; // an equal map sharing no structure
+        Object[] keys; // the keys of the map, in increasing order
+        int[] index; // the accessed indices into keys
+    }
+
+    /**
+     * Runs the benchmarks picked by the arguments
+     * 
+     * @param args      the command line arguments
+     */
+    public static void main(String[] args) {
+        int max = 100000;
+        List<Integer> sizes = null;
+        long time = 200;
+        List<String> backends = Arrays.asList("list", "tree", "hashed");
+        List<String> keyTypes = Arrays.asList("integer", "string", "composite");
+        List<String> patterns = Arrays.asList("sequential", "random", "zipfian");
+        List<String> ops = new ArrayList<String>();
+
+        for (Op op : Op.values()) {
+            ops.add(op.name);
+        }
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String a = args[i + 1];
+
+            if (args[i].equals("-max")) {
+                max = Integer.parseInt(a);
+            } else if (args[i].equals("-sizes")) {
+                sizes = new ArrayList<Integer>();
+
+                for (String n : a.split(",")) {
+                    sizes.add(Integer.parseInt(n));
+                }
+            } else if (args[i].equals("-threshold")) {
+                threshold = Integer.parseInt(a);
+            } else if (args[i].equals("-width")) {
+                width = Integer.parseInt(a);
+            } else if (args[i].equals("-time")) {
+                time = Long.parseLong(a);
+            } else if (args[i].equals("-backend")) {
+                backends = Arrays.asList(a.split(","));
+            } else if (args[i].equals("-key")) {
+                keyTypes = Arrays.asList(a.split(","));
+            } else if (args[i].equals("-pattern")) {
+                patterns = Arrays.asList(a.split(","));
+            } else if (args[i].equals("-op")) {
+                ops = Arrays.asList(a.split(","));
+            } else {
+                throw new RuntimeException("Unknown option " + args[i]);
+            }
+        }
+
+        if (sizes == null) {
+            sizes = new ArrayList<Integer>();
+
+            for (int n = 10; n <= max; n *= 10) {
+                sizes.add(n);
+            }
+        }
+
+        System.out.printf("%-12s %-10s %-11s %9s %-15s %14s %12s %10s%n",
+                "backend", "key", "pattern", "size", "op",
+                "ops/s", "ns/op", "B/op");
+
+        for (String keyType : keyTypes) {
+            for (int n : sizes) {
+                Object[] keys = FMapBenchmark.keys(keyType, n);
+
+                for (String backend : backends) {
+                    if (backend.equals("list") && n > LIST_MAX) {
+                        continue;
+                    }
+                    Fixture f = new Fixture();
+
+                    f.keys = keys;
+                    f.map = FMapBenchmark.build(backend, keys);
+                    f.copy = FMapBenchmark.build(backend, keys);
+
+                    for (Op op : Op.values()) {
+                        if (!ops.contains(op.name)) {
+                            continue;
+                        }
+                        for (String pattern : patterns) {
+                            f.index = FMapBenchmark.pattern(pattern, n);
+                            FMapBenchmark.measure(f, op, time,
+                                    backend, keyType,
+                                    op.keyed ? pattern : "-", n);
+
+                            if (!op.keyed) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates n distinct keys of the given type
+     * 
+     * @param type      integer, string or composite
+     * @param n         the number of keys
+     * @return          <code>Object[]</code>
+     *                  the keys, in increasing order
+     */
+    static Object[] keys(String type, int n) {
+        Object[] keys = new Object[n];
+
+        for (int i = 0; i < n; i++) {
+            if (type.equals("integer")) {
+                keys[i] = i;
+            } else if (type.equals("string")) {
+                keys[i] = "key-" + Integer.toHexString(i * 0x9E3779B1);
+            } else if (type.equals("composite")) {
+                keys[i] = new Composite("group-" + (i % 97), i);
+            } else {
+                throw new RuntimeException("Unknown key type " + type);
+            }
+        }
+        Arrays.sort(keys, NATURAL);
+        return keys;
+    }
+
+    /**
+     * Creates the map of the given backend
+     * with the keys, each mapped to its index
+     * 
+     * @param backend   list, tree, hashed, adaptive,
+     *                  adaptiveTree, wide or offHeap
+     * @param keys      the keys
+     * @return          <code>FMap<Object,Integer></code>
+     *                  the new map
+     */
+    static FMap<Object, Integer> build(String backend, Object[] keys) {
+        FMap<Object, Integer> m;
+
+        if (backend.equals("list")) {
+            m = FMap.empty();
+        } else if (backend.equals("tree")) {
+            m = FMap.empty(NATURAL);
+        } else if (backend.equals("hashed")) {
+            m = FMap.hashed();
+        } else if (backend.equals("adaptive")) {
+            m = FMap.adaptive(threshold);
+        } else if (backend.equals("adaptiveTree")) {
+            m = FMap.adaptive(NATURAL, threshold);
+        } else if (backend.equals("wide")) {
+            m = FMap.wide(NATURAL, width);
+        } else if (backend.equals("offHeap")) {
+            m = FMap.offHeap(NATURAL, KEYS, FMap.Codec.INTEGER);
+        } else {
+            throw new RuntimeException("Unknown backend " + backend);
+        }
+
+        // the keys go in shuffled so the maps
+        // do not depend on the order of keys
+        Integer[] order = new Integer[keys.length];
+
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Random r = new Random(keys.length);
+
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            Integer t = order[i];
+
+            order[i] = order[j];
+            order[j] = t;
+        }
+
+        FMap.TransientFMap<Object, Integer> t = m.asTransient();
+
+        for (Integer i : order) {
+            t.put(keys[i], i);
+        }
+        return t.persistent();
+    }
+
+    /**
+     * Creates the indices of the keys that the
+     * lookups and includes go through
+     * 
+     * @param pattern   sequential, random or zipfian
+     * @param n         the number of keys
+     * @return          <code>int[]</code>
+     *                  STREAM indices less than n
+     */
+    static int[] pattern(String pattern, int n) {
+        int[] index = new int[STREAM];
+        Random r = new Random(n);
+
+        if (pattern.equals("sequential")) {
+            for (int i = 0; i < STREAM; i++) {
+                index[i] = i % n;
+            }
+        } else if (pattern.equals("random")) {
+            for (int i = 0; i < STREAM; i++) {
+                index[i] = r.nextInt(n);
+            }
+        } else if (pattern.equals("zipfian")) {
+
+            // Gray et al., "Quickly Generating Billion-Record
+            // Synthetic Databases", with the skew YCSB uses.
+            // The ranks are scattered over the keys so the
+            // hot keys are not all next to each other
+            double theta = 0.99;
+            double zetan = 0;
+
+            for (int i = 1; i <= n; i++) {
+                zetan += 1 / Math.pow(i, theta);
+            }
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            double alpha = 1 / (1 - theta);
+            double eta = (1 - Math.pow(2.0 / n, 1 - theta)) /
+                    (1 - zeta2 / zetan);
+
+            for (int i = 0; i < STREAM; i++) {
+                double u = r.nextDouble();
+                double uz = u * zetan;
+                long rank;
+
+                if (uz < 1) {
+                    rank = 0;
+                } else if (uz < zeta2) {
+                    rank = 1;
+                } else {
+                    rank = (long) (n * Math.pow(eta * u - eta + 1, alpha));
+                }
+                rank = Math.min(rank, n - 1);
+                index[i] = (int) (((rank * 0x9E3779B97F4A7C15L) >>> 1) % n);
+            }
+        } else {
+            throw new RuntimeException("Unknown pattern " + pattern);
+        }
+        return index;
+    }
+
+    /**
+     * Measures one operation and prints the result
+     * 
+     * @param f         the Fixture to run it on
+     * @param op        the operation
+     * @param time      the length of an iteration in ms
+     * @param backend   the name of the backend
+     * @param keyType   the name of the key type
+     * @param pattern   the name of the access pattern
+     * @param n         the size of the map
+     */
+    static void measure(Fixture f, Op op, long time, String backend,
+            String keyType, String pattern, int n) {
+        double[] nanos = new double[MEASURED];
+        double[] bytes = new double[MEASURED];
+
+        for (int it = 0; it < WARMUP + MEASURED; it++) {
+            long end = System.nanoTime() + time * 1000000;
+            long alloc = FMapBenchmark.allocated();
+            long start = System.nanoTime();
+            long count = 0;
+            long s = 0;
+            long now;
+
+            // checks the clock every few ops so
+            // that it is not what is measured,
+            // a scan is long enough on its own
+            int batch = op.scan ? 1 : 64;
+
+            do {
+                for (int i = 0; i < batch; i++) {
+                    s += op.run(f, (int) count++);
+                }
+                now = System.nanoTime();
+            } while (now < end);
+
+            if (alloc >= 0) {
+                alloc = FMapBenchmark.allocated() - alloc;
+            }
+            sink += s;
+
+            if (it >= WARMUP) {
+                nanos[it - WARMUP] = (double) (now - start) / count;
+                bytes[it - WARMUP] = alloc < 0 ? -1 : (double) alloc / count;
+            }
+        }
+        Arrays.sort(nanos);
+        Arrays.sort(bytes);
+
+        double ns = nanos[MEASURED / 2];
+        double b = bytes[MEASURED / 2];
+
+        System.out.printf("%-12s %-10s %-11s %9d %-15s %14.0f %12.1f %10s%n",
+                backend, keyType, pattern, n, op.name,
+                1e9 / ns, ns, b < 0 ? "n/a" : String.format("%.1f", b));
+    }
+
+    /**
+     * Gets the bytes allocated by this thread so far
+     * 
+     * @return      <code>long</code>
+     *              the allocated bytes, or -1 if
+     *              the JVM does not count them
+     */
+    static long allocated() {
+        java.lang.management.ThreadMXBean bean =
+                ManagementFactory.getThreadMXBean();
+
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}